@@ -3,10 +3,12 @@ import java.util.*;
 import java.util.Map.Entry;
 
 import org.apache.hadoop.conf.*;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
@@ -120,6 +122,7 @@ public class Finance_TimeSeriesDriver extends Configured implements Tool {
 	static int printUsage() {
 		System.out.println("TimeSeriesJob [optional hadoop arguments] [-csvcols d,o,h,l,c,v,a ] [-period y|q|m|w|d ] [-outcols d,o,h,l,c,v,a ]" + 
 	                       " [-outhdr t|f] [-sort asc|desc ] [-filter o,ho,lo,h,lh,l,hl,c,hv,lv,a,ha,la ]" +
+	                       " [-week us|iso ] [-symbols <exchanges and symbols> ] [-mapagg t|f ] [-periods y,q,m,w,d ] [-fused t|f ] [-combinein t|f ] [-reducers <n> ] [-reducerstats <symbol rows file> ]" +
 				           " <hadoop input path> <hadoop output path>");
 		ToolRunner.printGenericCommandUsage(System.out);
 		return -1;
@@ -151,19 +154,67 @@ public class Finance_TimeSeriesDriver extends Configured implements Tool {
 
 	    job.setMapperClass(TSDataMapper.class);
 	    
-	    if (tsConf.getProp(TSConfProperties.TIMESERIES_FILTER).equals(""))
+	    // This driver reads and writes csv only (see timeseries.infmt and timeseries.outfmt in TSYahooFinanceDriver).
+	    job.getConfiguration().set(TSConfProperties.TIMESERIES_INFMT, TSConfProperties.TIMESERIES_FMT_CSV);
+	    job.getConfiguration().set(TSConfProperties.TIMESERIES_OUTFMT, TSConfProperties.TIMESERIES_FMT_CSV);
+	    
+	    if (tsConf.strFused.equals("t"))
+	    {
+	      // Period reduction and record filtering in one pass. The output is put in a directory for each period.
+	      job.setReducerClass(TSPeriodFusedReducer.class);
+	      job.getConfiguration().set(TSConfProperties.TIMESERIES_MAPAGG, "f");
+	      if (tsConf.strPeriods.equals(""))
+	        job.getConfiguration().set(TSConfProperties.TIMESERIES_PERIODS, tsConf.strPeriod);
+	    }
+	    else if (tsConf.getProp(TSConfProperties.TIMESERIES_FILTER).equals(""))
+	    {
 	      job.setReducerClass(TSPeriodReducer.class);
+	      // The one job reduces the raw data so there are no bars to roll up (timeseries.cascade).
+	      job.getConfiguration().set(TSConfProperties.TIMESERIES_CASCADE, "f");
+	      // Collapse the records of each period on the map side. Either in the mapper or with a combiner.
+	      if (tsConf.strMapAgg.equals("t") == false)
+	      {
+	        job.setCombinerClass(TSPeriodCombiner.class);
+	        job.setCombinerKeyGroupingComparatorClass(GroupingKeyComparator.class);
+	      }
+	    }
 	    else 
+	    {
 	    	// o,ho,lo,h,lh,l,hl,c,hv,lv,a,ha,la
 	      job.setReducerClass(TSPeriodRecReducer.class);
+	      // The record reduction needs every record from the mapper. Only the records selected by the filters
+	      // are sent through the shuffle.
+	      job.getConfiguration().set(TSConfProperties.TIMESERIES_MAPAGG, "f");
+	      if (TSPeriodRecReducer.CHK_ALL_RECS == false)
+	      {
+	        job.setCombinerClass(TSPeriodRecCombiner.class);
+	        job.setCombinerKeyGroupingComparatorClass(GroupingKeyComparator.class);
+	      }
+	    }
 
-	    job.setInputFormatClass(TextInputFormat.class);
+	    TSCombineFileInputFormat.setInputFormatClass(job, tsConf);
 	    //job.setOutputFormatClass(TextOutputFormat.class);
 	    
 	    // Output to specified file. Do not want an empty default file created.
 	    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
 	    
-	    job.setPartitionerClass(GroupPartitioner.class);
+	    // The reducers get ranges of the keys sampled from the input so their part files follow on from each other
+	    // (timeseries.reducers).
+	    if (tsConf.isRangePartitioned())
+	    {
+	      Path inPath = new Path(io_args.get(0));
+	      FileSystem fs = inPath.getFileSystem(tsConf.conf);
+	      List<String> lstInFiles = new ArrayList<String>();
+	      for (RemoteIterator<LocatedFileStatus> it = fs.listFiles(inPath, true); it.hasNext(); )
+	        lstInFiles.add(it.next().getPath().toString());
+	      TSKeySampler sampler = new TSKeySampler(tsConf);
+	      sampler.sample(fs, lstInFiles);
+	      job.setNumReduceTasks(tsConf.iReducers);
+	      job.setPartitionerClass(TSRangePartitioner.class);
+	      job.getConfiguration().set(TSRangePartitioner.TIMESERIES_PARTITION_SPLITS, sampler.getSplits(tsConf.getPeriodTypes(), tsConf.iReducers));
+	    }
+	    else
+	      job.setPartitionerClass(GroupPartitioner.class);
 	
 		job.setGroupingComparatorClass(GroupingKeyComparator.class);
 		job.setSortComparatorClass(OutputKeyComparator.class);
@@ -19,11 +19,11 @@ import org.apache.hadoop.conf.Configuration;
  */
 public class GroupPartitioner extends Partitioner<TSCompositeKey, TSData> implements Configurable {
 
-	static Configuration config = null;
+	private Configuration config = null;
 	
 	@Override
 	public int getPartition(TSCompositeKey key, TSData value, int numPartitions) {
-		return Math.abs(key.getGroupKey().hashCode() * 127) % numPartitions;
+		return Math.abs(key.groupHashCode() * 127) % numPartitions;
 	}
 
 	public void setConf(Configuration conf)
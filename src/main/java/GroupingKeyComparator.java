@@ -15,11 +15,11 @@ import org.apache.hadoop.io.WritableComparator;
 public class GroupingKeyComparator extends WritableComparator {
 
 	protected GroupingKeyComparator() {
-		super(TSCompositeKey.class, true);
+		super(TSCompositeKey.class, false);
 	}
 
 	// Default descending sort
-		static int srt = -1;
+		private int srt = -1;
 		
 		@Override
 		public void setConf(Configuration conf)
@@ -44,4 +44,12 @@ public class GroupingKeyComparator extends WritableComparator {
 		return (srt * tsK1.compareGroupKeyTo(tsK2));
 
 	}
+
+	// Compare only the group part (exchange, symbol and period) of the serialized keys.
+	@Override
+	public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+
+		return (srt * TSCompositeKey.compareRaw(b1, s1, b2, s2, true));
+
+	}
 }
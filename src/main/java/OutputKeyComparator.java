@@ -16,11 +16,11 @@ import org.apache.hadoop.conf.Configuration;
 public class OutputKeyComparator extends WritableComparator {
 
 	protected OutputKeyComparator() {
-		super(TSCompositeKey.class, true);
+		super(TSCompositeKey.class, false);
 	}
 
 	// Default descending sort
-	static int srt = -1;
+	private int srt = -1;
 	
 	@Override
 	public void setConf(Configuration conf)
@@ -46,5 +46,13 @@ public class OutputKeyComparator extends WritableComparator {
 
 	}
 
+	// Compare the serialized keys directly so the sort does not have to deserialize them.
+	@Override
+	public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+
+		return (srt * TSCompositeKey.compareRaw(b1, s1, b2, s2, false));
+
+	}
+
 	
 }
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/*
+ * Writes the output lines of a reducer to their files from a background thread (timeseries.asyncout).
+ *
+ * MultipleOutputs writes each line in the reducer thread, so the reduce waits on the file system for the lines it
+ * writes. Here each file gets a handle the first time it is written to and each line is copied into a batch of bytes
+ * along with the handle of its file. A full batch is handed to the writer thread and the reducer carries on filling
+ * the other one, so there are only ever two batches (the writer waits for a batch and the reducer waits for the
+ * writer to finish the batch before).
+ *
+ * The writer thread opens the record writers the same way as MultipleOutputs, the output format of the job with the
+ * file as the output name when the first line of the file is written (the lazy output format creates the file then),
+ * so the files are the same as writing through MultipleOutputs. The lines of a file are written in the order they
+ * were written here.
+ *
+ * close writes the last batch, waits for the writer thread and closes the files. If the writer thread fails the
+ * next write or close throws the error. The reducer doesn't wait for a batch from a writer thread that has stopped
+ * (interrupted or died) without giving it back, it throws the error instead.
+ *
+ */
+public class TSAsyncOutput {
+
+	// Size of a batch. A batch is handed over when either is full.
+	private static final int BATCH_BYTES = 256 * 1024;
+	private static final int BATCH_LINES = 8192;
+
+	// Name of the output files (FileOutputFormat.BASE_OUTPUT_NAME).
+	private static final String BASE_OUTPUT_NAME = "mapreduce.output.basename";
+
+	// Lines and the handles of their files, and the files given handles in the batch in the order of their handles.
+	private static class Batch {
+		byte [] data = new byte[BATCH_BYTES];
+		int iLen = 0;
+		final int [] iHandles = new int[BATCH_LINES];
+		final int [] iEnds = new int[BATCH_LINES];
+		int iLines = 0;
+		final List<String> newFiles = new ArrayList<String>();
+		boolean bLast = false;
+
+		void clear() {
+			iLen = 0;
+			iLines = 0;
+			newFiles.clear();
+		}
+	}
+
+	private final TaskAttemptContext taskContext;
+	private final Map<String, Integer> handles = new HashMap<String, Integer>();
+	private final BlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(2);
+	private final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(2);
+	private final Thread writer;
+	private volatile Throwable error = null;
+	private Batch batch = new Batch();
+	private boolean bClosed = false;
+
+	public TSAsyncOutput(TaskAttemptContext context) {
+		// The record writers are opened from a copy of the configuration as the output name is set in it.
+		taskContext = new TaskAttemptContextImpl(new Configuration(context.getConfiguration()), context.getTaskAttemptID());
+
+		free.add(new Batch());
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeBatches();
+			}
+		}, "TSAsyncOutput " + context.getTaskAttemptID());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// Write a line to a file.
+	public void write(Text value, String strFile) throws IOException, InterruptedException {
+		checkError();
+
+		Integer handle = handles.get(strFile);
+		if (handle == null)
+		{
+			handle = handles.size();
+			handles.put(strFile, handle);
+			batch.newFiles.add(strFile);
+		}
+
+		int iLen = value.getLength();
+		if (batch.iLines == BATCH_LINES || (batch.iLen + iLen > batch.data.length && batch.iLines > 0))
+			handOver(false);
+
+		// A line longer than a batch gets a batch of its own.
+		if (iLen > batch.data.length)
+			batch.data = new byte[iLen];
+
+		System.arraycopy(value.getBytes(), 0, batch.data, batch.iLen, iLen);
+		batch.iLen += iLen;
+		batch.iHandles[batch.iLines] = handle;
+		batch.iEnds[batch.iLines] = batch.iLen;
+		batch.iLines++;
+	}
+
+	// Write the last of the lines and close the files.
+	public void close() throws IOException, InterruptedException {
+		if (bClosed)
+			return;
+		bClosed = true;
+
+		handOver(true);
+		writer.join();
+		checkError();
+	}
+
+	private void handOver(boolean bLast) throws IOException, InterruptedException {
+		batch.bLast = bLast;
+		full.put(batch);
+		if (bLast == false)
+		{
+			// Wait for the writer to give back the other batch, unless it has stopped.
+			Batch b = null;
+			while (b == null)
+			{
+				boolean bStopped = writer.isAlive() == false;
+				b = free.poll(bStopped ? 0 : 1, TimeUnit.SECONDS);
+				if (b == null && bStopped)
+				{
+					checkError();
+					throw new IOException("TSAsyncOutput writer stopped");
+				}
+			}
+			batch = b;
+			batch.clear();
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null)
+			throw new IOException("TSAsyncOutput writer failed", error);
+	}
+
+	@SuppressWarnings("unchecked")
+	private RecordWriter<NullWritable, Text> open(String strFile) throws Exception {
+		taskContext.getConfiguration().set(BASE_OUTPUT_NAME, strFile);
+		OutputFormat<NullWritable, Text> format = (OutputFormat<NullWritable, Text>)
+				ReflectionUtils.newInstance(taskContext.getOutputFormatClass(), taskContext.getConfiguration());
+		return format.getRecordWriter(taskContext);
+	}
+
+	// Write a line to a file, opening the file with its first line.
+	private void write(List<RecordWriter<NullWritable, Text>> writers, List<String> files, int iHandle, Text value)
+			throws Exception {
+		while (writers.size() <= iHandle)
+			writers.add(null);
+
+		RecordWriter<NullWritable, Text> rw = writers.get(iHandle);
+		if (rw == null)
+		{
+			rw = open(files.get(iHandle));
+			writers.set(iHandle, rw);
+		}
+		rw.write(NullWritable.get(), value);
+	}
+
+	// The writer thread. After an error the batches are still taken so the reducer isn't left waiting.
+	private void writeBatches() {
+		List<RecordWriter<NullWritable, Text>> writers = new ArrayList<RecordWriter<NullWritable, Text>>();
+		List<String> files = new ArrayList<String>();
+		Text value = new Text();
+
+		try {
+			while (true)
+			{
+				Batch b = full.take();
+
+				if (error == null)
+				{
+					try {
+						files.addAll(b.newFiles);
+
+						int iStart = 0;
+						for (int i = 0; i < b.iLines; i++)
+						{
+							value.set(b.data, iStart, b.iEnds[i] - iStart);
+							write(writers, files, b.iHandles[i], value);
+							iStart = b.iEnds[i];
+						}
+					} catch (Throwable t) {
+						error = t;
+					}
+				}
+
+				if (b.bLast)
+					break;
+				free.put(b);
+			}
+		} catch (Throwable t) {
+			// Interrupted, or taking or giving back a batch failed. The reducer sees the thread has stopped.
+			if (error == null)
+				error = t;
+		}
+
+		for (int i = 0; i < writers.size(); i++)
+		{
+			try {
+				if (writers.get(i) != null)
+					writers.get(i).close(taskContext);
+			} catch (Throwable t) {
+				if (error == null)
+					error = t;
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.mapreduce.Mapper;
+
+/*
+ * Mapper for the rollup of a period from the binary bars of a finer period (timeseries.cascade) and for binary input
+ * (timeseries.infmt seq), which is the period records output by another reduction with timeseries.outfmt seq.
+ *
+ * The input is the bars written by the TSPeriodReducer as partial records (see TSData.bPartial) keyed by their
+ * period. Each bar lies entirely within one of the coarser periods so it is keyed again by the period of its closing
+ * date and consolidated by the TSPeriodCombiner and TSPeriodReducer in the same way as the raw records. The results
+ * are the same as reducing the raw data for the period but each stage only reads the bars of the stage before.
+ * The bars must be of a finer period than the one they are rolled up into.
+ *
+ */
+public class TSBarMapper
+  extends Mapper<TSCompositeKey, TSData, TSCompositeKey, TSData> {
+
+	TSConfProperties tsConf = new TSConfProperties();
+
+	private final TSCompositeKey key = new TSCompositeKey();
+
+	// Period types used for the keys. One key is output for each period.
+	private int [] iPeriodTypes = null;
+	private TSCalendar cal = TSCalendar.getDefault();
+	private int iEncoding = TSData.ENCODING_DEFAULT;
+
+	// Header key of each exchange and symbol, output once by each mapper (see TSConfProperties.isHeaderKeys).
+	private boolean bHeaderKeys = false;
+	private int srt = -1;
+	private final Set<String> hdrNames = new HashSet<String>();
+	private String strHdrX = null;
+	private String strHdrS = null;
+	private final TSCompositeKey hdrkey = new TSCompositeKey();
+	private final TSData hdrdata = new TSData();
+
+	@Override
+	public void setup(Context context) throws IllegalArgumentException, IOException {
+		tsConf.setConf(context.getConfiguration());
+
+		iPeriodTypes = tsConf.getPeriodTypes();
+		cal = tsConf.getCalendar();
+
+		// The keys and records are written with the dictionary and encoding of the job.
+		key.setDictionary(tsConf.getSymbolDictionary());
+		hdrkey.setDictionary(tsConf.getSymbolDictionary());
+		iEncoding = tsConf.getEncoding();
+		hdrdata.setEncoding(iEncoding);
+
+		bHeaderKeys = tsConf.isHeaderKeys();
+		srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+		hdrNames.clear();
+		strHdrX = null;
+		strHdrS = null;
+	}
+
+	@Override
+	public void map(TSCompositeKey inkey, TSData bar, Context cntxt)
+			throws IOException, InterruptedException {
+
+		long lDay = TSCalendar.getEpochDay(bar.lDateTime);
+		bar.setEncoding(iEncoding);
+
+		if (bHeaderKeys && (inkey.getXKey().equals(strHdrX) == false || inkey.getSKey().equals(strHdrS) == false))
+		{
+			strHdrX = inkey.getXKey();
+			strHdrS = inkey.getSKey();
+			if (hdrNames.add(strHdrX + "\t" + strHdrS))
+			{
+				hdrkey.setHeader(strHdrX, strHdrS, srt);
+				cntxt.write(hdrkey, hdrdata);
+			}
+		}
+
+		for (int i = 0; i < iPeriodTypes.length; i++)
+		{
+			int iKey = cal.getPeriodKey(iPeriodTypes[i], lDay);
+
+			key.set(inkey.getXKey(), inkey.getSKey(), iPeriodTypes[i], iKey, bar.lDateTime, inkey.getInFieldMask());
+			cntxt.write(key, bar);
+		}
+	}
+}
@@ -0,0 +1,484 @@
+import java.text.ParseException;
+import java.util.Calendar;
+
+/*
+ * Calendar arithmetic for the period keys.
+ *
+ * YahooData used to format the same time through several SimpleDateFormat instances (year, month, week,
+ * day of year) and then parse the strings back into numbers. That is slow, not thread safe and the results
+ * depend upon the default locale and time zone of whatever machine runs the task.
+ *
+ * This class works on the epoch day (days since 1970-01-01, UTC) and computes the year, quarter, month,
+ * day of month, day of year and week of year with integer arithmetic. Dates are always treated as UTC so
+ * that a yyyy-MM-dd date parses to the same time on every machine and formats back to the same string.
+ *
+ * The week of year follows the java.util.Calendar rules for a first day of week and the minimal number of
+ * days in the first week. The default is the US rule (weeks start on Sunday, week 1 contains January 1st) which
+ * is what the Yahoo data has always been reduced with. The ISO 8601 rule (weeks start on Monday, week 1 contains
+ * the first Thursday) is also available. Days at the end of December that fall into week 1 belong to the
+ * following week year, and for the ISO rule days at the start of January can belong to the last week of the
+ * previous year.
+ *
+ * Optionally a lookup table of the packed fields can be precomputed for a range of years. Days outside of the
+ * table range are computed directly.
+ *
+ */
+public class TSCalendar {
+
+	public static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	public static final String WEEK_US = "us";
+	public static final String WEEK_ISO = "iso";
+
+	// Period types. Ordered from widest to narrowest period.
+	public static final int PERIOD_YEAR = 0;
+	public static final int PERIOD_QUARTER = 1;
+	public static final int PERIOD_MONTH = 2;
+	public static final int PERIOD_WEEK = 3;
+	public static final int PERIOD_DAY = 4;
+	public static final int PERIOD_UNKNOWN = -1;
+
+	// Range of years for the lookup table.
+	public static final int TABLE_FROM_YEAR = 1900;
+	public static final int TABLE_TO_YEAR = 2100;
+
+	// Days from 0000-03-01 to 1970-01-01
+	private static final long DAYS_0000_TO_1970 = 719468;
+	private static final int DAYS_PER_ERA = 146097;
+
+	// Bit layout of the packed fields in the lookup table.
+	private static final int DAY_SHIFT = 0;       // 5 bits
+	private static final int MONTH_SHIFT = 5;     // 4 bits
+	private static final int DOY_SHIFT = 9;       // 9 bits
+	private static final int WEEK_SHIFT = 18;     // 6 bits
+	private static final int WYEAR_SHIFT = 24;    // week year - year + 1, 2 bits
+	private static final int YEAR_SHIFT = 32;
+
+	// The US rule without the table. Only for the dates, which are the same whatever the week rule.
+	private static final TSCalendar calDefault = new TSCalendar(Calendar.SUNDAY, 1);
+
+	// The calendars of the week rules, with and without the table, made the first time they are asked for.
+	private static final TSCalendar [] calendars = new TSCalendar[4];
+
+	private final int iFirstDayOfWeek;
+	private final int iMinimalDays;
+
+	private long [] table = null;
+	private long lTableFrom = 0;
+
+	public TSCalendar(int iFirstDayOfWeek, int iMinimalDays)
+	{
+		this.iFirstDayOfWeek = iFirstDayOfWeek;
+		this.iMinimalDays = iMinimalDays;
+	}
+
+	public static TSCalendar getInstance(String strWeek)
+	{
+		if (WEEK_ISO.equals(strWeek))
+			return new TSCalendar(Calendar.MONDAY, 4);
+		else
+			return new TSCalendar(Calendar.SUNDAY, 1);
+	}
+
+	// The calendar of a week rule (timeseries.week) and table (timeseries.caltable), shared by the tasks of a process.
+	public static synchronized TSCalendar getInstance(String strWeek, boolean bTable)
+	{
+		int i = (WEEK_ISO.equals(strWeek) ? 2 : 0) + (bTable ? 1 : 0);
+		if (calendars[i] == null)
+		{
+			TSCalendar cal = getInstance(strWeek);
+			if (bTable)
+				cal.buildTable(TABLE_FROM_YEAR, TABLE_TO_YEAR);
+			calendars[i] = cal;
+		}
+		return calendars[i];
+	}
+
+	// The US week rule. For dates, or where there is no configuration for the week rule.
+	public static TSCalendar getDefault()
+	{
+		return calDefault;
+	}
+
+	public static int getPeriodType(String strPeriod)
+	{
+		int iType = PERIOD_UNKNOWN;
+
+		switch (strPeriod)
+		{
+		case YahooData.TIMESERIES_PERIOD_YEAR:
+			iType = PERIOD_YEAR;
+		break;
+
+		case YahooData.TIMESERIES_PERIOD_QUARTER:
+			iType = PERIOD_QUARTER;
+		break;
+
+		// Month is the default period.
+		case YahooData.TIMESERIES_PERIOD_MONTH:
+		case "":
+			iType = PERIOD_MONTH;
+		break;
+
+		case YahooData.TIMESERIES_PERIOD_WEEK:
+			iType = PERIOD_WEEK;
+		break;
+
+		case YahooData.TIMESERIES_PERIOD_DAY:
+			iType = PERIOD_DAY;
+		break;
+		}
+
+		return iType;
+	}
+
+	// Period (y, q, m, w or d) for a period type.
+	public static String getPeriodName(int iPeriodType)
+	{
+		String strPeriod = "";
+
+		switch (iPeriodType)
+		{
+		case PERIOD_YEAR:
+			strPeriod = YahooData.TIMESERIES_PERIOD_YEAR;
+		break;
+
+		case PERIOD_QUARTER:
+			strPeriod = YahooData.TIMESERIES_PERIOD_QUARTER;
+		break;
+
+		case PERIOD_MONTH:
+			strPeriod = YahooData.TIMESERIES_PERIOD_MONTH;
+		break;
+
+		case PERIOD_WEEK:
+			strPeriod = YahooData.TIMESERIES_PERIOD_WEEK;
+		break;
+
+		case PERIOD_DAY:
+			strPeriod = YahooData.TIMESERIES_PERIOD_DAY;
+		break;
+		}
+
+		return strPeriod;
+	}
+
+	/* The finer period whose bars each lie entirely within one of the period so the period can be rolled up from
+	   them (timeseries.cascade). Days for weeks and months, months for quarters and quarters for years.
+	   PERIOD_UNKNOWN for days which come from the raw data.
+	 */
+	public static int getRollupSource(int iPeriodType)
+	{
+		switch (iPeriodType)
+		{
+		case PERIOD_YEAR:
+			return PERIOD_QUARTER;
+
+		case PERIOD_QUARTER:
+			return PERIOD_MONTH;
+
+		case PERIOD_MONTH:
+		case PERIOD_WEEK:
+			return PERIOD_DAY;
+		}
+
+		return PERIOD_UNKNOWN;
+	}
+
+	// Whether the bars of the period are the source of a coarser period.
+	public static boolean isRollupSource(int iPeriodType)
+	{
+		return iPeriodType == PERIOD_QUARTER || iPeriodType == PERIOD_MONTH || iPeriodType == PERIOD_DAY;
+	}
+
+	public void buildTable(int iFromYear, int iToYear)
+	{
+		long lFrom = daysFromCivil(iFromYear, 1, 1);
+		long lTo = daysFromCivil(iToYear + 1, 1, 1);
+		long [] tbl = new long[(int) (lTo - lFrom)];
+
+		for (int i = 0; i < tbl.length; i++)
+			tbl[i] = computeFields(lFrom + i);
+
+		lTableFrom = lFrom;
+		table = tbl;
+	}
+
+	public boolean hasTable()
+	{
+		return table != null;
+	}
+
+	public static long floorDiv(long x, long y)
+	{
+		long q = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0))
+			q--;
+		return q;
+	}
+
+	public static long getEpochDay(long lDate)
+	{
+		return floorDiv(lDate, MS_PER_DAY);
+	}
+
+	// Days since 1970-01-01 of a year, month and day. Month and day may be out of range (lenient).
+	public static long daysFromCivil(long y, int m, int d)
+	{
+		// normalize month into 1..12
+		long mz = m - 1;
+		y += floorDiv(mz, 12);
+		m = (int) (mz - floorDiv(mz, 12) * 12) + 1;
+
+		if (m <= 2)
+			y--;
+		long era = floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+		return era * DAYS_PER_ERA + doe - DAYS_0000_TO_1970 + (d - 1);
+	}
+
+	// Compute the packed fields of an epoch day.
+	private long computeFields(long lDay)
+	{
+		long z = lDay + DAYS_0000_TO_1970;
+		long era = floorDiv(z, DAYS_PER_ERA);
+		int doe = (int) (z - era * DAYS_PER_ERA);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int mdoy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * mdoy + 2) / 153;
+		int d = mdoy - (153 * mp + 2) / 5 + 1;
+		int m = mp < 10 ? mp + 3 : mp - 9;
+		long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+
+		int doy = (int) (lDay - daysFromCivil(y, 1, 1)) + 1;
+
+		// week of year.
+		int iWeekYear = 0;
+		long lWeek1 = getWeek1Start(y);
+		if (lDay < lWeek1)
+		{
+			// last week of the previous year.
+			iWeekYear = -1;
+			lWeek1 = getWeek1Start(y - 1);
+		}
+		else
+		{
+			long lNextWeek1 = getWeek1Start(y + 1);
+			if (lDay >= lNextWeek1)
+			{
+				iWeekYear = 1;
+				lWeek1 = lNextWeek1;
+			}
+		}
+		int iWeek = (int) ((lDay - lWeek1) / 7) + 1;
+
+		return (y << YEAR_SHIFT) | ((long) (iWeekYear + 1) << WYEAR_SHIFT) | ((long) iWeek << WEEK_SHIFT) |
+			   ((long) doy << DOY_SHIFT) | ((long) m << MONTH_SHIFT) | ((long) d << DAY_SHIFT);
+	}
+
+	// Day of week of an epoch day. Calendar.SUNDAY (1) to Calendar.SATURDAY (7). 1970-01-01 was a Thursday.
+	public static int getDayOfWeek(long lDay)
+	{
+		return (int) (lDay + 4 - floorDiv(lDay + 4, 7) * 7) + Calendar.SUNDAY;
+	}
+
+	// First day of week 1 of a year.
+	private long getWeek1Start(long y)
+	{
+		long lJan1 = daysFromCivil(y, 1, 1);
+		int iRel = (getDayOfWeek(lJan1) - iFirstDayOfWeek + 7) % 7;
+		long lStart = lJan1 - iRel;
+		if (7 - iRel < iMinimalDays)
+			lStart += 7;
+		return lStart;
+	}
+
+	private long getFields(long lDay)
+	{
+		if (table != null)
+		{
+			long i = lDay - lTableFrom;
+			if (i >= 0 && i < table.length)
+				return table[(int) i];
+		}
+
+		return computeFields(lDay);
+	}
+
+	public int getYear(long lDay)
+	{
+		return (int) (getFields(lDay) >> YEAR_SHIFT);
+	}
+
+	public int getMonth(long lDay)
+	{
+		return (int) (getFields(lDay) >>> MONTH_SHIFT) & 0xF;
+	}
+
+	public int getDay(long lDay)
+	{
+		return (int) (getFields(lDay) >>> DAY_SHIFT) & 0x1F;
+	}
+
+	public int getDayOfYear(long lDay)
+	{
+		return (int) (getFields(lDay) >>> DOY_SHIFT) & 0x1FF;
+	}
+
+	public int getQuarter(long lDay)
+	{
+		return (getMonth(lDay) - 1) / 3 + 1;
+	}
+
+	public int getWeek(long lDay)
+	{
+		return (int) (getFields(lDay) >>> WEEK_SHIFT) & 0x3F;
+	}
+
+	public int getWeekYear(long lDay)
+	{
+		long f = getFields(lDay);
+		return (int) (f >> YEAR_SHIFT) + (int) ((f >>> WYEAR_SHIFT) & 0x3) - 1;
+	}
+
+	/* Packed period key. Ordering the packed keys numerically orders the periods by time.
+	 * year: yyyy, quarter: yyyyqq, month: yyyymm, week: yyyyww (week year), day: yyyyddd (day of year).
+	 */
+	public int getPeriodKey(int iPeriodType, long lDay)
+	{
+		long f = getFields(lDay);
+		int y = (int) (f >> YEAR_SHIFT);
+		int iKey = -1;
+
+		switch (iPeriodType)
+		{
+		case PERIOD_YEAR:
+			iKey = y;
+		break;
+
+		case PERIOD_QUARTER:
+			iKey = y * 100 + ((int) ((f >>> MONTH_SHIFT) & 0xF) - 1) / 3 + 1;
+		break;
+
+		case PERIOD_MONTH:
+			iKey = y * 100 + (int) ((f >>> MONTH_SHIFT) & 0xF);
+		break;
+
+		case PERIOD_WEEK:
+			iKey = (y + (int) ((f >>> WYEAR_SHIFT) & 0x3) - 1) * 100 + (int) ((f >>> WEEK_SHIFT) & 0x3F);
+		break;
+
+		case PERIOD_DAY:
+			iKey = y * 1000 + (int) ((f >>> DOY_SHIFT) & 0x1FF);
+		break;
+		}
+
+		return iKey;
+	}
+
+	// Format a packed period key in the same form as the original string keys. e.g. 2015, 2015-01, 2015-052
+	public static String formatPeriodKey(int iPeriodType, int iKey)
+	{
+		StringBuilder sb = new StringBuilder(8);
+
+		switch (iPeriodType)
+		{
+		case PERIOD_YEAR:
+			appendPadded(sb, iKey, 4);
+		break;
+
+		case PERIOD_QUARTER:
+		case PERIOD_MONTH:
+		case PERIOD_WEEK:
+			appendPadded(sb, iKey / 100, 4);
+			sb.append('-');
+			appendPadded(sb, iKey % 100, 2);
+		break;
+
+		case PERIOD_DAY:
+			appendPadded(sb, iKey / 1000, 4);
+			sb.append('-');
+			appendPadded(sb, iKey % 1000, 3);
+		break;
+
+		default:
+			sb.append("Unknown Period");
+		break;
+		}
+
+		return sb.toString();
+	}
+
+	public static void appendPadded(StringBuilder sb, long l, int iWidth)
+	{
+		if (l < 0)
+		{
+			sb.append('-');
+			l = -l;
+			iWidth--;
+		}
+
+		for (long p = 10; iWidth > 1; iWidth--, p *= 10)
+		{
+			if (l < p)
+				sb.append('0');
+		}
+
+		sb.append(l);
+	}
+
+	// Format the date as yyyy-MM-dd
+	public String formatDate(long lDate)
+	{
+		long lDay = getEpochDay(lDate);
+		long f = getFields(lDay);
+
+		StringBuilder sb = new StringBuilder(10);
+		appendPadded(sb, f >> YEAR_SHIFT, 4);
+		sb.append('-');
+		appendPadded(sb, (f >>> MONTH_SHIFT) & 0xF, 2);
+		sb.append('-');
+		appendPadded(sb, (f >>> DAY_SHIFT) & 0x1F, 2);
+		return sb.toString();
+	}
+
+	/* Parse a yyyy-MM-dd date into UTC milliseconds. Like SimpleDateFormat the month and day are lenient
+	 * and any text following the day is ignored.
+	 */
+	public static long parseDate(CharSequence strDate) throws ParseException
+	{
+		int [] ymd = {0, 0, 0};
+		int f = 0;
+		int n = 0;
+		int len = strDate.length();
+		int i = 0;
+
+		while (i < len && strDate.charAt(i) <= ' ')
+			i++;
+
+		for (; i < len; i++)
+		{
+			char c = strDate.charAt(i);
+			if (c >= '0' && c <= '9' && n < 9)
+			{
+				ymd[f] = ymd[f] * 10 + (c - '0');
+				n++;
+			}
+			else if (c == '-' && n > 0 && f < 2)
+			{
+				f++;
+				n = 0;
+			}
+			else
+				break;
+		}
+
+		if (f != 2 || n == 0)
+			throw new ParseException("Unparseable date: \"" + strDate + "\"", i);
+
+		return daysFromCivil(ymd[0], ymd[1], ymd[2]) * MS_PER_DAY;
+	}
+}
@@ -0,0 +1,220 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * A compiled csv column template.
+ *
+ * The timeseries.csvcols property is a comma separated list of column abbreviations (see YahooData.setCol).
+ * Rather than splitting the template and switching on the column name for every line, the template is
+ * compiled once into an immutable plan that maps each field index to an integer column code.
+ *
+ * Plans are also provided for the fixed formats that YahooData.parse infers from the number of columns. The
+ * mapper uses these to detect the layout of the data once (from the first data line) and then applies the
+ * same plan to every line.
+ *
+ * The column codes double as bit positions so that a set of columns can be held as a small bit mask.
+ *
+ * A plan can be projected onto the columns a job needs (timeseries.project). The other columns are still counted
+ * but are skipped without being parsed.
+ *
+ */
+public final class TSColumnPlan {
+
+	public static final int COL_UNKNOWN = -1;
+	public static final int COL_SKIP = -2;
+	public static final int COL_IDN = 0;
+	public static final int COL_ID = 1;
+	public static final int COL_PER = 2;
+	public static final int COL_XCHNG = 3;
+	public static final int COL_SYM = 4;
+	public static final int COL_DATE = 5;
+	public static final int COL_TS = 6;
+	public static final int COL_OPEN = 7;
+	public static final int COL_HIGH = 8;
+	public static final int COL_LOW = 9;
+	public static final int COL_CLOSE = 10;
+	public static final int COL_VOL = 11;
+	public static final int COL_ADJCLOSE = 12;
+
+	// Columns that are always parsed as they make up the key.
+	public static final int KEY_COLS = (1 << COL_XCHNG) | (1 << COL_SYM) | (1 << COL_DATE) | (1 << COL_TS);
+	public static final int PRICE_COLS = (1 << COL_OPEN) | (1 << COL_HIGH) | (1 << COL_LOW) | (1 << COL_CLOSE);
+	public static final int ALL_COLS = (1 << (COL_ADJCLOSE + 1)) - 1;
+
+	// Fixed formats inferred from the number of columns. Same as YahooData.parse.
+	private static final Map<Integer, TSColumnPlan> standardPlans = new HashMap<Integer, TSColumnPlan>();
+
+	static {
+		addStandardPlan("x,s,d,o,h,l,c,v,a");
+		addStandardPlan("s,d,o,h,l,c,v,a");
+		addStandardPlan("d,o,h,l,c,v,a");
+		// Either already map-reduce(ed) data or tic data.
+		addStandardPlan("d,v,a");
+		addStandardPlan("d,a");
+	}
+
+	private final int [] cols;
+	private final String strInFields;
+	private final int iFieldMask;
+	private final boolean bValid;
+
+	private TSColumnPlan(int [] cols, String strInFields, int iFieldMask, boolean bValid)
+	{
+		this.cols = cols;
+		this.strInFields = strInFields;
+		this.iFieldMask = iFieldMask;
+		this.bValid = bValid;
+	}
+
+	private TSColumnPlan(int [] cols, String strInFields)
+	{
+		this.cols = cols;
+		this.strInFields = strInFields;
+
+		int mask = 0;
+		boolean bOk = true;
+		for (int i = 0; i < cols.length; i++)
+		{
+			if (cols[i] == COL_UNKNOWN)
+				bOk = false;
+			else
+				mask |= 1 << cols[i];
+		}
+		this.iFieldMask = mask;
+		this.bValid = bOk;
+	}
+
+	private static void addStandardPlan(String strCols)
+	{
+		TSColumnPlan plan = compile(strCols);
+		standardPlans.put(plan.getColCount(), plan);
+	}
+
+	// Compile a template such as d,o,h,l,c,v,a into a plan.
+	public static TSColumnPlan compile(String strCsvCols)
+	{
+		String [] template = strCsvCols.split(",");
+		int [] cols = new int[template.length];
+
+		for (int i = 0; i < template.length; i++)
+			cols[i] = getColCode(template[i]);
+
+		return new TSColumnPlan(cols, strCsvCols.trim());
+	}
+
+	/* The same plan with the columns that are not in a column mask skipped. The input fields of the plan stay the
+	 * same as the reducers use them to know which columns were in the input.
+	 */
+	public TSColumnPlan project(int iColMask)
+	{
+		int [] pcols = new int[cols.length];
+		for (int i = 0; i < cols.length; i++)
+		{
+			pcols[i] = cols[i];
+			if (cols[i] >= 0 && ((iColMask | KEY_COLS) & (1 << cols[i])) == 0)
+				pcols[i] = COL_SKIP;
+		}
+
+		return new TSColumnPlan(pcols, strInFields, iFieldMask, bValid);
+	}
+
+	// Get the fixed format plan for the number of columns in a line (if any).
+	public static TSColumnPlan getStandardPlan(int iCols)
+	{
+		return standardPlans.get(iCols);
+	}
+
+	public static int getColCode(String strName)
+	{
+	int code = COL_UNKNOWN;
+
+	switch (strName.trim())
+	{
+	case YahooData.TIMESERIES_COL_IDN:
+		code = COL_IDN;
+	break;
+
+	case YahooData.TIMESERIES_COL_ID:
+		code = COL_ID;
+	break;
+
+	case YahooData.TIMESERIES_COL_PER:
+		code = COL_PER;
+	break;
+
+	case YahooData.TIMESERIES_COL_XCHNG:
+		code = COL_XCHNG;
+	break;
+
+	case YahooData.TIMESERIES_COL_SYM:
+		code = COL_SYM;
+	break;
+
+	case YahooData.TIMESERIES_COL_DATE:
+		code = COL_DATE;
+	break;
+
+	case YahooData.TIMESERIES_COL_TS:
+		code = COL_TS;
+	break;
+
+	case YahooData.TIMESERIES_COL_OPEN:
+		code = COL_OPEN;
+	break;
+
+	case YahooData.TIMESERIES_COL_HIGH:
+		code = COL_HIGH;
+	break;
+
+	case YahooData.TIMESERIES_COL_LOW:
+		code = COL_LOW;
+	break;
+
+	case YahooData.TIMESERIES_COL_CLOSE:
+		code = COL_CLOSE;
+	break;
+
+	case YahooData.TIMESERIES_COL_VOL:
+		code = COL_VOL;
+	break;
+
+	case YahooData.TIMESERIES_COL_ADJCLOSE:
+	case YahooData.TIMESERIES_COL_DEFAULT:
+		code = COL_ADJCLOSE;
+	break;
+	}
+
+	return code;
+	}
+
+	public int getColCount()
+	{
+		return cols.length;
+	}
+
+	public int getCol(int i)
+	{
+		return cols[i];
+	}
+
+	public String getInFields()
+	{
+		return strInFields;
+	}
+
+	public int getFieldMask()
+	{
+		return iFieldMask;
+	}
+
+	public boolean hasCol(int code)
+	{
+		return (iFieldMask & (1 << code)) != 0;
+	}
+
+	// A template with an unknown column can never parse a line.
+	public boolean isValid()
+	{
+		return bValid;
+	}
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/*
+ * Input format that packs many small csv files into each split (timeseries.combinein).
+ *
+ * Each file of daily data for a symbol is only a few hundred KB to a few MB so giving each one its own map task
+ * (TextInputFormat) spends most of the time starting tasks. The files are packed into splits of up to
+ * timeseries.combinein.max bytes, grouped by node and rack where possible.
+ *
+ * The lines of each file are read in the same way as the TextInputFormat. The key is a TSFileOffsetWritable which also
+ * holds the name of the file so the mapper can keep the identity of each file (symbol name, column layout and
+ * headers) within a split.
+ *
+ */
+public class TSCombineFileInputFormat extends CombineFileInputFormat<TSFileOffsetWritable, Text> {
+
+	// Set the input format of a job from the configuration. The TextInputFormat unless timeseries.combinein is set.
+	public static void setInputFormatClass(Job job, TSConfProperties tsConf) {
+		if (tsConf.strCombineIn.equals("t"))
+		{
+			job.setInputFormatClass(TSCombineFileInputFormat.class);
+			job.getConfiguration().setLong(SPLIT_MAXSIZE, tsConf.iCombineInMax);
+		}
+		else
+			job.setInputFormatClass(TextInputFormat.class);
+	}
+
+	@Override
+	public RecordReader<TSFileOffsetWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context)
+			throws IOException {
+		return new CombineFileRecordReader<TSFileOffsetWritable, Text>((CombineFileSplit) split, context, TSFileLineRecordReader.class);
+	}
+
+	/*
+	 * Reads the lines of one file of a combined split.
+	 */
+	public static class TSFileLineRecordReader extends RecordReader<TSFileOffsetWritable, Text> {
+
+		private final LineRecordReader reader = new LineRecordReader();
+		private final FileSplit fileSplit;
+		private final TSFileOffsetWritable key = new TSFileOffsetWritable();
+
+		// Constructor used by the CombineFileRecordReader.
+		public TSFileLineRecordReader(CombineFileSplit split, TaskAttemptContext context, Integer idx) {
+			Path path = split.getPath(idx);
+			fileSplit = new FileSplit(path, split.getOffset(idx), split.getLength(idx), null);
+			key.setFileName(path.getName());
+		}
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+			reader.initialize(fileSplit, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException {
+			if (reader.nextKeyValue() == false)
+				return false;
+
+			key.set(reader.getCurrentKey().get());
+			return true;
+		}
+
+		@Override
+		public TSFileOffsetWritable getCurrentKey() {
+			return key;
+		}
+
+		@Override
+		public Text getCurrentValue() {
+			return reader.getCurrentValue();
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			return reader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
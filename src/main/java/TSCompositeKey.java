@@ -2,14 +2,16 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 
 /*
  * The composite key is logically made up of a group key and a value key. The group key is based upon how the time series
- * data is consolidated. It is a string made up of potentially the exchange and/or symbol (optional) and Year and then varies from nothing to 
- * a value for the Quarter, Month, Week or day depending on how data is consolidated. The fields that make up the group key are the strHdrKey
- * and the strPeriodKey.
+ * data is consolidated. It is made up of potentially the exchange and/or symbol (optional) and Year and then varies from nothing to
+ * a value for the Quarter, Month, Week or day depending on how data is consolidated. The fields that make up the group key are the
+ * exchange, symbol and the period key.
  * 
  * For example on a yearly consolidation the group key would be SYM-YYYY or for example SPX-2015 or is the symbol is unused just 2015.
  * Similarly is the consolidation is quarterly then the quarters would vary from 01 to 04 and the group key might be something like
@@ -19,28 +21,119 @@ import org.apache.hadoop.io.WritableComparator;
  * 
  * By using a composite key we can have Hadoop do the sorting for us before it is input to the reducer.
  * 
+ * The key is written in a compact fixed width binary form rather than as strings:
+ *
+ *   exchange id   int    id from the TSSymbolDictionary
+ *   symbol id     int    id from the TSSymbolDictionary
+ *   period type   byte   TSCalendar period type (y, q, m, w, d)
+ *   period key    int    packed period, for example yyyymm or yyyyww (see TSCalendar.getPeriodKey)
+ *   value         long   the date/timestamp
+ *   input fields  short  bit mask of the columns in the input csv (see TSColumnPlan)
+ *
+ * followed by the exchange and/or symbol name only if the name is not in the dictionary.
+ *
+ * The dictionary is the one of the job's timeseries.symbols (setConf). The keys the framework makes to read the map
+ * output are given the job configuration, the tasks set it on the keys they make. A key without it writes the names.
+ *
+ * A header key is a placeholder for the headers of the output of an exchange and symbol when the output is split
+ * over several reducers (see TSRangePartitioner). Its period type sorts before all of the periods of the exchange and
+ * symbol in the sort order so the headers are written before any of the records.
+ *
  */
-public class TSCompositeKey implements WritableComparable<TSCompositeKey> {
+public class TSCompositeKey implements WritableComparable<TSCompositeKey>, Configurable {
 	
+	// Size of the fixed part of the serialized key and the offsets of its fields.
+	public static final int XID_OFFSET = 0;
+	public static final int SID_OFFSET = 4;
+	public static final int PERIOD_TYPE_OFFSET = 8;
+	public static final int PERIOD_OFFSET = 9;
+	public static final int VALUE_OFFSET = 13;
+	public static final int INFIELDS_OFFSET = 21;
+	public static final int FIXED_SIZE = 23;
+
 	private String strXKey = "";
 	private String strSKey = "";
-	private String strPeriodKey = "";
-	private double dValue = 0;
-	private String strInFields = ""; // Put in key to avoid duplication in data.
+	private int iXId = TSSymbolDictionary.EMPTY;
+	private int iSId = TSSymbolDictionary.EMPTY;
+	private int iPeriodType = TSCalendar.PERIOD_MONTH;
+	private int iPeriodKey = 0;
+	private long lValue = 0;
+	private int iInFields = 0; // Put in key to avoid duplication in data.
+	private TSSymbolDictionary dict = TSSymbolDictionary.NONE;
+	private Configuration config = null;
+
+	// Period types of the header keys for the ascending and descending sort orders.
+	public static final int HEADER_FIRST = Byte.MIN_VALUE;
+	public static final int HEADER_LAST = Byte.MAX_VALUE;
 	
-	public void set(String strX, String strS, String strPeriod, double value) {
+	public void set(String strX, String strS, int iPerType, int iPerKey, long value, int iFlds) {
+
+		// The names usually repeat from one record to the next so only look them up when they change.
+		if (strX != this.strXKey)
+		{
+			this.strXKey = strX;
+			this.iXId = dict.getId(strX);
+		}
+		if (strS != this.strSKey)
+		{
+			this.strSKey = strS;
+			this.iSId = dict.getId(strS);
+		}
+		this.iPeriodType = iPerType;
+		this.iPeriodKey = iPerKey;
+		this.lValue = value;
+		this.iInFields = iFlds;
+
+	}
+
+	public void set(TSCompositeKey other) {
+		this.dict = other.dict;
+		this.strXKey = other.strXKey;
+		this.strSKey = other.strSKey;
+		this.iXId = other.iXId;
+		this.iSId = other.iSId;
+		this.iPeriodType = other.iPeriodType;
+		this.iPeriodKey = other.iPeriodKey;
+		this.lValue = other.lValue;
+		this.iInFields = other.iInFields;
+	}
+
+	// Set the header key of an exchange and symbol. srt is the sort order (1 ascending, -1 descending).
+	public void setHeader(String strX, String strS, int srt) {
+		set(strX, strS, srt > 0 ? HEADER_FIRST : HEADER_LAST, 0, 0, 0);
+	}
+
+	public boolean isHeader() {
+		return iPeriodType == HEADER_FIRST || iPeriodType == HEADER_LAST;
+	}
 
-		this.set(strX, strS, strPeriod, value, "");
+	// The dictionary of the ids of the names. Any names already set get the ids of the dictionary.
+	public void setDictionary(TSSymbolDictionary dict) {
+		this.dict = dict;
+		this.iXId = dict.getId(strXKey);
+		this.iSId = dict.getId(strSKey);
+	}
 
+	public void setConf(Configuration conf) {
+		config = conf;
+		setDictionary(TSSymbolDictionary.getInstance(
+				conf.getTrimmed(TSConfProperties.TIMESERIES_SYMBOLS, TSConfProperties.TIMESERIES_DEFAULT_SYMBOLS)));
 	}
-	public void set(String strX, String strS, String strPeriod, double value, String strFlds) {
 
-		this.strXKey =  strX;
-		this.strSKey = strS;
-		this.strPeriodKey = strPeriod;
-		this.dValue = value;
-		this.strInFields = strFlds;
+	public Configuration getConf() {
+		return config;
+	}
 
+	public void setValue(long value) {
+		this.lValue = value;
+	}
+
+	// Write the names instead of their ids so the key can be read back with another dictionary (binary output files).
+	public void setNamesInline() {
+		if (this.iXId != TSSymbolDictionary.EMPTY)
+			this.iXId = TSSymbolDictionary.INLINE;
+		if (this.iSId != TSSymbolDictionary.EMPTY)
+			this.iSId = TSSymbolDictionary.INLINE;
 	}
 
 	public String getXKey()
@@ -53,9 +146,19 @@ public class TSCompositeKey implements WritableComparable<TSCompositeKey> {
 		return strSKey;
 	}
 	
+	public int getPeriodType()
+	{
+		return iPeriodType;
+	}
+
+	public int getPeriodNum()
+	{
+		return iPeriodKey;
+	}
+
 	public String getPeriodKey()
 	{
-		return strPeriodKey;
+		return TSCalendar.formatPeriodKey(iPeriodType, iPeriodKey);
 	}
 	
 	public String getHdrKey() {
@@ -69,28 +172,70 @@ public class TSCompositeKey implements WritableComparable<TSCompositeKey> {
 	public String getGroupKey() {
 	 String strHdrKey = getHdrKey();
 	  if (strHdrKey.equals(""))
-		 return this.strPeriodKey;
+		 return getPeriodKey();
 	 else
-		return strHdrKey + "-" + this.strPeriodKey;
+		return strHdrKey + "-" + getPeriodKey();
 	}
 
-	public double getValue() {
-		return this.dValue;
+	public long getValue() {
+		return this.lValue;
 	}	
 	
-	public String getInFields() {
-		return this.strInFields;
+	public int getInFieldMask() {
+		return this.iInFields;
 	}
 	
+	public boolean hasInField(int iCol) {
+		return (this.iInFields & (1 << iCol)) != 0;
+	}
+
+	// The input columns in the form of the csvcols template.
+	public String getInFields() {
+		StringBuilder sb = new StringBuilder();
+		String [] cols = {YahooData.TIMESERIES_COL_IDN, YahooData.TIMESERIES_COL_ID, YahooData.TIMESERIES_COL_PER,
+				YahooData.TIMESERIES_COL_XCHNG, YahooData.TIMESERIES_COL_SYM, YahooData.TIMESERIES_COL_DATE,
+				YahooData.TIMESERIES_COL_TS, YahooData.TIMESERIES_COL_OPEN, YahooData.TIMESERIES_COL_HIGH,
+				YahooData.TIMESERIES_COL_LOW, YahooData.TIMESERIES_COL_CLOSE, YahooData.TIMESERIES_COL_VOL,
+				YahooData.TIMESERIES_COL_ADJCLOSE};
+		for (int i = 0; i < cols.length; i++)
+		{
+			if (hasInField(i))
+			{
+				if (sb.length() > 0)
+					sb.append(',');
+				sb.append(cols[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	// Hash of the group key. Used for partitioning.
+	public int groupHashCode() {
+		int h = (iXId == TSSymbolDictionary.INLINE) ? strXKey.hashCode() : iXId;
+		h = h * 31 + ((iSId == TSSymbolDictionary.INLINE) ? strSKey.hashCode() : iSId);
+		h = h * 31 + iPeriodType;
+		return h * 31 + iPeriodKey;
+	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
 
-		this.strXKey = in.readUTF();
-		this.strSKey = in.readUTF();
-		this.strPeriodKey = in.readUTF();
-		this.dValue = in.readDouble();
-		this.strInFields = in.readUTF();
+		this.iXId = in.readInt();
+		this.iSId = in.readInt();
+		this.iPeriodType = in.readByte();
+		this.iPeriodKey = in.readInt();
+		this.lValue = in.readLong();
+		this.iInFields = in.readShort() & 0xFFFF;
+
+		if (iXId == TSSymbolDictionary.INLINE)
+		   this.strXKey = in.readUTF();
+		else
+		   this.strXKey = dict.getName(iXId);
+
+		if (iSId == TSSymbolDictionary.INLINE)
+		   this.strSKey = in.readUTF();
+		else
+		   this.strSKey = dict.getName(iSId);
 
 	}
 	
@@ -105,11 +250,17 @@ public class TSCompositeKey implements WritableComparable<TSCompositeKey> {
 	@Override
 	public void write(DataOutput out) throws IOException {
 
-		out.writeUTF(strXKey);
-		out.writeUTF(strSKey);
-		out.writeUTF(strPeriodKey);
-		out.writeDouble(this.dValue);
-		out.writeUTF(this.strInFields);
+		out.writeInt(iXId);
+		out.writeInt(iSId);
+		out.writeByte(iPeriodType);
+		out.writeInt(iPeriodKey);
+		out.writeLong(lValue);
+		out.writeShort(iInFields);
+
+		if (iXId == TSSymbolDictionary.INLINE)
+		  out.writeUTF(strXKey);
+		if (iSId == TSSymbolDictionary.INLINE)
+		  out.writeUTF(strSKey);
 	}
 
 	@Override
@@ -121,19 +272,37 @@ public class TSCompositeKey implements WritableComparable<TSCompositeKey> {
 	if (strHdrKey.equals("") == false)
 	   sb.append(strHdrKey + ",");
 	
-	sb.append(strPeriodKey).append(',').append(dValue).toString();
+	sb.append(getPeriodKey()).append(',').append(lValue).toString();
 	 
 	return sb.toString();
 	}
 	
+	private static int compareName(int id1, String str1, int id2, String str2) {
+		if (id1 != id2)
+		  return id1 < id2 ? -1 : 1;
+
+		if (id1 == TSSymbolDictionary.INLINE)
+		  return str1.compareTo(str2);
+
+		return 0;
+	}
+
 	public int compareGroupKeyTo(TSCompositeKey other) {
-        int res = 0;
-        
-        res = this.getHdrKey().compareTo(other.getHdrKey());
+        int res = compareName(iXId, strXKey, other.iXId, other.strXKey);
 		if (res != 0)
 		  return res;
 		
-		return this.strPeriodKey.compareTo(other.strPeriodKey);
+		res = compareName(iSId, strSKey, other.iSId, other.strSKey);
+		if (res != 0)
+		  return res;
+
+		if (iPeriodType != other.iPeriodType)
+		  return iPeriodType < other.iPeriodType ? -1 : 1;
+
+		if (iPeriodKey != other.iPeriodKey)
+		  return iPeriodKey < other.iPeriodKey ? -1 : 1;
+
+		return 0;
 	}
 	
 	@Override
@@ -142,10 +311,72 @@ public class TSCompositeKey implements WritableComparable<TSCompositeKey> {
 		if (res != 0)
 		  return res;
 		
-		if (this.dValue == other.dValue)
+		if (this.lValue == other.lValue)
+		  return 0;
+		else
+			return lValue < other.lValue ? -1 : 1;
+	}
+
+	/*
+	 * Compare two serialized keys without deserializing them. Gives the same order as compareTo (or
+	 * compareGroupKeyTo if bGroupOnly is set). The names written inline are compared on the bytes
+	 * of their modified UTF-8 form, which has the same order as the strings for any name without a
+	 * null character.
+	 */
+	public static int compareRaw(byte[] b1, int s1, byte[] b2, int s2, boolean bGroupOnly) {
+
+		int n1 = s1 + FIXED_SIZE;
+		int n2 = s2 + FIXED_SIZE;
+
+		int id1 = WritableComparator.readInt(b1, s1 + XID_OFFSET);
+		int id2 = WritableComparator.readInt(b2, s2 + XID_OFFSET);
+		if (id1 != id2)
+		  return id1 < id2 ? -1 : 1;
+
+		if (id1 == TSSymbolDictionary.INLINE)
+		{
+			int l1 = WritableComparator.readUnsignedShort(b1, n1);
+			int l2 = WritableComparator.readUnsignedShort(b2, n2);
+			int res = WritableComparator.compareBytes(b1, n1 + 2, l1, b2, n2 + 2, l2);
+			if (res != 0)
+			  return res;
+			n1 += l1 + 2;
+			n2 += l2 + 2;
+		}
+
+		id1 = WritableComparator.readInt(b1, s1 + SID_OFFSET);
+		id2 = WritableComparator.readInt(b2, s2 + SID_OFFSET);
+		if (id1 != id2)
+		  return id1 < id2 ? -1 : 1;
+
+		if (id1 == TSSymbolDictionary.INLINE)
+		{
+			int l1 = WritableComparator.readUnsignedShort(b1, n1);
+			int l2 = WritableComparator.readUnsignedShort(b2, n2);
+			int res = WritableComparator.compareBytes(b1, n1 + 2, l1, b2, n2 + 2, l2);
+			if (res != 0)
+			  return res;
+		}
+
+		int t1 = b1[s1 + PERIOD_TYPE_OFFSET];
+		int t2 = b2[s2 + PERIOD_TYPE_OFFSET];
+		if (t1 != t2)
+		  return t1 < t2 ? -1 : 1;
+
+		int p1 = WritableComparator.readInt(b1, s1 + PERIOD_OFFSET);
+		int p2 = WritableComparator.readInt(b2, s2 + PERIOD_OFFSET);
+		if (p1 != p2)
+		  return p1 < p2 ? -1 : 1;
+
+		if (bGroupOnly)
+		  return 0;
+
+		long v1 = WritableComparator.readLong(b1, s1 + VALUE_OFFSET);
+		long v2 = WritableComparator.readLong(b2, s2 + VALUE_OFFSET);
+		if (v1 == v2)
 		  return 0;
 		else
-			return dValue < other.dValue ? -1 : 1;
+		  return v1 < v2 ? -1 : 1;
 	}
 
 	public static class TSKeyComparator extends WritableComparator {
@@ -154,7 +385,7 @@ public class TSCompositeKey implements WritableComparable<TSCompositeKey> {
 		}
 
 		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-			return compareBytes(b1, s1, l1, b2, s2, l2);
+			return compareRaw(b1, s1, b2, s2, false);
 		}
 	}
 
@@ -26,6 +26,25 @@ public class TSConfProperties {
 	public static final String TIMESERIES_ARGS_LCLDEST = "-lcldest";
 	public static final String TIMESERIES_ARGS_DOWNLOAD = "-d";
 	public static final String TIMESERIES_ARGS_YHOO_DOWNLOAD = "-yahooxml";
+	public static final String TIMESERIES_ARGS_WEEK = "-week";
+	public static final String TIMESERIES_ARGS_SYMBOLS = "-symbols";
+	public static final String TIMESERIES_ARGS_MAPAGG = "-mapagg";
+	public static final String TIMESERIES_ARGS_PERIODS = "-periods";
+	public static final String TIMESERIES_ARGS_FUSED = "-fused";
+	public static final String TIMESERIES_ARGS_BATCH = "-batch";
+	public static final String TIMESERIES_ARGS_COMBINEIN = "-combinein";
+	public static final String TIMESERIES_ARGS_CASCADE = "-cascade";
+	public static final String TIMESERIES_ARGS_JOBS = "-jobs";
+	public static final String TIMESERIES_ARGS_STREAM = "-stream";
+	public static final String TIMESERIES_ARGS_INFMT = "-infmt";
+	public static final String TIMESERIES_ARGS_OUTFMT = "-outfmt";
+	public static final String TIMESERIES_ARGS_COMPACT = "-compact";
+	public static final String TIMESERIES_ARGS_PROJECT = "-project";
+	public static final String TIMESERIES_ARGS_ASYNCOUT = "-asyncout";
+	public static final String TIMESERIES_ARGS_REDUCERS = "-reducers";
+	public static final String TIMESERIES_ARGS_REDUCERS_STATS = "-reducerstats";
+	public static final String TIMESERIES_ARGS_ENGINE = "-engine";
+	public static final String TIMESERIES_ARGS_ENGINE_THREADS = "-threads";
 	
 	// Properties in configuration
 	public static final String TIMESERIES_LCLSRC  = "timeseries.lclsrc";
@@ -48,6 +67,130 @@ public class TSConfProperties {
 	public static final String TIMESERIES_PERIOD = "timeseries.period";
 	public static final String TIMESERIES_DEFAULT_PERIOD = "m";
 	
+	/* Reduce several periods (for example y,q,m,w,d) in one job instead of timeseries.period. The mapper outputs
+	 * a key for each period and each period is output to its own directory. Empty for a job per period.
+	 */
+	public static final String TIMESERIES_PERIODS = "timeseries.periods";
+	public static final String TIMESERIES_DEFAULT_PERIODS = "";
+	
+	// Week numbering used for weekly periods. us - weeks start on Sunday, iso - ISO 8601 weeks.
+	public static final String TIMESERIES_WEEK = "timeseries.week";
+	public static final String TIMESERIES_DEFAULT_WEEK = TSCalendar.WEEK_US;
+	
+	// Precompute a lookup table of the calendar fields for the epoch days (t or f).
+	public static final String TIMESERIES_CALTABLE = "timeseries.caltable";
+	public static final String TIMESERIES_DEFAULT_CALTABLE = "t";
+	
+	// Comma separated list of the exchanges and symbols in the data. Written as ids in the map output key (see TSSymbolDictionary).
+	public static final String TIMESERIES_SYMBOLS = "timeseries.symbols";
+	public static final String TIMESERIES_DEFAULT_SYMBOLS = "";
+	
+	// Consolidate the periods in the mapper instead of using a combiner (t or f). Only used by the period reduction.
+	public static final String TIMESERIES_MAPAGG = "timeseries.mapagg";
+	public static final String TIMESERIES_DEFAULT_MAPAGG = "f";
+	
+	// Maximum number of periods held by the mapper before they are output. Each takes roughly 150 bytes.
+	public static final String TIMESERIES_MAPAGG_MAX = "timeseries.mapagg.max";
+	public static final String TIMESERIES_DEFAULT_MAPAGG_MAX = "10000";
+	
+	// Do the period reduction and the record filtering in the one job (t or f). See TSPeriodFusedReducer.
+	public static final String TIMESERIES_FUSED = "timeseries.fused";
+	public static final String TIMESERIES_DEFAULT_FUSED = "f";
+	
+	/* Process all of the input files in one job (t or f). The symbol is taken from the name of each file (unless the
+	 * data has a symbol column) and the output of each symbol is put in its own directory.
+	 */
+	public static final String TIMESERIES_BATCH = "timeseries.batch";
+	public static final String TIMESERIES_DEFAULT_BATCH = "f";
+	
+	// Pack many small input files into each map task (t or f). See TSCombineFileInputFormat.
+	public static final String TIMESERIES_COMBINEIN = "timeseries.combinein";
+	public static final String TIMESERIES_DEFAULT_COMBINEIN = "f";
+	
+	// Maximum number of bytes of input files packed into each map task.
+	public static final String TIMESERIES_COMBINEIN_MAX = "timeseries.combinein.max";
+	public static final String TIMESERIES_DEFAULT_COMBINEIN_MAX = "134217728";
+	
+	/* Roll the coarser periods up from the binary bars of the finer ones (t or f) instead of reducing the raw data
+	 * for each period. Days from the raw data, weeks and months from days, quarters from months and years from quarters.
+	 */
+	public static final String TIMESERIES_CASCADE = "timeseries.cascade";
+	public static final String TIMESERIES_DEFAULT_CASCADE = "f";
+	
+	// Maximum number of jobs run at the same time by the driver (see TSJobScheduler).
+	public static final String TIMESERIES_JOBS_MAX = "timeseries.jobs.max";
+	public static final String TIMESERIES_DEFAULT_JOBS_MAX = "4";
+	
+	// Number of times a failed job is run again.
+	public static final String TIMESERIES_JOBS_RETRIES = "timeseries.jobs.retries";
+	public static final String TIMESERIES_DEFAULT_JOBS_RETRIES = "1";
+	
+	/* Reduce the periods in a map only job without the sort and shuffle (t or f). The input must have the records of
+	 * each period together and in the timeseries.sort order of the dates. See TSStreamMapper.
+	 */
+	public static final String TIMESERIES_STREAM = "timeseries.stream";
+	public static final String TIMESERIES_DEFAULT_STREAM = "f";
+	
+	/* Format of the input files and of the period records output by the reductions. csv - text, seq - binary
+	 * SequenceFiles of the period keys and records (TSCompositeKey, TSData) so the output of one reduction can be
+	 * read by another without formatting and parsing the text. The binary records are turned into csv files when
+	 * they are copied out to timeseries.lcldest.
+	 */
+	public static final String TIMESERIES_INFMT = "timeseries.infmt";
+	public static final String TIMESERIES_OUTFMT = "timeseries.outfmt";
+	public static final String TIMESERIES_FMT_CSV = "csv";
+	public static final String TIMESERIES_FMT_SEQ = "seq";
+	public static final String TIMESERIES_DEFAULT_FMT = TIMESERIES_FMT_CSV;
+	
+	/* Write the records in the shuffle and binary files in the compact form (t or f) with the prices as fixed point
+	 * integers to a number of decimal places (0 to 9). See TSData.
+	 */
+	public static final String TIMESERIES_COMPACT = "timeseries.compact";
+	public static final String TIMESERIES_DEFAULT_COMPACT = "f";
+	public static final String TIMESERIES_COMPACT_PRECISION = "timeseries.compact.precision";
+	public static final String TIMESERIES_DEFAULT_COMPACT_PRECISION = "6";
+	
+	/* Only parse and carry the columns needed by timeseries.outcols, timeseries.filter and timeseries.split (t or f).
+	 * See getRequiredCols. The binary output of the periods (timeseries.outfmt seq) always has all of the columns.
+	 */
+	public static final String TIMESERIES_PROJECT = "timeseries.project";
+	public static final String TIMESERIES_DEFAULT_PROJECT = "f";
+	
+	/* Write the output lines of the record reducers from a background thread (t or f) so the reduce doesn't wait on
+	 * the writes. See TSAsyncOutput.
+	 */
+	public static final String TIMESERIES_ASYNCOUT = "timeseries.asyncout";
+	public static final String TIMESERIES_DEFAULT_ASYNCOUT = "f";
+	
+	/* Number of reducers of each job. With more than one the keys are range partitioned on split points sampled from
+	 * the input (see TSRangePartitioner and TSKeySampler) so the part files of each output file are in order.
+	 */
+	public static final String TIMESERIES_REDUCERS = "timeseries.reducers";
+	public static final String TIMESERIES_DEFAULT_REDUCERS = "1";
+	
+	// Number of input records sampled for the split points of the reducers.
+	public static final String TIMESERIES_REDUCERS_SAMPLES = "timeseries.reducers.samples";
+	public static final String TIMESERIES_DEFAULT_REDUCERS_SAMPLES = "10000";
+	
+	/* Rows of each symbol for the split points of the reducers. A csv file of [exchange,]symbol,rows lines. The
+	 * samples of a symbol in the file count for its rows instead of the rows estimated from the size of the input
+	 * (see TSKeySampler). Used when the input sizes say little about the rows, such as compressed files.
+	 */
+	public static final String TIMESERIES_REDUCERS_STATS = "timeseries.reducers.stats";
+	public static final String TIMESERIES_DEFAULT_REDUCERS_STATS = "";
+	
+	/* Run the reductions with map reduce jobs (hadoop) or in the driver's process (local, see TSLocalEngine). The
+	 * local engine reads and writes csv only and writes the csv files straight to timeseries.lcldest.
+	 */
+	public static final String TIMESERIES_ENGINE = "timeseries.engine";
+	public static final String TIMESERIES_ENGINE_HADOOP = "hadoop";
+	public static final String TIMESERIES_ENGINE_LOCAL = "local";
+	public static final String TIMESERIES_DEFAULT_ENGINE = TIMESERIES_ENGINE_HADOOP;
+	
+	// Threads of the local engine. 0 for one for each processor.
+	public static final String TIMESERIES_ENGINE_THREADS = "timeseries.engine.threads";
+	public static final String TIMESERIES_DEFAULT_ENGINE_THREADS = "0";
+	
 	// Output the column header in the result file.
 	public static final String TIMESERIES_OUTHDR = "timeseries.outhdr";
 	public static final String TIMESERIES_HDRS = "t";
@@ -133,6 +276,7 @@ public class TSConfProperties {
 	// Error checked and cached into local variable for map reduce methods quick use.
 	
 	public String strPeriod = "";
+	public String strPeriods = "";
 	public String strCsvCols = "";
 	public String strOutCols = "";
 	public String strOutHdr = "";
@@ -140,6 +284,30 @@ public class TSConfProperties {
 	public String strSort = "";
 	public String strSplit = "";
 	public String strOutName = "";
+	public String strWeek = "";
+	public String strCalTable = "";
+	public String strSymbols = "";
+	public String strMapAgg = "";
+	public int iMapAggMax = 0;
+	public String strFused = "";
+	public String strBatch = "";
+	public String strCombineIn = "";
+	public int iCombineInMax = 0;
+	public String strCascade = "";
+	public int iJobsMax = 0;
+	public int iJobsRetries = 0;
+	public String strStream = "";
+	public String strInFmt = "";
+	public String strOutFmt = "";
+	public String strCompact = "";
+	public int iCompactPrecision = 0;
+	public String strProject = "";
+	public String strAsyncOut = "";
+	public int iReducers = 0;
+	public int iReducersSamples = 0;
+	public String strReducersStats = "";
+	public String strEngine = "";
+	public int iEngineThreads = 0;
 	
 	// configuration file.
 	public Configuration conf = null;
@@ -176,6 +344,8 @@ public class TSConfProperties {
 	        if (!(name.equals(TIMESERIES_FNAME) || 
 	        	  name.equals(TIMESERIES_LCLSRC) ||
 	        	  name.equals(TIMESERIES_LCLDEST) || 
+	        	  name.equals(TIMESERIES_REDUCERS_STATS) || 
+	        	  name.equals(TIMESERIES_SYMBOLS) || 
 	        	  name.equals(TIMESERIES_YHOO_DOWNLOAD)))
 	          strValue = strValue.toLowerCase();
 		}
@@ -200,6 +370,10 @@ public class TSConfProperties {
 			strPeriod = getProperty(name);
 		break;
 		
+		case TIMESERIES_PERIODS:
+			strPeriods = getProperty(name);
+		break;
+		
 		case TIMESERIES_CSVCOLS:
 			strCsvCols = getProperty(name);
 		break;
@@ -223,6 +397,102 @@ public class TSConfProperties {
 		case TIMESERIES_SPLIT_RECS:
 			strSplit = getProperty(name);
 		break;
+		
+		case TIMESERIES_WEEK:
+			strWeek = getProperty(name);
+		break;
+		
+		case TIMESERIES_CALTABLE:
+			strCalTable = getProperty(name);
+		break;
+		
+		case TIMESERIES_SYMBOLS:
+			strSymbols = getProperty(name);
+		break;
+		
+		case TIMESERIES_MAPAGG:
+			strMapAgg = getProperty(name);
+		break;
+		
+		case TIMESERIES_MAPAGG_MAX:
+			iMapAggMax = getIntProperty(name);
+		break;
+		
+		case TIMESERIES_FUSED:
+			strFused = getProperty(name);
+		break;
+		
+		case TIMESERIES_BATCH:
+			strBatch = getProperty(name);
+		break;
+		
+		case TIMESERIES_COMBINEIN:
+			strCombineIn = getProperty(name);
+		break;
+		
+		case TIMESERIES_COMBINEIN_MAX:
+			iCombineInMax = getIntProperty(name);
+		break;
+		
+		case TIMESERIES_CASCADE:
+			strCascade = getProperty(name);
+		break;
+		
+		case TIMESERIES_JOBS_MAX:
+			iJobsMax = getIntProperty(name);
+		break;
+		
+		case TIMESERIES_JOBS_RETRIES:
+			iJobsRetries = getIntProperty(name);
+		break;
+		
+		case TIMESERIES_STREAM:
+			strStream = getProperty(name);
+		break;
+		
+		case TIMESERIES_INFMT:
+			strInFmt = getProperty(name);
+		break;
+		
+		case TIMESERIES_OUTFMT:
+			strOutFmt = getProperty(name);
+		break;
+		
+		case TIMESERIES_COMPACT:
+			strCompact = getProperty(name);
+		break;
+		
+		case TIMESERIES_COMPACT_PRECISION:
+			iCompactPrecision = getIntProperty(name);
+		break;
+		
+		case TIMESERIES_PROJECT:
+			strProject = getProperty(name);
+		break;
+		
+		case TIMESERIES_ASYNCOUT:
+			strAsyncOut = getProperty(name);
+		break;
+		
+		case TIMESERIES_REDUCERS:
+			iReducers = getIntProperty(name);
+		break;
+		
+		case TIMESERIES_REDUCERS_SAMPLES:
+			iReducersSamples = getIntProperty(name);
+		break;
+		
+		case TIMESERIES_REDUCERS_STATS:
+			strReducersStats = getProperty(name);
+		break;
+		
+		case TIMESERIES_ENGINE:
+			strEngine = getProperty(name);
+		break;
+		
+		case TIMESERIES_ENGINE_THREADS:
+			iEngineThreads = getIntProperty(name);
+		break;
 		}
 	}
 	
@@ -240,6 +510,10 @@ public class TSConfProperties {
 			strValue = TIMESERIES_DEFAULT_PERIOD;
 		break;
 		
+		case TIMESERIES_PERIODS:
+			strValue = TIMESERIES_DEFAULT_PERIODS;
+		break;
+		
 		case TIMESERIES_CSVCOLS:
 			strValue = TIMESERIES_DEFAULT_CSVCOLS;
 		break;
@@ -268,6 +542,99 @@ public class TSConfProperties {
 			strValue = TIMESERIES_DEFAULT_DOWNLOAD;
 		break;
 		
+		case TIMESERIES_WEEK:
+			strValue = TIMESERIES_DEFAULT_WEEK;
+		break;
+		
+		case TIMESERIES_CALTABLE:
+			strValue = TIMESERIES_DEFAULT_CALTABLE;
+		break;
+		
+		case TIMESERIES_SYMBOLS:
+			strValue = TIMESERIES_DEFAULT_SYMBOLS;
+		break;
+		
+		case TIMESERIES_MAPAGG:
+			strValue = TIMESERIES_DEFAULT_MAPAGG;
+		break;
+		
+		case TIMESERIES_MAPAGG_MAX:
+			strValue = TIMESERIES_DEFAULT_MAPAGG_MAX;
+		break;
+		
+		case TIMESERIES_FUSED:
+			strValue = TIMESERIES_DEFAULT_FUSED;
+		break;
+		
+		case TIMESERIES_BATCH:
+			strValue = TIMESERIES_DEFAULT_BATCH;
+		break;
+		
+		case TIMESERIES_COMBINEIN:
+			strValue = TIMESERIES_DEFAULT_COMBINEIN;
+		break;
+		
+		case TIMESERIES_COMBINEIN_MAX:
+			strValue = TIMESERIES_DEFAULT_COMBINEIN_MAX;
+		break;
+		
+		case TIMESERIES_CASCADE:
+			strValue = TIMESERIES_DEFAULT_CASCADE;
+		break;
+		
+		case TIMESERIES_JOBS_MAX:
+			strValue = TIMESERIES_DEFAULT_JOBS_MAX;
+		break;
+		
+		case TIMESERIES_JOBS_RETRIES:
+			strValue = TIMESERIES_DEFAULT_JOBS_RETRIES;
+		break;
+		
+		case TIMESERIES_STREAM:
+			strValue = TIMESERIES_DEFAULT_STREAM;
+		break;
+		
+		case TIMESERIES_INFMT:
+		case TIMESERIES_OUTFMT:
+			strValue = TIMESERIES_DEFAULT_FMT;
+		break;
+		
+		case TIMESERIES_COMPACT:
+			strValue = TIMESERIES_DEFAULT_COMPACT;
+		break;
+		
+		case TIMESERIES_COMPACT_PRECISION:
+			strValue = TIMESERIES_DEFAULT_COMPACT_PRECISION;
+		break;
+		
+		case TIMESERIES_PROJECT:
+			strValue = TIMESERIES_DEFAULT_PROJECT;
+		break;
+		
+		case TIMESERIES_ASYNCOUT:
+			strValue = TIMESERIES_DEFAULT_ASYNCOUT;
+		break;
+		
+		case TIMESERIES_REDUCERS:
+			strValue = TIMESERIES_DEFAULT_REDUCERS;
+		break;
+		
+		case TIMESERIES_REDUCERS_SAMPLES:
+			strValue = TIMESERIES_DEFAULT_REDUCERS_SAMPLES;
+		break;
+		
+		case TIMESERIES_REDUCERS_STATS:
+			strValue = TIMESERIES_DEFAULT_REDUCERS_STATS;
+		break;
+		
+		case TIMESERIES_ENGINE:
+			strValue = TIMESERIES_DEFAULT_ENGINE;
+		break;
+		
+		case TIMESERIES_ENGINE_THREADS:
+			strValue = TIMESERIES_DEFAULT_ENGINE_THREADS;
+		break;
+		
 		default:
 			strValue = "";
 		break;
@@ -285,6 +652,16 @@ public class TSConfProperties {
 	    return strValue;
 	}
 	
+	// Numeric property. Uses the default for a value that is not a number.
+	public int getIntProperty(String name)
+	{
+		try {
+			return Integer.parseInt(getProperty(name));
+		} catch (NumberFormatException e) {
+			return Integer.parseInt(getDefaultPropValue(name));
+		}
+	}
+	
 	// Read in all the configuration properties.
 	public void getConfProperties()
 	{
@@ -294,6 +671,8 @@ public class TSConfProperties {
 		
 		strPeriod = getProperty(TIMESERIES_PERIOD);
  		
+		strPeriods = getProperty(TIMESERIES_PERIODS);
+ 		
 		strCsvCols = getProperty(TIMESERIES_CSVCOLS);
 		
 		strOutCols = getProperty(TIMESERIES_OUTCOLS);
@@ -306,6 +685,162 @@ public class TSConfProperties {
 		
 		strSplit = getProperty(TIMESERIES_SPLIT_RECS);
 		
+		strWeek = getProperty(TIMESERIES_WEEK);
+		
+		strCalTable = getProperty(TIMESERIES_CALTABLE);
+		
+		strSymbols = getProperty(TIMESERIES_SYMBOLS);
+		
+		strMapAgg = getProperty(TIMESERIES_MAPAGG);
+		
+		iMapAggMax = getIntProperty(TIMESERIES_MAPAGG_MAX);
+		
+		strFused = getProperty(TIMESERIES_FUSED);
+		
+		strBatch = getProperty(TIMESERIES_BATCH);
+		
+		strCombineIn = getProperty(TIMESERIES_COMBINEIN);
+		
+		iCombineInMax = getIntProperty(TIMESERIES_COMBINEIN_MAX);
+		
+		strCascade = getProperty(TIMESERIES_CASCADE);
+		
+		iJobsMax = getIntProperty(TIMESERIES_JOBS_MAX);
+		
+		iJobsRetries = getIntProperty(TIMESERIES_JOBS_RETRIES);
+		
+		strStream = getProperty(TIMESERIES_STREAM);
+		
+		strInFmt = getProperty(TIMESERIES_INFMT);
+		
+		strOutFmt = getProperty(TIMESERIES_OUTFMT);
+		
+		strCompact = getProperty(TIMESERIES_COMPACT);
+		
+		iCompactPrecision = getIntProperty(TIMESERIES_COMPACT_PRECISION);
+		
+		strProject = getProperty(TIMESERIES_PROJECT);
+		
+		strAsyncOut = getProperty(TIMESERIES_ASYNCOUT);
+		
+		iReducers = getIntProperty(TIMESERIES_REDUCERS);
+		
+		iReducersSamples = getIntProperty(TIMESERIES_REDUCERS_SAMPLES);
+		
+		strReducersStats = getProperty(TIMESERIES_REDUCERS_STATS);
+		
+		strEngine = getProperty(TIMESERIES_ENGINE);
+		
+		iEngineThreads = getIntProperty(TIMESERIES_ENGINE_THREADS);
+	}
+	
+	// The calendar for dates and period keys of the week numbering.
+	public TSCalendar getCalendar()
+	{
+		return TSCalendar.getInstance(strWeek, strCalTable.equals("t"));
+	}
+	
+	// The dictionary of the ids of the names in the keys (timeseries.symbols).
+	public TSSymbolDictionary getSymbolDictionary()
+	{
+		return TSSymbolDictionary.getInstance(strSymbols);
+	}
+	
+	// The form and fields of the records a task writes (see TSData.setEncoding).
+	public int getEncoding()
+	{
+		return TSData.getEncoding(strCompact.equals("t"), iCompactPrecision, getRequiredCols());
+	}
+	
+	public boolean isRangePartitioned() {
+		return iReducers > 1;
+	}
+	
+	/* The headers of each name are written when the reducer gets the header key of the name (see TSCompositeKey). In
+	 * batch mode with several reducers the output of a name may start in any of them. Otherwise the headers are
+	 * written by the first reducer as it has the first part of every file.
+	 */
+	public boolean isHeaderKeys() {
+		return isBatch() && isRangePartitioned();
+	}
+	
+	public boolean isAsyncOut() {
+		return strAsyncOut.equals("t");
+	}
+	
+	public boolean isLocalEngine() {
+		return strEngine.equals(TIMESERIES_ENGINE_LOCAL);
+	}
+	
+	public boolean isProject() {
+		return strProject.equals("t") && isSeqOut() == false;
+	}
+	
+	/* Columns of the input the job needs as a TSColumnPlan column mask. All of them unless timeseries.project is set.
+	 * The output columns, the columns the filters compare and, when the records are regressed, the columns copied
+	 * into the adjusted close. The adjusted close stands in for any open, high, low or close missing from the input.
+	 */
+	public int getRequiredCols()
+	{
+		if (isProject() == false)
+			return TSColumnPlan.ALL_COLS;
+		
+		int iCols = TSColumnPlan.KEY_COLS;
+		String [] strCols = strOutCols.split(",");
+		for (int i = 0; i < strCols.length; i++)
+		{
+			int iCol = TSColumnPlan.getColCode(strCols[i]);
+			if (iCol >= 0)
+				iCols |= 1 << iCol;
+		}
+		
+		boolean bRegress = strSplit.equals(TIMESERIES_REGRESS) || strSplit.equals(TIMESERIES_ALLRECS);
+		String [] strFilters = strFilter.split(",");
+		for (int i = 0; i < strFilters.length; i++)
+		{
+			int iCol = getFilterCol(strFilters[i].trim(), bRegress);
+			if (iCol >= 0)
+				iCols |= 1 << iCol;
+		}
+		
+		if (bRegress || (iCols & TSColumnPlan.PRICE_COLS) != 0)
+			iCols |= 1 << TSColumnPlan.COL_ADJCLOSE;
+		
+		return iCols;
+	}
+	
+	// Column a record filter uses. The first and last record filters only use the date unless they are regressed.
+	public static int getFilterCol(String strFilter, boolean bRegress)
+	{
+		switch (strFilter)
+		{
+		case TIMESERIES_REC_OPEN:
+			return bRegress ? TSColumnPlan.COL_OPEN : TSColumnPlan.COL_UNKNOWN;
+		case TIMESERIES_REC_HOPEN:
+		case TIMESERIES_REC_LOPEN:
+			return TSColumnPlan.COL_OPEN;
+		case TIMESERIES_REC_HIGH:
+		case TIMESERIES_REC_LHIGH:
+			return TSColumnPlan.COL_HIGH;
+		case TIMESERIES_REC_LOW:
+		case TIMESERIES_REC_HLOW:
+			return TSColumnPlan.COL_LOW;
+		case TIMESERIES_REC_CLOSE:
+			return bRegress ? TSColumnPlan.COL_CLOSE : TSColumnPlan.COL_UNKNOWN;
+		case TIMESERIES_REC_HCLOSE:
+		case TIMESERIES_REC_LCLOSE:
+			return TSColumnPlan.COL_CLOSE;
+		case TIMESERIES_REC_HVOL:
+		case TIMESERIES_REC_LVOL:
+			return TSColumnPlan.COL_VOL;
+		case TIMESERIES_REC_ADJCLOSE:
+			return bRegress ? TSColumnPlan.COL_ADJCLOSE : TSColumnPlan.COL_UNKNOWN;
+		case TIMESERIES_REC_HADJCLOSE:
+		case TIMESERIES_REC_LADJCLOSE:
+			return TSColumnPlan.COL_ADJCLOSE;
+		default:
+			return TSColumnPlan.COL_UNKNOWN;
+		}
 	}
 	
 	public void setConf(Configuration config)
@@ -326,6 +861,73 @@ public class TSConfProperties {
 	    return sname;
 	}
 	
+	// Period types to reduce. Either those in timeseries.periods or the one in timeseries.period.
+	public int [] getPeriodTypes() {
+		if (strPeriods.equals(""))
+		  return new int[] {TSCalendar.getPeriodType(strPeriod)};
+		
+		String [] periods = strPeriods.split(",");
+		int [] types = new int[periods.length];
+		for (int i = 0; i < periods.length; i++)
+			types[i] = TSCalendar.getPeriodType(periods[i].trim());
+		return types;
+	}
+	
+	/* Output file name for a period. When several periods are reduced in one job (timeseries.periods) the output
+	 * of each period is put in its own directory named after the period.
+	 */
+	public String getOutputFileName(int iPeriodType, String strFileId) {
+		return getOutputFileName(strOutName, "", iPeriodType, strFileId);
+	}
+	
+	/* Output file name for a name (symbol), sub directory and period. In batch mode (timeseries.batch) the output of
+	 * each name is put in its own directory. The sub directory (if any) goes between the name and the period.
+	 */
+	public String getOutputFileName(String strName, String strSubDir, int iPeriodType, String strFileId) {
+		if (strPeriods.equals(""))
+		  return getOutputFileName(strFileId);
+		
+		String sname = "";
+		if (isBatch())
+		  sname = strName + FileSystemPath.separator;
+		if (strSubDir.equals("") == false)
+		  sname += strSubDir + FileSystemPath.separator;
+		
+		String strPer = TSCalendar.getPeriodName(iPeriodType);
+		sname += strPer + FileSystemPath.separator + strName + "-" + strPer;
+	    if (strFileId.equals("") == false)
+	    	sname+= "-" + strFileId;
+	    return sname;
+	}
+	
+	// Name used for the output of the key. The symbol (and exchange) in batch mode or the input file name.
+	public String getOutputName(TSCompositeKey key) {
+		if (isBatch())
+		  return key.getHdrKey();
+		
+		return strOutName;
+	}
+	
+	public boolean isBatch() {
+		return strBatch.equals("t");
+	}
+	
+	public boolean isCascade() {
+		return strCascade.equals("t");
+	}
+	
+	public boolean isStream() {
+		return strStream.equals("t");
+	}
+	
+	public boolean isSeqIn() {
+		return strInFmt.equals(TIMESERIES_FMT_SEQ);
+	}
+	
+	public boolean isSeqOut() {
+		return strOutFmt.equals(TIMESERIES_FMT_SEQ);
+	}
+	
 	// Get file name to use based upon input file and conf properties.
 	public String getFileName(String filePath) {
 		if (filePath == null)
@@ -406,6 +1008,101 @@ public class TSConfProperties {
                      */
 					setProperty(TIMESERIES_YHOO_DOWNLOAD, args[++i]);
 
+				} else if (TIMESERIES_ARGS_WEEK.equals(args[i])) {
+                    /* us or iso week numbering for the weekly period.
+                     */
+					setProperty(TIMESERIES_WEEK, args[++i]);
+
+				} else if (TIMESERIES_ARGS_SYMBOLS.equals(args[i])) {
+                    /* Comma separated list of the exchanges and symbols in the data.
+                     */
+					setProperty(TIMESERIES_SYMBOLS, args[++i]);
+
+				} else if (TIMESERIES_ARGS_PERIODS.equals(args[i])) {
+                    /* Comma separated list of the periods to reduce in one job.
+                     */
+					setProperty(TIMESERIES_PERIODS, args[++i]);
+
+				} else if (TIMESERIES_ARGS_FUSED.equals(args[i])) {
+                    /* t to do the period reduction and record filtering in one job.
+                     */
+					setProperty(TIMESERIES_FUSED, args[++i]);
+
+				} else if (TIMESERIES_ARGS_BATCH.equals(args[i])) {
+                    /* t to process all of the input files in one job.
+                     */
+					setProperty(TIMESERIES_BATCH, args[++i]);
+
+				} else if (TIMESERIES_ARGS_COMBINEIN.equals(args[i])) {
+                    /* t to pack many small input files into each map task.
+                     */
+					setProperty(TIMESERIES_COMBINEIN, args[++i]);
+
+				} else if (TIMESERIES_ARGS_CASCADE.equals(args[i])) {
+                    /* t to roll the coarser periods up from the finer ones.
+                     */
+					setProperty(TIMESERIES_CASCADE, args[++i]);
+
+				} else if (TIMESERIES_ARGS_JOBS.equals(args[i])) {
+                    /* Maximum number of jobs to run at the same time.
+                     */
+					setProperty(TIMESERIES_JOBS_MAX, args[++i]);
+
+				} else if (TIMESERIES_ARGS_STREAM.equals(args[i])) {
+                    /* t to reduce the periods of sorted input without the shuffle.
+                     */
+					setProperty(TIMESERIES_STREAM, args[++i]);
+
+				} else if (TIMESERIES_ARGS_INFMT.equals(args[i])) {
+                    /* seq to read the binary period records output by another reduction.
+                     */
+					setProperty(TIMESERIES_INFMT, args[++i]);
+
+				} else if (TIMESERIES_ARGS_OUTFMT.equals(args[i])) {
+                    /* seq to output the period records in binary.
+                     */
+					setProperty(TIMESERIES_OUTFMT, args[++i]);
+
+				} else if (TIMESERIES_ARGS_COMPACT.equals(args[i])) {
+                    /* t to write the records in the compact form.
+                     */
+					setProperty(TIMESERIES_COMPACT, args[++i]);
+
+				} else if (TIMESERIES_ARGS_PROJECT.equals(args[i])) {
+                    /* t to only parse and carry the columns that are needed.
+                     */
+					setProperty(TIMESERIES_PROJECT, args[++i]);
+
+				} else if (TIMESERIES_ARGS_ASYNCOUT.equals(args[i])) {
+                    /* t to write the output lines from a background thread.
+                     */
+					setProperty(TIMESERIES_ASYNCOUT, args[++i]);
+
+				} else if (TIMESERIES_ARGS_REDUCERS.equals(args[i])) {
+                    /* Number of reducers of each job.
+                     */
+					setProperty(TIMESERIES_REDUCERS, args[++i]);
+
+				} else if (TIMESERIES_ARGS_REDUCERS_STATS.equals(args[i])) {
+                    /* File of the rows of each symbol for the split points of the reducers.
+                     */
+					setProperty(TIMESERIES_REDUCERS_STATS, args[++i]);
+
+				} else if (TIMESERIES_ARGS_ENGINE.equals(args[i])) {
+                    /* hadoop or local to run the reductions in this process.
+                     */
+					setProperty(TIMESERIES_ENGINE, args[++i]);
+
+				} else if (TIMESERIES_ARGS_ENGINE_THREADS.equals(args[i])) {
+                    /* Threads of the local engine.
+                     */
+					setProperty(TIMESERIES_ENGINE_THREADS, args[++i]);
+
+				} else if (TIMESERIES_ARGS_MAPAGG.equals(args[i])) {
+                    /* t to consolidate the periods in the mapper instead of using a combiner.
+                     */
+					setProperty(TIMESERIES_MAPAGG, args[++i]);
+
 				} else if (TIMESERIES_ARGS_DOWNLOAD.equals(args[i])) {
                     /* Default is to always download yahoo data if a xml file is specified. This can
                      * be used to suppress this by setting to something other than "t";
@@ -0,0 +1,411 @@
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/*
+ * Byte level parser for the csv lines handed to the mapper.
+ *
+ * The YahooData parse methods turn every line into a String, split it and then parse each field with
+ * Float.valueOf, Long.valueOf and SimpleDateFormat. That is fine for a handful of records but on large
+ * daily and tick archives the map phase ends up dominated by the garbage it creates.
+ *
+ * This class works directly on the byte array of the Text value. The field boundaries and the parsed values
+ * are reused from one line to the next so that parsing a well formed line does not allocate anything. The parsed values are left in the public fields (in the
+ * same way as YahooData) for the mapper to copy into the reused key and data objects.
+ *
+ * Anything out of the ordinary (exponents, NaN, more digits than a long can hold, dates not in the
+ * yyyy-MM-dd form, etc.) is handed back to the standard java parsers so the results always match the
+ * String based parsing in YahooData.
+ *
+ */
+public class TSCsvParser {
+
+	private static final byte [] DATE_HDR = YahooData.TIMESERIES_DATE_HDR.getBytes();
+	private static final byte [] TS_HDR = YahooData.TIMESERIES_TS_HDR.getBytes();
+
+	// Exact powers of ten in double precision.
+	private static final double [] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Largest mantissa that is exactly representable as a double.
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	// Field boundaries of the current line.
+	private int [] iStart = new int[16];
+	private int [] iEnd = new int[16];
+	private int iFields = 0;
+
+	private byte [] bytes = null;
+
+	private final int [] ymd = new int[3];
+
+	// Parsed values of the current line.
+	public String exchange = "";
+	public String symbol = "";
+	public long date = 0;
+	public float open = 0.0f;
+	public float high = 0.0f;
+	public float low = 0.0f;
+	public float close = 0.0f;
+	public long volume = 0;
+	public float adj_close = 0.0f;
+	public String strInFields = "";
+
+	public int getFieldCount()
+	{
+		return iFields;
+	}
+
+	// Find the field boundaries for a line. Returns the number of fields.
+	public int split(byte [] b, int len)
+	{
+		bytes = b;
+		iFields = 0;
+		int s = 0;
+		for (int i = 0; i <= len; i++)
+		{
+			if (i == len || b[i] == ',')
+			{
+				if (iFields == iStart.length)
+				{
+					int [] ns = new int[iStart.length * 2];
+					int [] ne = new int[iEnd.length * 2];
+					System.arraycopy(iStart, 0, ns, 0, iFields);
+					System.arraycopy(iEnd, 0, ne, 0, iFields);
+					iStart = ns;
+					iEnd = ne;
+				}
+				iStart[iFields] = s;
+				iEnd[iFields] = i;
+				iFields++;
+				s = i + 1;
+			}
+		}
+
+		// A trailing comma does not make an extra field when split as a String.
+		while (iFields > 0 && iStart[iFields - 1] == iEnd[iFields - 1])
+			iFields--;
+
+		return iFields;
+	}
+
+	/* Parse the fields of a line that has already been split using a compiled column plan. Returns 0 on success,
+	 * a negative value if a field could not be parsed (same as YahooData.setCol) or 1 if the number of
+	 * columns does not match the plan.
+	 */
+	public int parse(TSColumnPlan plan)
+	{
+		if (iFields != plan.getColCount())
+			return 1;
+
+		reset();
+
+		int ret = 0;
+		for (int i = 0; i < iFields && ret == 0; i++)
+			ret = setCol(plan.getCol(i), iStart[i], iEnd[i]);
+
+		strInFields = plan.getInFields();
+
+		return ret;
+	}
+
+	/* Parse the fields of a line that has already been split with the layout detected from it: the template if the
+	 * line has its number of columns and parses with it, otherwise the standard plan for the number of columns (the
+	 * same fallback as YahooData.parse). Returns the plan the line was parsed with or null if neither parses it.
+	 */
+	public TSColumnPlan parseDetect(TSColumnPlan templatePlan)
+	{
+		if (templatePlan.isValid() && parse(templatePlan) == 0)
+			return templatePlan;
+
+		TSColumnPlan plan = TSColumnPlan.getStandardPlan(iFields);
+		if (plan != null && parse(plan) == 0)
+			return plan;
+		return null;
+	}
+
+	public int parse(byte [] b, int len, TSColumnPlan plan)
+	{
+		split(b, len);
+		return parse(plan);
+	}
+
+	public void reset()
+	{
+		date = 0;
+		open = 0.0f;
+		high = 0.0f;
+		low = 0.0f;
+		close = 0.0f;
+		volume = 0;
+		adj_close = 0.0f;
+	}
+
+	private int setCol(int iCol, int s, int e)
+	{
+	int ret = 0;
+
+	try {
+
+	switch (iCol)
+	{
+	case TSColumnPlan.COL_XCHNG:
+		exchange = getString(exchange, s, e);
+	break;
+
+	case TSColumnPlan.COL_SYM:
+		symbol = getString(symbol, s, e);
+	break;
+
+	case TSColumnPlan.COL_DATE:
+		date = parseDate(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_TS:
+		date = parseLong(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_OPEN:
+		open = parseFloat(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_HIGH:
+		high = parseFloat(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_LOW:
+		low = parseFloat(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_CLOSE:
+		close = parseFloat(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_VOL:
+		volume = parseLong(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_ADJCLOSE:
+		adj_close = parseFloat(bytes, s, e);
+	break;
+
+	// Columns that are not carried through to the reducer.
+	case TSColumnPlan.COL_IDN:
+		parseLong(bytes, s, e);
+	break;
+
+	case TSColumnPlan.COL_ID:
+	case TSColumnPlan.COL_PER:
+	case TSColumnPlan.COL_SKIP:
+	break;
+
+	default:
+		ret = -2;
+	break;
+	}
+
+	} catch (ParseException ex) {
+		ret = -1;
+	} catch (NumberFormatException ex) {
+		ret = -1;
+	}
+
+	return ret;
+	}
+
+	// Reuse the previous string if the bytes have not changed. Symbols and exchanges repeat on every line.
+	private String getString(String strPrev, int s, int e)
+	{
+		while (s < e && bytes[s] <= ' ')
+			s++;
+		while (e > s && bytes[e - 1] <= ' ')
+			e--;
+
+		int l = e - s;
+		if (strPrev.length() == l)
+		{
+			boolean bSame = true;
+			for (int i = 0; i < l && bSame; i++)
+				bSame = strPrev.charAt(i) == bytes[s + i];
+			if (bSame)
+				return strPrev;
+		}
+
+		return new String(bytes, s, l, StandardCharsets.UTF_8);
+	}
+
+	// Is the line a header line? Must have date or timestamp column.
+	public static boolean isHeader(byte [] b, int len)
+	{
+		return containsIgnoreCase(b, len, DATE_HDR) || containsIgnoreCase(b, len, TS_HDR);
+	}
+
+	// Case insensitive search of a line for a lower case ascii pattern.
+	public static boolean containsIgnoreCase(byte [] b, int len, byte [] pattern)
+	{
+		int pl = pattern.length;
+		for (int i = 0; i + pl <= len; i++)
+		{
+			int j = 0;
+			while (j < pl && (b[i + j] | 0x20) == pattern[j])
+				j++;
+			if (j == pl)
+				return true;
+		}
+
+		return false;
+	}
+
+	public static long parseLong(byte [] b, int s, int e) throws NumberFormatException
+	{
+		while (s < e && b[s] <= ' ')
+			s++;
+		while (e > s && b[e - 1] <= ' ')
+			e--;
+
+		if (s == e)
+			return 0;
+
+		boolean bNeg = false;
+		if (b[s] == '-' || b[s] == '+')
+		{
+			bNeg = b[s] == '-';
+			s++;
+		}
+
+		// 18 digits always fit into a long. Leave anything longer to Long.parseLong.
+		if (s == e || e - s > 18)
+			return Long.parseLong(new String(b, s, e - s));
+
+		long l = 0;
+		for (int i = s; i < e; i++)
+		{
+			int d = b[i] - '0';
+			if (d < 0 || d > 9)
+				throw new NumberFormatException("For input string: \"" + new String(b, s, e - s) + "\"");
+			l = l * 10 + d;
+		}
+
+		return bNeg ? -l : l;
+	}
+
+	/* Parse a float from a byte range.
+	 *
+	 * Up to 18 digits are accumulated into a long and divided by an exact power of ten as a double which
+	 * gives the correctly rounded double. Rounding that to a float gives the correctly rounded float unless
+	 * the double lies exactly half way between two floats. That case (and anything else unusual) is passed
+	 * to Float.parseFloat so the result is always identical to Float.valueOf.
+	 */
+	public static float parseFloat(byte [] b, int s, int e) throws NumberFormatException
+	{
+		while (s < e && b[s] <= ' ')
+			s++;
+		while (e > s && b[e - 1] <= ' ')
+			e--;
+
+		if (s == e)
+			return 0.0f;
+
+		int i = s;
+		boolean bNeg = false;
+		if (b[i] == '-' || b[i] == '+')
+		{
+			bNeg = b[i] == '-';
+			i++;
+		}
+
+		long m = 0;
+		int iDigits = 0;
+		int iScale = 0;
+		boolean bPoint = false;
+		boolean bAny = false;
+
+		for (; i < e; i++)
+		{
+			int c = b[i];
+			if (c >= '0' && c <= '9')
+			{
+				bAny = true;
+				if (m == 0 && c == '0')
+				{
+					// leading zeros do not count towards precision.
+					if (bPoint)
+						iScale++;
+					continue;
+				}
+
+				if (++iDigits > 18)
+					return slowParseFloat(b, s, e);
+
+				m = m * 10 + (c - '0');
+				if (bPoint)
+					iScale++;
+			}
+			else if (c == '.' && !bPoint)
+				bPoint = true;
+			else
+				return slowParseFloat(b, s, e);
+		}
+
+		if (!bAny)
+			return slowParseFloat(b, s, e);
+
+		if (m == 0)
+			return bNeg ? -0.0f : 0.0f;
+
+		if (m >= MAX_EXACT_MANTISSA || iScale >= POW10.length)
+			return slowParseFloat(b, s, e);
+
+		double d = (double) m / POW10[iScale];
+
+		// Outside of the normal float range or exactly half way between two floats.
+		if (d < Float.MIN_NORMAL || d > Float.MAX_VALUE ||
+			(Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L)
+			return slowParseFloat(b, s, e);
+
+		float f = (float) d;
+		return bNeg ? -f : f;
+	}
+
+	private static float slowParseFloat(byte [] b, int s, int e) throws NumberFormatException
+	{
+		return Float.parseFloat(new String(b, s, e - s));
+	}
+
+	// Parse a yyyy-MM-dd date into the same time in milliseconds as YahooData.getLongDate.
+	public long parseDate(byte [] b, int s, int e) throws ParseException
+	{
+		while (s < e && b[s] <= ' ')
+			s++;
+		while (e > s && b[e - 1] <= ' ')
+			e--;
+
+		ymd[0] = ymd[1] = ymd[2] = 0;
+		int f = 0;
+		int n = 0;
+		for (int i = s; i < e; i++)
+		{
+			int c = b[i];
+			if (c >= '0' && c <= '9' && n < 9)
+			{
+				ymd[f] = ymd[f] * 10 + (c - '0');
+				n++;
+			}
+			else if (c == '-' && n > 0 && f < 2)
+			{
+				f++;
+				n = 0;
+			}
+			else
+			{
+				f = -1;
+				break;
+			}
+		}
+
+		if (f != 2 || n == 0)
+			return YahooData.getLongDate(new String(b, s, e - s));
+
+		return TSCalendar.daysFromCivil(ymd[0], ymd[1], ymd[2]) * TSCalendar.MS_PER_DAY;
+	}
+}
@@ -3,15 +3,72 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
 
 /*  Class to store and sort data from map to reduce.
  * 
  * This data point class causes data to be sorted by date/time. This is used to reduce the data to
  * weekly, monthly, quarterly and yearly openings and closings.
+ * 
+ * The data is written either in a fixed width form (a long date, five floats and a long volume) or in a compact
+ * form (timeseries.compact) of variable length integers (see WritableUtils.writeVLong):
+ * 
+ *   flags         byte   FLAG_PARTIAL, FLAG_COMPACT and the decimal places of the prices in the upper 4 bits
+ *   epoch day     vlong  day of the date/timestamp
+ *   ms of day     vlong  time of day, 0 for daily data
+ *   open date     vlong  ms from the open date/timestamp to the date/timestamp, partial records only
+ *   close         vlong  close as a fixed point integer (close * 10^decimals)
+ *   open ...      vlong  open, high, low and adjusted close as fixed point differences from the close
+ *   volume        vlong
+ * 
+ * A record is only written in the compact form if all of its prices come back exactly the same at the number of
+ * decimal places, otherwise it is written in the fixed width form. The flags say which form it is in so either
+ * can be read whatever the setting.
+ * 
+ * Only the fields that the job needs are written (timeseries.project). If that is not all of them FLAG_FIELDS is set
+ * and the flags are followed by a byte of the FIELD_ bits of the fields that are written. In the compact form the
+ * prices are then differences from the close only if the close is written. The other fields are zero when read.
+ * 
+ * The form and fields are set on each record that a task writes (setEncoding with TSConfProperties.getEncoding) so
+ * the records of jobs with different settings in the same process don't depend on each other. A record that hasn't
+ * been set is written in the fixed width form with all of its fields.
  */
 public class TSData implements WritableComparable<TSData> {
 //public class TSData  implements Writable, Comparable<TSData> {
 		
+		// Flags written ahead of the data.
+		public static final int FLAG_PARTIAL = 0x01;
+		public static final int FLAG_COMPACT = 0x02;
+		public static final int FLAG_FIELDS = 0x04;
+		private static final int PRECISION_SHIFT = 4;
+		
+		// Decimal places of the fixed point prices of the compact form.
+		public static final int MAX_PRECISION = 9;
+		private static final double [] SCALES = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+		
+		// Prices beyond this are not written as fixed point integers.
+		private static final double MAX_FIXED = 1e15;
+		
+		// Fields that can be left out. The bits are in the same order as the TSColumnPlan column codes.
+		public static final int FIELD_OPEN = 0x01;
+		public static final int FIELD_HIGH = 0x02;
+		public static final int FIELD_LOW = 0x04;
+		public static final int FIELD_CLOSE = 0x08;
+		public static final int FIELD_VOL = 0x10;
+		public static final int FIELD_ADJCLOSE = 0x20;
+		public static final int FIELDS_ALL = 0x3F;
+		
+		// Encoding of the fixed width form with all of the fields (see getEncoding).
+		public static final int ENCODING_DEFAULT = FIELDS_ALL << 8;
+		
+		// Form and fields the record is written in (see setEncoding).
+		private boolean bCompact = false;
+		private int iPrecision = 6;
+		private int iFields = FIELDS_ALL;
+		
+		// Fixed point prices of the record being written in the compact form.
+		private long lOpenFx, lHighFx, lLowFx, lCloseFx, lAdjFx;
+		
 		public long lDateTime = 0;
 		//public float fValue;
 		public float fOpen = 0.0f;
@@ -21,6 +78,14 @@ public class TSData implements WritableComparable<TSData> {
 		public long lVolume = 0;
 		public float fAdj_Close = 0.0f;
 		
+		/* A partial aggregate of the records of a period (output by the combiner). The open is from the record
+		 * with the earliest date (lOpenDateTime) and the close and adjusted close from the record with the latest
+		 * date (lDateTime). The high, low, open and close have already had the adjusted close substituted for any
+		 * column missing from the input.
+		 */
+		public boolean bPartial = false;
+		public long lOpenDateTime = 0;
+		
 		@Override
 		public String toString() {
 		
@@ -38,9 +103,55 @@ public class TSData implements WritableComparable<TSData> {
 		
 		
 
+		/* The form and fields to write as one int, the compact form with prices to a number of decimal places
+		   (timeseries.compact) and only the fields of the columns in a TSColumnPlan column mask (timeseries.project).
+		 */
+		public static int getEncoding(boolean bCompactForm, int iDecimals, int iColMask) {
+			int iDec = Math.max(0, Math.min(MAX_PRECISION, iDecimals));
+			int iFlds = (iColMask >>> TSColumnPlan.COL_OPEN) & FIELDS_ALL;
+			return (iFlds << 8) | (iDec << PRECISION_SHIFT) | (bCompactForm ? FLAG_COMPACT : 0);
+		}
+		
+		// Write the record in the form and with the fields of an encoding (getEncoding).
+		public void setEncoding(int iEncoding) {
+			bCompact = (iEncoding & FLAG_COMPACT) != 0;
+			iPrecision = (iEncoding & 0xFF) >>> PRECISION_SHIFT;
+			iFields = (iEncoding >>> 8) & FIELDS_ALL;
+		}
+		
+		private static boolean has(int iFlds, int iField) {
+			return (iFlds & iField) != 0;
+		}
+		
+		// Price as a fixed point integer. Long.MIN_VALUE if it doesn't come back the same.
+		private static long toFixed(float f, double scale) {
+			double d = f * scale;
+			if (Math.abs(d) >= MAX_FIXED || Double.isNaN(d))
+				return Long.MIN_VALUE;
+			
+			long l = Math.round(d);
+			if ((float) (l / scale) != f)
+				return Long.MIN_VALUE;
+			return l;
+		}
+		
+		private static float fromFixed(long l, double scale) {
+			return (float) (l / scale);
+		}
+		
+		// Set the fixed point prices of the fields written. Returns false if the record can't be written in the compact form.
+		private boolean setFixed(double scale, int iFlds) {
+			lCloseFx = lOpenFx = lHighFx = lLowFx = lAdjFx = 0;
+			return (has(iFlds, FIELD_CLOSE) == false || (lCloseFx = toFixed(fClose, scale)) != Long.MIN_VALUE) &&
+				   (has(iFlds, FIELD_OPEN) == false || (lOpenFx = toFixed(fOpen, scale)) != Long.MIN_VALUE) &&
+				   (has(iFlds, FIELD_HIGH) == false || (lHighFx = toFixed(fHigh, scale)) != Long.MIN_VALUE) &&
+				   (has(iFlds, FIELD_LOW) == false || (lLowFx = toFixed(fLow, scale)) != Long.MIN_VALUE) &&
+				   (has(iFlds, FIELD_ADJCLOSE) == false || (lAdjFx = toFixed(fAdj_Close, scale)) != Long.MIN_VALUE);
+		}
+		
 		public String getDateTime() {
 
-			return YahooData.sdf.format(lDateTime);
+			return YahooData.getDate(lDateTime);
 
 		}
 		
@@ -54,22 +165,49 @@ public class TSData implements WritableComparable<TSData> {
 			this.fClose = source.fClose;
 			this.lVolume = source.lVolume;
 			this.fAdj_Close = source.fAdj_Close;
+			this.bPartial = source.bPartial;
+			this.lOpenDateTime = source.lOpenDateTime;
 
 		}
 
 		@Override
 		public void readFields(DataInput datain) throws IOException {
 
+			int flags = datain.readByte();
+			this.bPartial = (flags & FLAG_PARTIAL) != 0;
+			int iFlds = ((flags & FLAG_FIELDS) != 0) ? datain.readByte() : FIELDS_ALL;
+			if ((flags & FLAG_COMPACT) != 0)
+			{
+			  readCompact(datain, SCALES[(flags & 0xFF) >>> PRECISION_SHIFT], iFlds);
+			  return;
+			}
+			if (bPartial)
+			  this.lOpenDateTime = datain.readLong();
 			this.lDateTime = datain.readLong();
-			this.fOpen = datain.readFloat();
-			this.fHigh = datain.readFloat();
-			this.fLow = datain.readFloat();
-			this.fClose = datain.readFloat();
-			this.lVolume = datain.readLong();
-			this.fAdj_Close = datain.readFloat();
+			this.fOpen = has(iFlds, FIELD_OPEN) ? datain.readFloat() : 0.0f;
+			this.fHigh = has(iFlds, FIELD_HIGH) ? datain.readFloat() : 0.0f;
+			this.fLow = has(iFlds, FIELD_LOW) ? datain.readFloat() : 0.0f;
+			this.fClose = has(iFlds, FIELD_CLOSE) ? datain.readFloat() : 0.0f;
+			this.lVolume = has(iFlds, FIELD_VOL) ? datain.readLong() : 0;
+			this.fAdj_Close = has(iFlds, FIELD_ADJCLOSE) ? datain.readFloat() : 0.0f;
 			
 		}
 
+		private void readCompact(DataInput datain, double scale, int iFlds) throws IOException {
+			
+			long lDay = WritableUtils.readVLong(datain);
+			this.lDateTime = lDay * TSCalendar.MS_PER_DAY + WritableUtils.readVLong(datain);
+			if (bPartial)
+			  this.lOpenDateTime = lDateTime - WritableUtils.readVLong(datain);
+			long lClose = has(iFlds, FIELD_CLOSE) ? WritableUtils.readVLong(datain) : 0;
+			this.fClose = fromFixed(lClose, scale);
+			this.fOpen = has(iFlds, FIELD_OPEN) ? fromFixed(lClose + WritableUtils.readVLong(datain), scale) : 0.0f;
+			this.fHigh = has(iFlds, FIELD_HIGH) ? fromFixed(lClose + WritableUtils.readVLong(datain), scale) : 0.0f;
+			this.fLow = has(iFlds, FIELD_LOW) ? fromFixed(lClose + WritableUtils.readVLong(datain), scale) : 0.0f;
+			this.fAdj_Close = has(iFlds, FIELD_ADJCLOSE) ? fromFixed(lClose + WritableUtils.readVLong(datain), scale) : 0.0f;
+			this.lVolume = has(iFlds, FIELD_VOL) ? WritableUtils.readVLong(datain) : 0;
+		}
+
 		public static TSData read(DataInput datain) throws IOException {
 
 			TSData ts = new TSData();
@@ -81,16 +219,60 @@ public class TSData implements WritableComparable<TSData> {
 		@Override
 		public void write(DataOutput dataout) throws IOException {
 
+			int iFlds = iFields;
+			int flags = (bPartial ? FLAG_PARTIAL : 0) | (iFlds != FIELDS_ALL ? FLAG_FIELDS : 0);
+			
+			if (bCompact && setFixed(SCALES[iPrecision], iFlds))
+			{
+			  writeCompact(dataout, flags, iFlds);
+			  return;
+			}
+			
+			dataout.writeByte(flags);
+			if (iFlds != FIELDS_ALL)
+			  dataout.writeByte(iFlds);
+			if (bPartial)
+			  dataout.writeLong(lOpenDateTime);
 			dataout.writeLong(lDateTime);
-			dataout.writeFloat(fOpen);
-			dataout.writeFloat(fHigh);
-			dataout.writeFloat(fLow);
-			dataout.writeFloat(fClose);
-			dataout.writeLong(lVolume);
-			dataout.writeFloat(fAdj_Close);
+			if (has(iFlds, FIELD_OPEN))
+			  dataout.writeFloat(fOpen);
+			if (has(iFlds, FIELD_HIGH))
+			  dataout.writeFloat(fHigh);
+			if (has(iFlds, FIELD_LOW))
+			  dataout.writeFloat(fLow);
+			if (has(iFlds, FIELD_CLOSE))
+			  dataout.writeFloat(fClose);
+			if (has(iFlds, FIELD_VOL))
+			  dataout.writeLong(lVolume);
+			if (has(iFlds, FIELD_ADJCLOSE))
+			  dataout.writeFloat(fAdj_Close);
 		}
 
 		
+		private void writeCompact(DataOutput dataout, int flags, int iFlds) throws IOException {
+			
+			dataout.writeByte(flags | FLAG_COMPACT | (iPrecision << PRECISION_SHIFT));
+			if (iFlds != FIELDS_ALL)
+			  dataout.writeByte(iFlds);
+			long lDay = TSCalendar.getEpochDay(lDateTime);
+			WritableUtils.writeVLong(dataout, lDay);
+			WritableUtils.writeVLong(dataout, lDateTime - lDay * TSCalendar.MS_PER_DAY);
+			if (bPartial)
+			  WritableUtils.writeVLong(dataout, lDateTime - lOpenDateTime);
+			if (has(iFlds, FIELD_CLOSE))
+			  WritableUtils.writeVLong(dataout, lCloseFx);
+			if (has(iFlds, FIELD_OPEN))
+			  WritableUtils.writeVLong(dataout, lOpenFx - lCloseFx);
+			if (has(iFlds, FIELD_HIGH))
+			  WritableUtils.writeVLong(dataout, lHighFx - lCloseFx);
+			if (has(iFlds, FIELD_LOW))
+			  WritableUtils.writeVLong(dataout, lLowFx - lCloseFx);
+			if (has(iFlds, FIELD_ADJCLOSE))
+			  WritableUtils.writeVLong(dataout, lAdjFx - lCloseFx);
+			if (has(iFlds, FIELD_VOL))
+			  WritableUtils.writeVLong(dataout, lVolume);
+		}
+		
 		@Override
 		public int compareTo(TSData ts2) {
 			if (this.lDateTime < ts2.lDateTime) {
@@ -1,7 +1,11 @@
 import java.io.IOException;
-import org.apache.commons.lang.StringUtils;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -10,11 +14,57 @@ public class TSDataMapper
 	
 	TSConfProperties tsConf = new TSConfProperties();
 	static enum Parse_Counters { LINE_DATA, BAD_DATA, GOOD_DATA };
-	static int icnt = 0;
+	static enum MapAgg_Counters { MAPAGG_RECS, MAPAGG_HITS, MAPAGG_FLUSHES, MAPAGG_OUT };
+	int icnt = 0;
 	
 	private final TSCompositeKey key = new TSCompositeKey();
 	private TSData tsdata = new TSData();
 	
+	// Parses the bytes of each line in place. Reused for every line.
+	private final TSCsvParser parser = new TSCsvParser();
+
+	// The compiled csvcols template and the plan detected from the first data line of the split.
+	private TSColumnPlan templatePlan = null;
+	private TSColumnPlan plan = null;
+
+	// The plan that the lines are parsed with. Only the columns the job needs are parsed (timeseries.project).
+	private TSColumnPlan parsePlan = null;
+	private int iRequiredCols = TSColumnPlan.ALL_COLS;
+
+	// Symbol from the input file name in batch mode (timeseries.batch). Used if the data has no symbol.
+	private String strFileSymbol = "";
+
+	// File of the lines when many files are combined into the split (TSCombineFileInputFormat).
+	private String strInFile = null;
+
+	// Period types used for the keys. One key is output for each period.
+	private int [] iPeriodTypes = null;
+	private TSCalendar cal = TSCalendar.getDefault();
+
+	// Header key of each exchange and symbol, output once by each mapper (see TSConfProperties.isHeaderKeys).
+	private boolean bHeaderKeys = false;
+	private int srt = -1;
+	private final Set<String> hdrNames = new HashSet<String>();
+	private String strHdrX = null;
+	private String strHdrS = null;
+	private final TSCompositeKey hdrkey = new TSCompositeKey();
+	private final TSData hdrdata = new TSData();
+
+	/* Periods consolidated in the mapper (timeseries.mapagg). The group id is a local id for the exchange/symbol
+	   and the period type in the upper half and the packed period key in the lower half.
+	 */
+	private TSPeriodAggMap aggMap = null;
+	private final TSData aggdata = new TSData();
+	private final Map<String, Integer> symIds = new HashMap<String, Integer>();
+	private String strAggX = null;
+	private String strAggS = null;
+	private long lAggSym = 0;
+
+	private Counter lineCounter = null;
+	private Counter badCounter = null;
+	private Counter goodCounter = null;
+	private Counter aggRecCounter = null;
+	private Counter aggHitCounter = null;
 	
 	private static final Log logger = LogFactory.getLog(TSDataMapper.class);
     
@@ -25,6 +75,45 @@ public class TSDataMapper
 		// Setup mapper configuration
 		tsConf.setConf(context.getConfiguration());
 		
+		templatePlan = TSColumnPlan.compile(tsConf.strCsvCols);
+		plan = null;
+		parsePlan = null;
+		iRequiredCols = tsConf.getRequiredCols();
+
+		iPeriodTypes = tsConf.getPeriodTypes();
+		cal = tsConf.getCalendar();
+
+		// The keys and records are written with the dictionary and encoding of the job.
+		key.setDictionary(tsConf.getSymbolDictionary());
+		hdrkey.setDictionary(tsConf.getSymbolDictionary());
+		int iEncoding = tsConf.getEncoding();
+		tsdata.setEncoding(iEncoding);
+		hdrdata.setEncoding(iEncoding);
+		aggdata.setEncoding(iEncoding);
+
+		bHeaderKeys = tsConf.isHeaderKeys();
+		srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+		hdrNames.clear();
+		strHdrX = null;
+		strHdrS = null;
+
+		strFileSymbol = "";
+		strInFile = null;
+		if (tsConf.isBatch() && context.getInputSplit() instanceof FileSplit)
+			strFileSymbol = tsConf.getFileName(((FileSplit) context.getInputSplit()).getPath().getName());
+
+		lineCounter = context.getCounter(Parse_Counters.LINE_DATA);
+		badCounter = context.getCounter(Parse_Counters.BAD_DATA);
+		goodCounter = context.getCounter(Parse_Counters.GOOD_DATA);
+
+		aggMap = null;
+		if (tsConf.strMapAgg.equals("t"))
+		{
+			aggMap = new TSPeriodAggMap(tsConf.iMapAggMax);
+			aggRecCounter = context.getCounter(MapAgg_Counters.MAPAGG_RECS);
+			aggHitCounter = context.getCounter(MapAgg_Counters.MAPAGG_HITS);
+		}
+
         logger.debug("setup has been called " + String.format("Period=%s", tsConf.strPeriod));
         
         
@@ -34,17 +123,24 @@ public class TSDataMapper
   public void map(LongWritable inkey, Text value, Context cntxt)
       throws IOException, InterruptedException {
 	  
-	  cntxt.getCounter(Parse_Counters.LINE_DATA).increment(1);
+	  lineCounter.increment(1);
+	  
+	  // The column layout and symbol belong to the file, start again for each file of a combined split.
+	  if (inkey instanceof TSFileOffsetWritable && ((TSFileOffsetWritable) inkey).getFileName() != strInFile)
+		  {
+		  strInFile = ((TSFileOffsetWritable) inkey).getFileName();
+		  plan = null;
+		  if (tsConf.isBatch())
+			  strFileSymbol = tsConf.getFileName(strInFile);
+		  }
 	  
 	  if (logger.isDebugEnabled())
 	    logger.debug("Map called" + cntxt.getJobName() + " - " + value);
 	  
-		String line = value.toString();
-		String strPeriodKey = "";
-		Integer iCols = 0;
+		byte [] bytes = value.getBytes();
+		int len = value.getLength();
 		
-		if (StringUtils.containsIgnoreCase(line, YahooData.TIMESERIES_DATE_HDR) ||
-				StringUtils.containsIgnoreCase(line, YahooData.TIMESERIES_TS_HDR)	)
+		if (TSCsvParser.isHeader(bytes, len))
 			{
 			/* Must have date or timestamp column.
 			   Ignore header because the header (if any) will be output from setup for the reducer. 
@@ -57,84 +153,147 @@ public class TSDataMapper
 				return;
 			}
 		
-		YahooData ydata = YahooData.parse_template(line, tsConf.strCsvCols);
-		if (ydata == null) 
+		int iCols = parser.split(bytes, len);
+		int ret = 1;
+
+		if (plan == null)
 		{
-			// If not the header record then try and reconfigure using a standard template. 
-			// Good for testing various formats without reconfiguring templates.
-			
-			if (!(StringUtils.containsIgnoreCase(line, YahooData.TIMESERIES_DATE_HDR) ||
-				StringUtils.containsIgnoreCase(line, YahooData.TIMESERIES_TS_HDR)	))
-			ydata = YahooData.parse(line);
+			/* Detect the layout from the first data line. Use the template if the line parses with it,
+			   otherwise try and reconfigure using a standard template. Good for testing various formats
+			   without reconfiguring templates.
+			 */
+			plan = parser.parseDetect(templatePlan);
+			if (plan != null)
+			{
+				ret = 0;
+				parsePlan = (iRequiredCols == TSColumnPlan.ALL_COLS) ? plan : plan.project(iRequiredCols);
+				if (logger.isDebugEnabled())
+					logger.debug(cntxt.getJobName() + ": detected columns " + plan.getInFields());
+			}
 		}
-		
-		if (ydata != null) {
-			
-			 cntxt.getCounter(Parse_Counters.GOOD_DATA).increment(1);
-			 
-			// The number of columns should match the first successfully read record pattern or 
+		else
+		{
+			// The number of columns should match the first successfully read record pattern or
 			// should be rejected.
-			if (iCols == 0) {
-				iCols = ydata.icsvcols;
-			}
-			else {
-			
-				if (iCols != ydata.icsvcols)
-				{
-					if (logger.isDebugEnabled())
-					  logger.debug(cntxt.getJobName() + ": Map bad record columns Expected cols=" + 
-							       String.format("%d",iCols) + String.format(" csv cols=%d",ydata.icsvcols));
-					System.err.println("Possible bad input line: " + value);
-					cntxt.setStatus("Detected bad input line, wrong number of columns.");
-					cntxt.getCounter(Parse_Counters.BAD_DATA).increment(1);
-					return;
-				}
-			}
-			
-			strPeriodKey = ydata.generatePeriodKey(tsConf.strPeriod);
+			ret = parser.parse(parsePlan);
+			if (ret > 0 && logger.isDebugEnabled())
+				logger.debug(cntxt.getJobName() + ": Map bad record columns Expected cols=" +
+						plan.getColCount() + " csv cols=" + iCols);
+		}
+		
+		if (ret == 0) {
 			
-			/* set the key
-			 The group key is set depending upon the period and whether exchange and/or stock symbol data 
-			 exists in the data.
-			*/ 
-			key.set(ydata.exchange, ydata.symbol, strPeriodKey, ydata.date, ydata.strInFields);	
+			goodCounter.increment(1);
 			
 			//Setup the data to be reduced. Get it all as most cases it will be used.
-			tsdata.lDateTime = ydata.date;
-			tsdata.fOpen = ydata.open;	
-			tsdata.fHigh = ydata.high;
-			tsdata.fLow = ydata.low;
-			tsdata.fClose = ydata.close;
-			tsdata.lVolume = ydata.volume;
-			tsdata.fAdj_Close = ydata.adj_close;
+			tsdata.lDateTime = parser.date;
+			tsdata.fOpen = parser.open;
+			tsdata.fHigh = parser.high;
+			tsdata.fLow = parser.low;
+			tsdata.fClose = parser.close;
+			tsdata.lVolume = parser.volume;
+			tsdata.fAdj_Close = parser.adj_close;
 		
-			// now that its parsed, we send it through the shuffle for sort,
-			cntxt.write(key, tsdata);
+			long lDay = TSCalendar.getEpochDay(parser.date);
 
-		} else {
-			// was it the header?
-			if (StringUtils.containsIgnoreCase(line, YahooData.TIMESERIES_DATE_HDR) ||
-				StringUtils.containsIgnoreCase(line, YahooData.TIMESERIES_TS_HDR)	)
+			String strSymbol = parser.symbol;
+			if (strSymbol.equals(""))
+				strSymbol = strFileSymbol;
+
+			if (bHeaderKeys && (parser.exchange != strHdrX || strSymbol != strHdrS))
+				writeHeaderKey(parser.exchange, strSymbol, cntxt);
+
+			for (int i = 0; i < iPeriodTypes.length; i++)
 			{
-			/* Must have date or timestamp column.
-			   Ignore header because the header (if any) will be output from setup for the reducer. 
-		       As an alternative a group key could be generated to act as a placeholder for a header 
-		       because it could be set so that it would always be the first record in output no matter
-		       how many reducers you have.
-			 */
-				if (logger.isDebugEnabled())
-					logger.debug(cntxt.getJobName() + ": encountered header: " + value);
+				/* set the key
+				 The group key is set depending upon the period and whether exchange and/or stock symbol data
+				 exists in the data.
+				*/
+				int iKey = cal.getPeriodKey(iPeriodTypes[i], lDay);
+
+				key.set(parser.exchange, strSymbol, iPeriodTypes[i], iKey, parser.date, plan.getFieldMask());
+
+				output(iPeriodTypes[i], iKey, key, tsdata, cntxt);
 			}
-			else
-			{
+
+		} else {
 			if (logger.isDebugEnabled())
 			  logger.debug(cntxt.getJobName() + ": Map bad parse record: " + value);
 			System.err.println("Possible bad input line: " + value);
 			cntxt.setStatus("Detected bad input line.");
-			cntxt.getCounter(Parse_Counters.BAD_DATA).increment(1);
+			badCounter.increment(1);
+		}
+		
+	}
+  
+	// Output the header key of an exchange and symbol the first time they are seen.
+	private void writeHeaderKey(String strX, String strS, Context cntxt) throws IOException, InterruptedException {
+
+		strHdrX = strX;
+		strHdrS = strS;
+		if (hdrNames.add(strX + "\t" + strS))
+		{
+			hdrkey.setHeader(strX, strS, srt);
+			cntxt.write(hdrkey, hdrdata);
+		}
+	}
+  
+	// Output the record for a period. Now that its parsed, we send it through the shuffle for sort (or consolidate it first).
+	protected void output(int iPeriodType, int iKey, TSCompositeKey key, TSData tsdata, Context cntxt)
+			throws IOException, InterruptedException {
+
+		if (aggMap != null)
+			aggregate(iPeriodType, iKey, cntxt);
+		else
+			cntxt.write(key, tsdata);
+	}
+  
+	// Add the record to the partial aggregate for its period. Output all of the periods if the map is full.
+	private void aggregate(int iType, int iKey, Context cntxt) throws IOException, InterruptedException {
+
+		if (key.getXKey() != strAggX || key.getSKey() != strAggS)
+		{
+			strAggX = key.getXKey();
+			strAggS = key.getSKey();
+			String strName = strAggX + "\t" + strAggS;
+			Integer id = symIds.get(strName);
+			if (id == null)
+			{
+				id = symIds.size();
+				symIds.put(strName, id);
 			}
+			lAggSym = id.longValue() << 35;
+		}
+
+		aggRecCounter.increment(1);
+		if (aggMap.add(lAggSym | ((long) (iType & 0x7) << 32) | (iKey & 0xFFFFFFFFL), key, tsdata))
+			aggHitCounter.increment(1);
+		else if (aggMap.isFull())
+			flush(cntxt);
+	}
+
+	private void flush(Context cntxt) throws IOException, InterruptedException {
 
+		for (int i = 0; i < aggMap.capacity(); i++)
+		{
+			if (aggMap.isUsed(i))
+			{
+				aggMap.getAccumulator(i).get(aggdata);
+				TSCompositeKey aggkey = aggMap.getKey(i);
+				aggkey.setValue(aggdata.lDateTime);
+				cntxt.write(aggkey, aggdata);
+			}
 		}
-		
+
+		cntxt.getCounter(MapAgg_Counters.MAPAGG_FLUSHES).increment(1);
+		cntxt.getCounter(MapAgg_Counters.MAPAGG_OUT).increment(aggMap.size());
+		aggMap.clear();
+	}
+
+	@Override
+	public void cleanup(Context cntxt) throws IOException, InterruptedException {
+
+		if (aggMap != null && aggMap.size() > 0)
+			flush(cntxt);
 	}
   }
@@ -0,0 +1,47 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+
+/*
+ * Input key of the TSCombineFileInputFormat. The byte offset of the line in its file (the same as the key of the
+ * TextInputFormat) and the name of the file the line is from.
+ *
+ * A combined split holds the lines of many files so the mapper can't get the file from the input split. The file
+ * name is only changed when the reader moves to the next file so the mapper can check for a new file by reference.
+ *
+ */
+public class TSFileOffsetWritable extends LongWritable {
+
+	private String strFileName = "";
+
+	public TSFileOffsetWritable() {
+		super();
+	}
+
+	public String getFileName() {
+		return strFileName;
+	}
+
+	public void setFileName(String strFileName) {
+		this.strFileName = strFileName;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		super.write(out);
+		out.writeUTF(strFileName);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		super.readFields(in);
+		strFileName = in.readUTF();
+	}
+
+	@Override
+	public String toString() {
+		return strFileName + ":" + super.toString();
+	}
+}
@@ -0,0 +1,418 @@
+/*
+ * The record filters of a period.
+ * 
+ * The filter names are compiled once (Setup) into an operation and the field it compares for each filter. While
+ * the values of a group are filtered only the best value of each filter and the record it came from are kept. A
+ * record is copied once when it becomes the best for any of the filters (into a small pool of records shared by
+ * the filters) instead of into each filter it is better for. The records of the filters are only set (sort) once
+ * all of the values have been filtered.
+ * 
+ * The records are sorted by date so the records with the same date are next to each other when the duplicates
+ * are marked. Records with the same date stay in the order of the last group unless bFilterOrder is set, then
+ * each group starts from the order of the filters so the order doesn't depend on the groups reduced before.
+ */
+class TSFilteredRecs {
+		
+		// Filter operations. A filter keeps the first record unless a later one is strictly better.
+		static final int OP_NONE = 0;
+		static final int OP_FIRST = 1;
+		static final int OP_LAST = 2;
+		static final int OP_MAX = 3;
+		static final int OP_MIN = 4;
+		static final int OP_MAX_VOL = 5;
+		static final int OP_MIN_VOL = 6; // lowest non zero volume.
+		
+		// Price fields compared by the filters and copied into the adjusted close when regressed.
+		static final int FLD_NONE = -1;
+		static final int FLD_OPEN = 0;
+		static final int FLD_HIGH = 1;
+		static final int FLD_LOW = 2;
+		static final int FLD_CLOSE = 3;
+		static final int FLD_ADJCLOSE = 4;
+		
+		public TSRecData [] recs = new TSRecData[0];  
+		public boolean bFilterOrder = false;
+		
+		// Compiled filters by filter id.
+		private int [] iOps = new int[0];
+		private int [] iFlds = new int[0];
+		private int [] iRegressFlds = new int[0];
+		
+		// Best value of each filter and the pool record it came from.
+		private long [] lBest = new long[0];
+		private float [] fBest = new float[0];
+		private int [] iWinners = new int[0];
+		
+		// Records that are the best for at least one filter and the number of filters each is the best for.
+		private TSData [] pool = new TSData[0];
+		private int [] iRefs = new int[0];
+		
+		private final float [] fVals = new float[FLD_ADJCLOSE + 1];
+		
+		public static TSFilteredRecs Copy(TSFilteredRecs tsRecs)
+		{
+			TSFilteredRecs tsr = new TSFilteredRecs();	
+            tsr.recs = new TSRecData[tsRecs.recs.length];
+			
+			for (int i = 0; i < tsr.recs.length; i++ )
+			{
+				TSRecData ts = new TSRecData();
+				ts.copy(tsRecs.recs[i]);
+			    tsr.recs[i] = ts;
+			}
+			
+			tsr.compile();
+			return tsr;
+		}
+		
+		void reset()
+		{
+		  for (int i = 0; i < recs.length; i++ )
+		  {
+			recs[i].bUniqueData = true;
+			recs[i].bUniqueDate = true;
+		  }
+		}
+		
+		public void Setup(String strFilterList, String strSort)
+		{
+			String [] strFilters = strFilterList.split(",");
+			
+			recs = new TSRecData[strFilters.length];
+			
+			for (int i = 0; i < recs.length; i++ )
+			{
+				TSRecData ts = new TSRecData();
+				recs[i] = ts;
+				ts.srt = strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+			    ts.strFilterName = strFilters[i];
+			    ts.iFilterId = i;
+			}
+			
+			compile();
+		}
+		
+		// Compile the filter names of the records.
+		private void compile()
+		{
+			int n = recs.length;
+			iOps = new int[n];
+			iFlds = new int[n];
+			iRegressFlds = new int[n];
+			lBest = new long[n];
+			fBest = new float[n];
+			iWinners = new int[n];
+			pool = new TSData[n + 1];
+			iRefs = new int[n + 1];
+			for (int i = 0; i < pool.length; i++)
+				pool[i] = new TSData();
+		
+			for (int i = 0; i < n; i++)
+			{
+				int id = recs[i].iFilterId;
+				iOps[id] = OP_NONE;
+				iFlds[id] = FLD_NONE;
+				iRegressFlds[id] = FLD_NONE;
+				
+				switch (recs[i].strFilterName)
+				{
+				case TSConfProperties.TIMESERIES_REC_OPEN:
+					iOps[id] = OP_FIRST;
+					iRegressFlds[id] = FLD_OPEN;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_HOPEN:
+					iOps[id] = OP_MAX;
+					iFlds[id] = iRegressFlds[id] = FLD_OPEN;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_LOPEN:
+					iOps[id] = OP_MIN;
+					iFlds[id] = iRegressFlds[id] = FLD_OPEN;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_HIGH:
+					iOps[id] = OP_MAX;
+					iFlds[id] = iRegressFlds[id] = FLD_HIGH;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_LHIGH:
+					iOps[id] = OP_MIN;
+					iFlds[id] = iRegressFlds[id] = FLD_HIGH;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_LOW:
+					iOps[id] = OP_MIN;
+					iFlds[id] = iRegressFlds[id] = FLD_LOW;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_HLOW:
+					iOps[id] = OP_MAX;
+					iFlds[id] = iRegressFlds[id] = FLD_LOW;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_CLOSE:
+					iOps[id] = OP_LAST;
+					iRegressFlds[id] = FLD_CLOSE;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_HCLOSE:
+					iOps[id] = OP_MAX;
+					iFlds[id] = iRegressFlds[id] = FLD_CLOSE;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_LCLOSE:
+					iOps[id] = OP_MIN;
+					iFlds[id] = iRegressFlds[id] = FLD_CLOSE;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_HVOL:
+					iOps[id] = OP_MAX_VOL;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_LVOL:
+					iOps[id] = OP_MIN_VOL;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_ADJCLOSE:
+					iOps[id] = OP_LAST;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_HADJCLOSE:
+					iOps[id] = OP_MAX;
+					iFlds[id] = FLD_ADJCLOSE;
+					break;
+					
+				case TSConfProperties.TIMESERIES_REC_LADJCLOSE:
+					iOps[id] = OP_MIN;
+					iFlds[id] = FLD_ADJCLOSE;
+					break;
+					
+				default:
+				break;
+				}
+			}
+		}
+		
+		private void setVals(TSData tsdata)
+		{
+			fVals[FLD_OPEN] = tsdata.fOpen;
+			fVals[FLD_HIGH] = tsdata.fHigh;
+			fVals[FLD_LOW] = tsdata.fLow;
+			fVals[FLD_CLOSE] = tsdata.fClose;
+			fVals[FLD_ADJCLOSE] = tsdata.fAdj_Close;
+		}
+		
+		// Set the best value of a filter from a record.
+		private void setBest(int id, TSData tsdata)
+		{
+			switch (iOps[id])
+			{
+			case OP_FIRST:
+			case OP_LAST:
+				lBest[id] = tsdata.lDateTime;
+				break;
+				
+			case OP_MAX_VOL:
+			case OP_MIN_VOL:
+				lBest[id] = tsdata.lVolume;
+				break;
+				
+			case OP_MAX:
+			case OP_MIN:
+				fBest[id] = fVals[iFlds[id]];
+				break;
+				
+			default:
+			break;
+			}
+		}
+		
+		// Set each filter item to the first data record of a group.
+		public void first(TSData tsdata)
+		{
+			for (int i = 0; i < iRefs.length; i++)
+				iRefs[i] = 0;
+			
+			pool[0].copy(tsdata);
+			iRefs[0] = iWinners.length;
+			setVals(tsdata);
+			for (int id = 0; id < iWinners.length; id++)
+			{
+				iWinners[id] = 0;
+				setBest(id, tsdata);
+			}
+		}
+		
+		// Keep the data record for each filter item that it is a better match for.
+		public void filter(TSData tsdata)
+		{
+		  int iRec = -1;
+		  long lDate = tsdata.lDateTime;
+		  long lVol = tsdata.lVolume;
+		  setVals(tsdata);
+		  
+		  for (int id = 0; id < iOps.length; id++)
+		    {
+			boolean bBetter;
+			switch (iOps[id])
+			{
+			case OP_FIRST:
+				bBetter = lDate < lBest[id];
+				break;
+				
+			case OP_LAST:
+				bBetter = lDate > lBest[id];
+				break;
+				
+			case OP_MAX:
+				bBetter = fVals[iFlds[id]] > fBest[id];
+				break;
+				
+			case OP_MIN:
+				bBetter = fVals[iFlds[id]] < fBest[id];
+				break;
+				
+			case OP_MAX_VOL:
+				bBetter = lVol > lBest[id];
+				break;
+				
+			case OP_MIN_VOL:
+				bBetter = (lBest[id] == 0) ? lVol > lBest[id] : (lVol != 0 && lVol < lBest[id]);
+				break;
+				
+			default:
+				bBetter = false;
+			break;
+			}
+			
+			if (bBetter)
+			{
+				// Copy the record the first time it is better than any of the filters.
+				if (iRec < 0)
+				{
+					iRec = 0;
+					while (iRefs[iRec] > 0)
+						iRec++;
+					pool[iRec].copy(tsdata);
+				}
+				
+				iRefs[iWinners[id]]--;
+				iWinners[id] = iRec;
+				iRefs[iRec]++;
+				setBest(id, tsdata);
+			}
+			}
+		}
+		
+		// Set the records of the filters and sort them by date. The sort is stable and there are few records.
+		public void sort()
+		{
+		for (int i = 0; i < recs.length; i++)
+			recs[i].tsdata.copy(pool[iWinners[recs[i].iFilterId]]);
+		
+		// Put the records back in filter id order.
+		if (bFilterOrder)
+		  for (int i = 0; i < recs.length; i++)
+		    while (recs[i].iFilterId != i)
+		    {
+			  TSRecData ts = recs[recs[i].iFilterId];
+			  recs[recs[i].iFilterId] = recs[i];
+			  recs[i] = ts;
+		    }
+		
+		for (int i = 1; i < recs.length; i++)
+		  {
+			TSRecData ts = recs[i];
+			int j = i - 1;
+			while (j >= 0 && recs[j].compareTo(ts) > 0)
+			  {
+				recs[j + 1] = recs[j];
+				j--;
+			  }
+			recs[j + 1] = ts;
+		  }
+		}
+		
+		// mark records that are the same (date and data) as an earlier record. The records must be sorted by date.
+		public void markDupeRecs()
+		{
+		for(int i = 0; i < recs.length; i++)
+		  {
+		  TSRecData ts1 = recs[i];
+		  if (ts1.bUniqueDate)
+		    {
+		    for (int j = i+1; j < recs.length && recs[j].tsdata.lDateTime == ts1.tsdata.lDateTime; j++)
+		      {
+			  TSRecData ts2 = recs[j];
+			  if (ts2.bUniqueDate && sameRecord(ts1.tsdata, ts2.tsdata))
+			       ts2.bUniqueDate = false;
+		      }
+		    }
+		  }
+		}
+		
+		private static boolean sameRecord(TSData ts1, TSData ts2)
+		{
+			return ts1.lDateTime == ts2.lDateTime && ts1.fOpen == ts2.fOpen && ts1.fHigh == ts2.fHigh &&
+				   ts1.fLow == ts2.fLow && ts1.fClose == ts2.fClose && ts1.lVolume == ts2.lVolume &&
+				   ts1.fAdj_Close == ts2.fAdj_Close;
+		}
+		
+		// mark duplicate dates. The records must be sorted by date so only the first of each date is unique.
+		public void markDupeDate()
+		{
+		for(int i = 1; i < recs.length; i++)
+		  {
+		  if (recs[i].tsdata.lDateTime == recs[i - 1].tsdata.lDateTime)
+		    recs[i].bUniqueDate = false;
+		  }
+		}
+		
+		public void regressData()
+		{
+			for(int i = 0; i < recs.length; i++)
+			  {
+			  TSRecData ts = recs[i];
+			  switch (iRegressFlds[ts.iFilterId])
+				{
+				case FLD_OPEN:
+					ts.tsdata.fAdj_Close = ts.tsdata.fOpen;
+					break;			
+					
+				case FLD_HIGH:
+					ts.tsdata.fAdj_Close = ts.tsdata.fHigh;
+					break;
+				
+				case FLD_LOW:
+					ts.tsdata.fAdj_Close = ts.tsdata.fLow;
+					break;
+					
+				case FLD_CLOSE:
+					ts.tsdata.fAdj_Close = ts.tsdata.fClose;
+					break;
+					
+				default:
+				break;
+				}
+			  }
+		}
+		
+		// mark duplicate dates,adjusted close pairs. The records must be sorted by date.
+		public void markDupeData()
+		{
+		for(int i = 0; i < recs.length; i++)
+		  {
+		  TSRecData ts1 = recs[i];
+		  if (ts1.bUniqueData)
+		    {
+		    for (int j = i+1; j < recs.length && recs[j].tsdata.lDateTime == ts1.tsdata.lDateTime; j++)
+		      {
+			  TSRecData ts2 = recs[j];
+			  if (ts2.bUniqueData && ts2.tsdata.fAdj_Close == ts1.tsdata.fAdj_Close)
+			       ts2.bUniqueData = false;
+		      }
+		    }
+		  }
+		}
+}
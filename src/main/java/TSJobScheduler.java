@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/*
+ * Runs a graph of map reduce jobs (and other tasks such as copying out the results) instead of one job at a time.
+ *
+ * Each node of the graph is a job or a task that runs after the nodes it depends on have finished. Jobs whose
+ * dependencies have finished are submitted (Job.submit) up to the maximum number of jobs running at once
+ * (timeseries.jobs.max) and polled until they complete. Tasks are run in the scheduler thread as soon as they can.
+ *
+ * A failed job is run again up to timeseries.jobs.retries times from a copy of its configuration as it was when
+ * it was added, after deleting any output of the failed attempt.
+ *
+ * Each node has its own failure policy. If a node that continues on failure fails (after its retries) it counts as
+ * finished and the rest of the graph carries on, this is the same as the driver has always done. Otherwise no more
+ * nodes are started, the running jobs are left to complete and the run fails. A node that needs the output of
+ * another (requires) fails without running when that one fails, so nothing is made from the output of a failed job.
+ *
+ */
+public class TSJobScheduler {
+
+	// Node states.
+	public static final int WAITING = 0;
+	public static final int RUNNING = 1;
+	public static final int SUCCEEDED = 2;
+	public static final int FAILED = 3;
+	public static final int SKIPPED = 4;
+
+	private static final String [] STATE_NAMES = {"waiting", "running", "succeeded", "failed", "skipped"};
+
+	// Milliseconds between checks on the running jobs.
+	private static final long POLL_INTERVAL = 500;
+
+	// Milliseconds between progress reports when nothing has changed.
+	private static final long REPORT_INTERVAL = 10000;
+
+	public static class Node {
+		private final String strName;
+		private final Job job;
+		private final Configuration jobConf;
+		private final Callable<Boolean> task;
+		private final List<Node> deps = new ArrayList<Node>();
+		// Dependencies whose output the node uses, it isn't run if one of them fails.
+		private final List<Node> required = new ArrayList<Node>();
+		private boolean bContinueOnFailure = true;
+		private int iState = WAITING;
+		private int iAttempts = 0;
+		private Job running = null;
+
+		private Node(String strName, Job job, Callable<Boolean> task) {
+			this.strName = strName;
+			this.job = job;
+			// The job configuration is changed when it is submitted so keep a copy for the retries.
+			this.jobConf = (job == null) ? null : new Configuration(job.getConfiguration());
+			this.task = task;
+		}
+
+		public Node dependsOn(Node node) {
+			if (node != null)
+				deps.add(node);
+			return this;
+		}
+
+		// Run after the node and only if it succeeds. The node fails without running if the required node fails.
+		public Node requires(Node node) {
+			if (node != null)
+			{
+				deps.add(node);
+				required.add(node);
+			}
+			return this;
+		}
+
+		public Node setContinueOnFailure(boolean bContinueOnFailure) {
+			this.bContinueOnFailure = bContinueOnFailure;
+			return this;
+		}
+
+		public String getName() {
+			return strName;
+		}
+
+		public int getState() {
+			return iState;
+		}
+
+		// Dependents can run after the node succeeds or fails when it continues on failure.
+		private boolean isFinished() {
+			return iState == SUCCEEDED || (iState == FAILED && bContinueOnFailure);
+		}
+
+		private boolean isRequiredFailed() {
+			for (int i = 0; i < required.size(); i++)
+				if (required.get(i).iState != SUCCEEDED)
+					return true;
+			return false;
+		}
+	}
+
+	private final List<Node> nodes = new ArrayList<Node>();
+	private final int iMaxJobs;
+	private final int iRetries;
+
+	public TSJobScheduler(int iMaxJobs, int iRetries) {
+		this.iMaxJobs = Math.max(iMaxJobs, 1);
+		this.iRetries = Math.max(iRetries, 0);
+	}
+
+	public Node addJob(Job job) {
+		Node node = new Node(job.getJobName(), job, null);
+		nodes.add(node);
+		return node;
+	}
+
+	public Node addTask(String strName, Callable<Boolean> task) {
+		Node node = new Node(strName, null, task);
+		nodes.add(node);
+		return node;
+	}
+
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	// Run all of the nodes. Returns 0 if none failed except for those that continue on failure.
+	public int run() throws Exception {
+		List<Node> lstRunning = new ArrayList<Node>();
+		boolean bStop = false;
+		int iFinished = 0;
+		long lReported = 0;
+
+		while (true)
+		{
+			boolean bChanged = false;
+
+			// Check on the running jobs.
+			for (int i = lstRunning.size() - 1; i >= 0; i--)
+			{
+				Node node = lstRunning.get(i);
+				if (node.running.isComplete() == false)
+					continue;
+
+				lstRunning.remove(i);
+				bChanged = true;
+				if (node.running.isSuccessful())
+					node.iState = SUCCEEDED;
+				else if (node.iAttempts <= iRetries)
+				{
+					System.out.println("Job failed, retrying " + node.strName);
+					node.iState = WAITING;
+					continue;
+				}
+				else
+					node.iState = FAILED;
+
+				iFinished++;
+				if (node.iState == FAILED && node.bContinueOnFailure == false)
+					bStop = true;
+			}
+
+			// Start the nodes whose dependencies have finished.
+			for (int i = 0; i < nodes.size() && bStop == false; i++)
+			{
+				Node node = nodes.get(i);
+				if (node.iState != WAITING || isReady(node) == false)
+					continue;
+
+				if (node.isRequiredFailed())
+				{
+					bChanged = true;
+					iFinished++;
+					node.iState = FAILED;
+					System.out.println("Not running " + node.strName + " as a job it needs failed");
+					if (node.bContinueOnFailure == false)
+						bStop = true;
+				}
+				else if (node.task != null)
+				{
+					bChanged = true;
+					iFinished++;
+					node.iState = runTask(node) ? SUCCEEDED : FAILED;
+					if (node.iState == FAILED && node.bContinueOnFailure == false)
+						bStop = true;
+				}
+				else if (lstRunning.size() < iMaxJobs)
+				{
+					bChanged = true;
+					if (submit(node))
+						lstRunning.add(node);
+					else
+					{
+						iFinished++;
+						if (node.bContinueOnFailure == false)
+							bStop = true;
+					}
+				}
+			}
+
+			long lNow = System.currentTimeMillis();
+			if (bChanged || lNow - lReported >= REPORT_INTERVAL)
+			{
+				printProgress(iFinished, lstRunning);
+				lReported = lNow;
+			}
+
+			if (lstRunning.isEmpty() && (bStop || hasReady() == false))
+				break;
+
+			if (lstRunning.isEmpty() == false)
+				Thread.sleep(POLL_INTERVAL);
+		}
+
+		int ret = 0;
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			Node node = nodes.get(i);
+			if (node.iState == WAITING)
+				node.iState = SKIPPED;
+			if ((node.iState == FAILED && node.bContinueOnFailure == false) || node.iState == SKIPPED)
+				ret = 1;
+			if (node.iState != SUCCEEDED)
+				System.out.println("Job " + STATE_NAMES[node.iState] + ": " + node.strName);
+		}
+
+		return ret;
+	}
+
+	private boolean isReady(Node node) {
+		for (int i = 0; i < node.deps.size(); i++)
+			if (node.deps.get(i).isFinished() == false)
+				return false;
+		return true;
+	}
+
+	private boolean hasReady() {
+		for (int i = 0; i < nodes.size(); i++)
+			if (nodes.get(i).iState == WAITING && isReady(nodes.get(i)))
+				return true;
+		return false;
+	}
+
+	private boolean runTask(Node node) {
+		System.out.println("Executing Task " + node.strName);
+		try {
+			return node.task.call();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	// Submit the job or a copy of it for a retry. Returns false if none of the attempts could be submitted.
+	private boolean submit(Node node) {
+		while (node.iAttempts <= iRetries)
+		{
+			node.iAttempts++;
+			try {
+				Job job = node.job;
+				if (node.iAttempts > 1)
+				{
+					job = Job.getInstance(new Configuration(node.jobConf), node.strName);
+					Path outPath = FileOutputFormat.getOutputPath(job);
+					if (outPath != null)
+						outPath.getFileSystem(job.getConfiguration()).delete(outPath, true);
+				}
+
+				System.out.println("Executing Job " + node.strName);
+				job.submit();
+				node.running = job;
+				node.iState = RUNNING;
+				return true;
+
+			} catch (Exception e) {
+				System.out.println("ERROR: Could not submit job " + node.strName + " " + e.getMessage());
+			}
+		}
+
+		node.iState = FAILED;
+		return false;
+	}
+
+	private void printProgress(int iFinished, List<Node> lstRunning) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Jobs finished ").append(iFinished).append(" of ").append(nodes.size());
+		for (int i = 0; i < lstRunning.size(); i++)
+		{
+			Job job = lstRunning.get(i).running;
+			sb.append(String.format("\n  %s map %.0f%% reduce %.0f%%", job.getJobName(),
+					job.mapProgress() * 100.0f, job.reduceProgress() * 100.0f));
+		}
+		System.out.println(sb.toString());
+	}
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.LineReader;
+
+/*
+ * Samples the input files of a job for the split points of the TSRangePartitioner (timeseries.reducers).
+ *
+ * Like the InputSampler of the TotalOrderPartitioner, but the records are read from the input files in the same way as
+ * the mappers (the csv layout detected from the first data line of the file or the keys of binary input) since the
+ * keys only exist once the mapper has parsed the line. Each file gives a number of the timeseries.reducers.samples
+ * records in proportion to its size, read at evenly spaced places in the file. Compressed files can't be read from
+ * the middle so their first records are used.
+ *
+ * The exchange, symbol and date of each record are kept so the split points can be made for the period types of each
+ * job (getSplits). Each sample stands for the rows of the part of its file it was taken from, estimated from the size
+ * of the part and the size of the sampled records. When the rows of the symbols are known (timeseries.reducers.stats)
+ * the samples of a symbol share its rows instead. The keys of the sampled records for the period types are sorted in
+ * the sort order of the job and split where the rows before them reach each reducer's share, so each reducer gets
+ * about the same number of rows. A heavy symbol ends up over several reducers each with a range of its periods and
+ * the light symbols next to each other in the sort order share a reducer.
+ *
+ */
+public class TSKeySampler {
+
+	// Lines read past a sample point looking for a record before giving up on it.
+	private static final int MAX_SKIP_LINES = 16;
+
+	private static class Sample {
+		final String strX;
+		final String strS;
+		final long lDate;
+		// Rows of the input the sample stands for.
+		double dRows = 1;
+
+		Sample(String strX, String strS, long lDate) {
+			this.strX = strX;
+			this.strS = strS;
+			this.lDate = lDate;
+		}
+	}
+
+	// Key of a period type of a sample.
+	private static class SplitKey {
+		final TSCompositeKey key;
+		final double dRows;
+
+		SplitKey(TSCompositeKey key, double dRows) {
+			this.key = key;
+			this.dRows = dRows;
+		}
+	}
+
+	private final TSConfProperties tsConf;
+	private final List<Sample> samples = new ArrayList<Sample>();
+
+	// Parser of the csv lines and the layout of the file being sampled.
+	private final TSCsvParser parser = new TSCsvParser();
+	private TSColumnPlan templatePlan = null;
+	private TSColumnPlan plan = null;
+	private String strFileSymbol = "";
+	// Bytes of the records sampled from the file being sampled.
+	private long lSampledBytes = 0;
+
+	public TSKeySampler(TSConfProperties tsConf) {
+		this.tsConf = tsConf;
+	}
+
+	public int getSampleCount() {
+		return samples.size();
+	}
+
+	// Sample the files, timeseries.reducers.samples records in all.
+	public void sample(FileSystem fs, List<String> lstFiles) throws IOException {
+
+		long [] lLens = new long[lstFiles.size()];
+		long lTotal = 0;
+		for (int i = 0; i < lstFiles.size(); i++)
+		{
+			lLens[i] = fs.getFileStatus(new Path(lstFiles.get(i))).getLen();
+			lTotal += lLens[i];
+		}
+
+		templatePlan = TSColumnPlan.compile(tsConf.strCsvCols);
+		CompressionCodecFactory codecs = new CompressionCodecFactory(tsConf.conf);
+
+		for (int i = 0; i < lstFiles.size(); i++)
+		{
+			if (lLens[i] == 0)
+				continue;
+
+			int n = (int) Math.max(1, Math.round((double) tsConf.iReducersSamples * lLens[i] / Math.max(lTotal, 1)));
+			Path path = fs.makeQualified(new Path(lstFiles.get(i)));
+
+			int iFirst = samples.size();
+			lSampledBytes = 0;
+			if (tsConf.isSeqIn())
+				sampleSeq(path, lLens[i], n);
+			else
+				sampleCsv(fs, path, lLens[i], n, codecs.getCodec(path));
+
+			// The rows of the file (its size over the average size of the sampled records) shared by its samples.
+			if (lSampledBytes > 0)
+			{
+				double dRows = (double) lLens[i] / lSampledBytes;
+				for (int j = iFirst; j < samples.size(); j++)
+					samples.get(j).dRows = dRows;
+			}
+		}
+
+		if (tsConf.strReducersStats.equals("") == false)
+			setStatsRows(fs, new Path(tsConf.strReducersStats));
+	}
+
+	// Share the rows of each symbol in the stats file over its samples.
+	private void setStatsRows(FileSystem fs, Path path) throws IOException {
+
+		Map<String, Double> rows = new HashMap<String, Double>();
+		InputStream in = fs.open(path);
+		try {
+			LineReader reader = new LineReader(in, tsConf.conf);
+			Text line = new Text();
+			while (reader.readLine(line) > 0)
+			{
+				String [] fields = line.toString().split(",");
+				if (fields.length < 2 || fields.length > 3)
+					continue;
+				String strX = fields.length == 3 ? fields[0].trim() : "";
+				String strS = fields[fields.length - 2].trim();
+				try {
+					rows.put(strX + ":" + strS, Double.parseDouble(fields[fields.length - 1].trim()));
+				} catch (NumberFormatException e) {
+					// The header or a symbol without a count.
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < samples.size(); i++)
+		{
+			String strName = samples.get(i).strX + ":" + samples.get(i).strS;
+			Integer cnt = counts.get(strName);
+			counts.put(strName, cnt == null ? 1 : cnt + 1);
+		}
+
+		for (int i = 0; i < samples.size(); i++)
+		{
+			String strName = samples.get(i).strX + ":" + samples.get(i).strS;
+			Double dRows = rows.get(strName);
+			if (dRows != null)
+				samples.get(i).dRows = dRows / counts.get(strName);
+		}
+	}
+
+	private void sampleSeq(Path path, long lLen, int n) throws IOException {
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(tsConf.conf, SequenceFile.Reader.file(path));
+		try {
+			TSCompositeKey key = new TSCompositeKey();
+			key.setDictionary(tsConf.getSymbolDictionary());
+			TSData tsdata = new TSData();
+			for (int i = 0; i < n; i++)
+			{
+				// The first record or the record after the sync point following the offset.
+				if (i > 0)
+					reader.sync(lLen * i / n);
+				long lPos = reader.getPosition();
+				if (reader.next(key, tsdata) == false)
+					break;
+				lSampledBytes += reader.getPosition() - lPos;
+				samples.add(new Sample(key.getXKey(), key.getSKey(), tsdata.lDateTime));
+			}
+		} finally {
+			IOUtils.closeStream(reader);
+		}
+	}
+
+	private void sampleCsv(FileSystem fs, Path path, long lLen, int n, CompressionCodec codec) throws IOException {
+
+		plan = null;
+		strFileSymbol = tsConf.isBatch() ? tsConf.getFileName(path.getName()) : "";
+		Text line = new Text();
+
+		if (codec != null)
+		{
+			InputStream in = codec.createInputStream(fs.open(path));
+			try {
+				LineReader reader = new LineReader(in, tsConf.conf);
+				for (int i = 0; i < n && reader.readLine(line) > 0; i++)
+					addLine(line);
+			} finally {
+				in.close();
+			}
+			return;
+		}
+
+		FSDataInputStream in = fs.open(path);
+		try {
+			for (int i = 0; i < n; i++)
+			{
+				long lOffset = lLen * i / n;
+				in.seek(lOffset);
+				LineReader reader = new LineReader(in, 4096);
+
+				// Skip the rest of the line the offset is in.
+				if (lOffset > 0 && reader.readLine(line) == 0)
+					break;
+
+				for (int j = 0; j < MAX_SKIP_LINES && reader.readLine(line) > 0; j++)
+					if (addLine(line))
+						break;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Parse a line the same as the TSDataMapper and keep it if it is a record.
+	private boolean addLine(Text line) {
+
+		byte [] bytes = line.getBytes();
+		int len = line.getLength();
+		if (TSCsvParser.isHeader(bytes, len))
+			return false;
+
+		parser.split(bytes, len);
+		if (plan == null)
+		{
+			plan = parser.parseDetect(templatePlan);
+			if (plan == null)
+				return false;
+		}
+		else if (parser.parse(plan) != 0)
+			return false;
+
+		String strSymbol = parser.symbol;
+		if (strSymbol.equals(""))
+			strSymbol = strFileSymbol;
+		samples.add(new Sample(parser.exchange, strSymbol, parser.date));
+		lSampledBytes += len + 1;
+		return true;
+	}
+
+	/* Split points for the reducers of a job that reduces the period types. At most iReducers - 1 of them, fewer if
+	 * there are not as many different group keys or a group has more than a reducer's share of the rows. Names that
+	 * can't be written in the split points are left out.
+	 */
+	public String getSplits(int [] iPeriodTypes, int iReducers) {
+
+		final int srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+		TSCalendar cal = tsConf.getCalendar();
+		TSSymbolDictionary dict = tsConf.getSymbolDictionary();
+
+		List<SplitKey> keys = new ArrayList<SplitKey>();
+		double dTotal = 0;
+		for (int i = 0; i < samples.size(); i++)
+		{
+			Sample smp = samples.get(i);
+			if (isSplitName(smp.strX) == false || isSplitName(smp.strS) == false)
+				continue;
+
+			long lDay = TSCalendar.getEpochDay(smp.lDate);
+			for (int p = 0; p < iPeriodTypes.length; p++)
+			{
+				TSCompositeKey key = new TSCompositeKey();
+				key.setDictionary(dict);
+				key.set(smp.strX, smp.strS, iPeriodTypes[p], cal.getPeriodKey(iPeriodTypes[p], lDay), 0, 0);
+				keys.add(new SplitKey(key, smp.dRows));
+				dTotal += smp.dRows;
+			}
+		}
+
+		SplitKey [] sorted = keys.toArray(new SplitKey[keys.size()]);
+		Arrays.sort(sorted, new Comparator<SplitKey>() {
+			public int compare(SplitKey k1, SplitKey k2) {
+				return srt * k1.key.compareGroupKeyTo(k2.key);
+			}
+		});
+
+		// The key where the rows before it first reach the share of the reducers before the split.
+		List<TSCompositeKey> splits = new ArrayList<TSCompositeKey>();
+		double dRows = 0;
+		int i = 1;
+		for (int j = 0; j < sorted.length && i < iReducers; j++)
+		{
+			TSCompositeKey key = sorted[j].key;
+			for (; i < iReducers && dRows >= dTotal * i / iReducers; i++)
+			{
+				if (srt * key.compareGroupKeyTo(sorted[0].key) <= 0)
+					continue;
+				if (splits.isEmpty() || srt * key.compareGroupKeyTo(splits.get(splits.size() - 1)) > 0)
+					splits.add(key);
+			}
+			dRows += sorted[j].dRows;
+		}
+
+		return TSRangePartitioner.formatSplits(splits.toArray(new TSCompositeKey[splits.size()]));
+	}
+
+	private static boolean isSplitName(String strName) {
+		return strName.indexOf(',') < 0 && strName.indexOf(':') < 0;
+	}
+}
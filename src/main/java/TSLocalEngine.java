@@ -0,0 +1,864 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.LineReader;
+
+/*
+ * Runs the period reduction and the record filters of the input files in the driver's process without any map
+ * reduce jobs (timeseries.engine local). For small runs where setting up the jobs takes longer than the reductions.
+ *
+ * The lines of each file are parsed in the same way as the TSDataMapper (the csv layout detected from the first data
+ * line of the file, header lines skipped and bad lines reported) and the records of each exchange and symbol are kept
+ * in arrays of the fields instead of as keys and values. An uncompressed file on the local file system is memory
+ * mapped and its chunks parsed as tasks of their own (see parseMapped), so a large file isn't read by one thread.
+ * Each output name (the input file, or the exchange and symbol in batch mode) and period type is then a task on a
+ * fork/join pool. The task works out the period of each record and sorts the records into the order of the job's
+ * sort (an index sort on the period and the date, stable so records with the same date keep the order they were read
+ * in). A second task for each then hands each period to a TSPeriodFusedReducer in the same way as the TSStreamMapper.
+ *
+ * The reducer of a task writes its lines into memory and the task writes them to the csv files once it is done, the
+ * same files as the jobs and CopyOutFiles give. The output of a name and period type only depends on the records in
+ * its own task so the tasks can run in any order. The headers of each name are written first, from the thread of the
+ * engine, as the reducer of a job writes them when it starts.
+ *
+ * The "in" column of the period records is the count of the records the one reducer of the job has written before.
+ * The reducer of a job gets the periods of each series in the key order of the period types and counts across the
+ * series of the job (each file, or all of the files in batch mode), so the tasks start their count at the number of
+ * periods sorted for the series and period types before theirs (see setFirstIds). The stream job numbers the periods
+ * of each split on their own, so its "in" column is not the same.
+ *
+ */
+public class TSLocalEngine {
+
+	// Size of the chunks a local file is parsed in.
+	private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+
+	private final TSConfProperties tsConf;
+	private final int srt;
+	// The driver would run a job for each period type of a file rather than one for all of them.
+	private final boolean bJobPerPeriod;
+
+	// Records of an exchange and symbol in the order they were read.
+	private static class Series {
+		final String strX;
+		final String strS;
+		final TSCompositeKey key = new TSCompositeKey();
+		int n = 0;
+		long [] lDates = new long[64];
+		float [] fOpens = new float[64];
+		float [] fHighs = new float[64];
+		float [] fLows = new float[64];
+		float [] fCloses = new float[64];
+		long [] lVolumes = new long[64];
+		float [] fAdjCloses = new float[64];
+		// Columns of the input of each record (TSColumnPlan.getFieldMask).
+		int [] iFlds = new int[64];
+
+		Series(TSSymbolDictionary dict, String strX, String strS) {
+			this.strX = strX;
+			this.strS = strS;
+			key.setDictionary(dict);
+			key.set(strX, strS, 0, 0, 0, 0);
+		}
+
+		void add(TSCsvParser parser, int iFieldMask) {
+			if (n == lDates.length)
+				grow(n * 2);
+			lDates[n] = parser.date;
+			fOpens[n] = parser.open;
+			fHighs[n] = parser.high;
+			fLows[n] = parser.low;
+			fCloses[n] = parser.close;
+			lVolumes[n] = parser.volume;
+			fAdjCloses[n] = parser.adj_close;
+			iFlds[n] = iFieldMask;
+			n++;
+		}
+
+		// Add the records of the same exchange and symbol from another file.
+		void addAll(Series other) {
+			if (n + other.n > lDates.length)
+				grow(Math.max(n + other.n, n * 2));
+			System.arraycopy(other.lDates, 0, lDates, n, other.n);
+			System.arraycopy(other.fOpens, 0, fOpens, n, other.n);
+			System.arraycopy(other.fHighs, 0, fHighs, n, other.n);
+			System.arraycopy(other.fLows, 0, fLows, n, other.n);
+			System.arraycopy(other.fCloses, 0, fCloses, n, other.n);
+			System.arraycopy(other.lVolumes, 0, lVolumes, n, other.n);
+			System.arraycopy(other.fAdjCloses, 0, fAdjCloses, n, other.n);
+			System.arraycopy(other.iFlds, 0, iFlds, n, other.n);
+			n += other.n;
+		}
+
+		private void grow(int iLen) {
+			lDates = Arrays.copyOf(lDates, iLen);
+			fOpens = Arrays.copyOf(fOpens, iLen);
+			fHighs = Arrays.copyOf(fHighs, iLen);
+			fLows = Arrays.copyOf(fLows, iLen);
+			fCloses = Arrays.copyOf(fCloses, iLen);
+			lVolumes = Arrays.copyOf(lVolumes, iLen);
+			fAdjCloses = Arrays.copyOf(fAdjCloses, iLen);
+			iFlds = Arrays.copyOf(iFlds, iLen);
+		}
+	}
+
+	// The series of an output name in the sort order and the configuration of the name's job.
+	private static class Output {
+		final String strName;
+		final TSConfProperties tsConf;
+		final List<Series> series = new ArrayList<Series>();
+		final Map<String, DataOutputBuffer> headers = new LinkedHashMap<String, DataOutputBuffer>();
+		// The tasks of the period types in the key order of the period types.
+		final List<SortTask> sorts = new ArrayList<SortTask>();
+
+		Output(String strName, TSConfProperties tsConf) {
+			this.strName = strName;
+			this.tsConf = tsConf;
+		}
+	}
+
+	/*
+	 * The fused reducer with the output lines kept in memory for each file. The headers are only written when asked
+	 * for (see writeHeaders) as the engine writes them once for each name.
+	 */
+	private static class LocalReducer extends TSPeriodFusedReducer {
+		final Map<String, DataOutputBuffer> files = new LinkedHashMap<String, DataOutputBuffer>();
+		boolean bHeaders = false;
+
+		@Override
+		protected void writeHeaders(String strName)
+		{
+			if (bHeaders)
+				super.writeHeaders(strName);
+		}
+
+		@Override
+		protected void write(Text value, String strFile) throws IOException, InterruptedException
+		{
+			DataOutputBuffer buf = files.get(strFile);
+			if (buf == null)
+			{
+				buf = new DataOutputBuffer();
+				files.put(strFile, buf);
+			}
+			buf.write(value.getBytes(), 0, value.getLength());
+			buf.write('\n');
+		}
+
+		@Override
+		protected void writeData(TSCompositeKey key, TSData tsdata, String strFile) throws IOException
+		{
+			throw new IOException("The local engine only writes csv (timeseries.outfmt)");
+		}
+	}
+
+	/*
+	 * The records of a period as the values of the reducer. The key and the one TSData are set to each record in turn
+	 * the same as the values of a reduce.
+	 */
+	private static class GroupValues implements Iterable<TSData>, Iterator<TSData> {
+		private final TSData tsdata = new TSData();
+		private TSCompositeKey key = null;
+		private Series s = null;
+		private int [] idx = null;
+		private int iNext = 0;
+		private int iEnd = 0;
+
+		void set(TSCompositeKey key, Series s, int [] idx, int iStart, int iEnd) {
+			this.key = key;
+			this.s = s;
+			this.idx = idx;
+			this.iNext = iStart;
+			this.iEnd = iEnd;
+		}
+
+		public Iterator<TSData> iterator() {
+			return this;
+		}
+
+		public boolean hasNext() {
+			return iNext < iEnd;
+		}
+
+		public TSData next() {
+			int i = idx[iNext++];
+			tsdata.lDateTime = s.lDates[i];
+			tsdata.fOpen = s.fOpens[i];
+			tsdata.fHigh = s.fHighs[i];
+			tsdata.fLow = s.fLows[i];
+			tsdata.fClose = s.fCloses[i];
+			tsdata.lVolume = s.lVolumes[i];
+			tsdata.fAdj_Close = s.fAdjCloses[i];
+			key.set(s.strX, s.strS, key.getPeriodType(), key.getPeriodNum(), s.lDates[i], s.iFlds[i]);
+			return tsdata;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	// Read the records of a file.
+	private class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final FileSystem fs;
+		final String strFile;
+		final Map<String, Series> series = new LinkedHashMap<String, Series>();
+		IOException error = null;
+
+		ParseTask(FileSystem fs, String strFile) {
+			this.fs = fs;
+			this.strFile = strFile;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				parse(fs, new Path(strFile), series);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	// The records of a series in the sort order of a period type and the period key of each.
+	private static class Periods {
+		final int [] iKeys;
+		final int [] idx;
+		int iCount = 0;
+
+		Periods(int n) {
+			iKeys = new int[n];
+			idx = new int[n];
+		}
+	}
+
+	// Sort the series of an output name by the periods of a period type.
+	private class SortTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Output output;
+		final int iPeriodType;
+		final Periods [] periods;
+		// The "in" of the first period record of each series (see setFirstIds).
+		final long [] lFirstIds;
+
+		SortTask(Output output, int iPeriodType) {
+			this.output = output;
+			this.iPeriodType = iPeriodType;
+			this.periods = new Periods[output.series.size()];
+			this.lFirstIds = new long[output.series.size()];
+		}
+
+		@Override
+		protected void compute() {
+			for (int i = 0; i < periods.length; i++)
+				periods[i] = sort(output.series.get(i), iPeriodType);
+		}
+	}
+
+	// Reduce a period type of an output name and write its files.
+	private class PeriodTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final SortTask sorted;
+		final Output output;
+		final int iPeriodType;
+		final FileSystemPath fspDest;
+		final Set<String> written = new HashSet<String>();
+		Exception error = null;
+
+		PeriodTask(SortTask sorted, FileSystemPath fspDest) {
+			this.sorted = sorted;
+			this.output = sorted.output;
+			this.iPeriodType = sorted.iPeriodType;
+			this.fspDest = fspDest;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				LocalReducer reducer = new LocalReducer();
+				reducer.configure(output.tsConf.conf);
+				for (int i = 0; i < output.series.size(); i++)
+				{
+					reducer.lcnt = sorted.lFirstIds[i];
+					reducer.icnt = (int) sorted.lFirstIds[i];
+					reduce(reducer, output.series.get(i), iPeriodType, sorted.periods[i]);
+					sorted.periods[i] = null;
+				}
+
+				for (Map.Entry<String, DataOutputBuffer> entry : reducer.files.entrySet())
+				{
+					writeFile(fspDest, output, entry.getKey(), output.headers.get(entry.getKey()), entry.getValue());
+					written.add(entry.getKey());
+				}
+			} catch (Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	// Runs a list of tasks on the pool.
+	private static class AllTasks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final List<? extends ForkJoinTask<?>> tasks;
+
+		AllTasks(List<? extends ForkJoinTask<?>> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	public TSLocalEngine(TSConfProperties tsConf, boolean bJobPerPeriod) {
+		this.tsConf = tsConf;
+		this.bJobPerPeriod = bJobPerPeriod;
+		srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+	}
+
+	// Reduce the files and write the csv output under the destination directory.
+	public boolean run(FileSystem fsInput, List<String> lstFiles, FileSystemPath fspDest) throws Exception {
+
+		ForkJoinPool pool = tsConf.iEngineThreads > 0 ? new ForkJoinPool(tsConf.iEngineThreads) : new ForkJoinPool();
+		try {
+			List<ParseTask> parses = new ArrayList<ParseTask>();
+			for (int i = 0; i < lstFiles.size(); i++)
+				parses.add(new ParseTask(fsInput, lstFiles.get(i)));
+			pool.invoke(new AllTasks(parses));
+			for (int i = 0; i < parses.size(); i++)
+				if (parses.get(i).error != null)
+					throw parses.get(i).error;
+
+			List<Output> outputs = getOutputs(parses);
+
+			List<SortTask> sorts = new ArrayList<SortTask>();
+			for (int i = 0; i < outputs.size(); i++)
+			{
+				Output output = outputs.get(i);
+				setHeaders(output);
+				int [] iPeriodTypes = getKeyOrder(output.tsConf.getPeriodTypes());
+				for (int p = 0; p < iPeriodTypes.length; p++)
+					output.sorts.add(new SortTask(output, iPeriodTypes[p]));
+				sorts.addAll(output.sorts);
+			}
+			pool.invoke(new AllTasks(sorts));
+			setFirstIds(outputs);
+
+			List<PeriodTask> tasks = new ArrayList<PeriodTask>();
+			for (int i = 0; i < sorts.size(); i++)
+				tasks.add(new PeriodTask(sorts.get(i), fspDest));
+			System.out.println("Local engine reducing " + outputs.size() + " names in " + tasks.size() + " tasks on " +
+					pool.getParallelism() + " threads");
+			pool.invoke(new AllTasks(tasks));
+
+			// The files that only have the headers.
+			Set<String> written = new HashSet<String>();
+			for (int i = 0; i < tasks.size(); i++)
+			{
+				if (tasks.get(i).error != null)
+					throw tasks.get(i).error;
+				for (String strFile : tasks.get(i).written)
+					written.add(tasks.get(i).output.strName + "\t" + strFile);
+			}
+			for (int i = 0; i < outputs.size(); i++)
+				for (Map.Entry<String, DataOutputBuffer> entry : outputs.get(i).headers.entrySet())
+					if (written.contains(outputs.get(i).strName + "\t" + entry.getKey()) == false)
+						writeFile(fspDest, outputs.get(i), entry.getKey(), entry.getValue(), null);
+		} finally {
+			pool.shutdown();
+		}
+
+		return true;
+	}
+
+	/* The output names and their series. A job for each file or, in batch mode, one job for all of the files with the
+	   output of each exchange and symbol together. The series are in the order the reducer gets them.
+	 */
+	private List<Output> getOutputs(List<ParseTask> parses) {
+
+		List<Output> outputs = new ArrayList<Output>();
+		if (tsConf.isBatch())
+		{
+			Map<String, Series> all = new LinkedHashMap<String, Series>();
+			for (int i = 0; i < parses.size(); i++)
+				for (Map.Entry<String, Series> entry : parses.get(i).series.entrySet())
+				{
+					Series s = all.get(entry.getKey());
+					if (s == null)
+						all.put(entry.getKey(), entry.getValue());
+					else
+						s.addAll(entry.getValue());
+				}
+
+			TSConfProperties jobConf = getJobConf(null);
+			Map<String, Output> byName = new LinkedHashMap<String, Output>();
+			for (Series s : all.values())
+			{
+				String strName = jobConf.getOutputName(s.key);
+				Output output = byName.get(strName);
+				if (output == null)
+				{
+					output = new Output(strName, jobConf);
+					byName.put(strName, output);
+					outputs.add(output);
+				}
+				output.series.add(s);
+			}
+		}
+		else
+		{
+			for (int i = 0; i < parses.size(); i++)
+			{
+				TSConfProperties jobConf = getJobConf(parses.get(i).strFile);
+				Output output = new Output(jobConf.strOutName, jobConf);
+				output.series.addAll(parses.get(i).series.values());
+				outputs.add(output);
+			}
+		}
+
+		Comparator<Series> order = new Comparator<Series>() {
+			public int compare(Series s1, Series s2) {
+				return srt * s1.key.compareGroupKeyTo(s2.key);
+			}
+		};
+		for (int i = 0; i < outputs.size(); i++)
+			Collections.sort(outputs.get(i).series, order);
+
+		return outputs;
+	}
+
+	// Period types in the order of the keys of the job's sort.
+	private int [] getKeyOrder(int [] iPeriodTypes) {
+		int [] iOrder = iPeriodTypes.clone();
+		Arrays.sort(iOrder);
+		for (int i = 0; srt < 0 && i < iOrder.length / 2; i++)
+		{
+			int iType = iOrder[i];
+			iOrder[i] = iOrder[iOrder.length - 1 - i];
+			iOrder[iOrder.length - 1 - i] = iType;
+		}
+		return iOrder;
+	}
+
+	/* The "in" of the first period record of each series and period type, as the one reducer of the job counts them:
+	   the series of the job in key order, each with its period types in key order. The series of an output are in key
+	   order, and in batch mode the job has the series of all of the outputs. Each period type is a job of its own if
+	   the driver would run them that way (bJobPerPeriod).
+	 */
+	private void setFirstIds(final List<Output> outputs) {
+
+		List<List<int []>> jobs = new ArrayList<List<int []>>();
+		for (int o = 0; o < outputs.size(); o++)
+		{
+			if (tsConf.isBatch() == false || jobs.isEmpty())
+				jobs.add(new ArrayList<int []>());
+			for (int s = 0; s < outputs.get(o).series.size(); s++)
+				jobs.get(jobs.size() - 1).add(new int [] { o, s });
+		}
+
+		for (int j = 0; j < jobs.size(); j++)
+		{
+			// The series of the job as output and index.
+			List<int []> order = jobs.get(j);
+			Collections.sort(order, new Comparator<int []>() {
+				public int compare(int [] r1, int [] r2) {
+					Series s1 = outputs.get(r1[0]).series.get(r1[1]);
+					Series s2 = outputs.get(r2[0]).series.get(r2[1]);
+					return srt * s1.key.compareGroupKeyTo(s2.key);
+				}
+			});
+
+			long [] lIds = new long[TSCalendar.PERIOD_DAY + 1];
+			for (int i = 0; i < order.size(); i++)
+			{
+				List<SortTask> sorts = outputs.get(order.get(i)[0]).sorts;
+				int s = order.get(i)[1];
+				for (int p = 0; p < sorts.size(); p++)
+				{
+					int iJob = bJobPerPeriod ? sorts.get(p).iPeriodType : 0;
+					sorts.get(p).lFirstIds[s] = lIds[iJob];
+					lIds[iJob] += sorts.get(p).periods[s].iCount;
+				}
+			}
+		}
+	}
+
+	// Configuration of the job of a file (or of the batch job) the same as the driver sets it.
+	private TSConfProperties getJobConf(String strFile) {
+		TSConfProperties jobConf = new TSConfProperties(new Configuration(tsConf.conf));
+		if (strFile != null)
+			jobConf.setProperty(TSConfProperties.TIMESERIES_FNAME, strFile);
+		jobConf.setProperty(TSConfProperties.TIMESERIES_MAPAGG, "f");
+		jobConf.setProperty(TSConfProperties.TIMESERIES_REDUCERS, "1");
+		return jobConf;
+	}
+
+	// The header lines of the files of a name.
+	private void setHeaders(Output output) throws IOException {
+		LocalReducer reducer = new LocalReducer();
+		reducer.configure(output.tsConf.conf);
+		reducer.bHeaders = true;
+		reducer.writeHeaders(output.strName);
+		output.headers.putAll(reducer.files);
+	}
+
+	// Parse the lines of a file into the series of its exchanges and symbols (see TSDataMapper.map).
+	private void parse(FileSystem fs, Path path, Map<String, Series> series) throws IOException {
+
+		TSColumnPlan templatePlan = TSColumnPlan.compile(tsConf.strCsvCols);
+		String strFileSymbol = tsConf.isBatch() ? tsConf.getFileName(path.getName()) : "";
+
+		CompressionCodec codec = new CompressionCodecFactory(tsConf.conf).getCodec(path);
+		if (codec == null && fs instanceof LocalFileSystem)
+		{
+			parseMapped(((LocalFileSystem) fs).pathToFile(path), templatePlan, strFileSymbol, series);
+			return;
+		}
+
+		LineParser lp = new LineParser(templatePlan, null, strFileSymbol, series, tsConf.getSymbolDictionary());
+		InputStream in = fs.open(path);
+		if (codec != null)
+			in = codec.createInputStream(in);
+		try {
+			LineReader reader = new LineReader(in, tsConf.conf);
+			Text line = new Text();
+			while (reader.readLine(line) > 0)
+				lp.parse(line.getBytes(), line.getLength());
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Parse a local file memory mapped in chunks of about CHUNK_BYTES that end at the end of a line, on the pool.
+	 *
+	 * The lines up to the one the csv layout is detected from are parsed first so that every chunk is parsed with the
+	 * layout of the file, the same as the lines of the mapper. Each chunk has series of its own and the series of the
+	 * chunks are added together in the order of the chunks, so the records of a series are in the order of the file.
+	 */
+	private void parseMapped(File file, TSColumnPlan templatePlan, String strFileSymbol, Map<String, Series> series)
+			throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long [] lBounds = getChunkBounds(channel, channel.size());
+
+			LineParser first = new LineParser(templatePlan, null, strFileSymbol, series, tsConf.getSymbolDictionary());
+			long lPos = 0;
+			int c = 0;
+			while (c < lBounds.length - 1 && first.plan == null)
+			{
+				lPos = parseLines(channel, lPos, lBounds[c + 1], first, true);
+				if (lPos == lBounds[c + 1])
+					c++;
+			}
+
+			List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+			for (; c < lBounds.length - 1; c++)
+			{
+				long lStart = Math.max(lPos, lBounds[c]);
+				if (lStart < lBounds[c + 1])
+					chunks.add(new ChunkTask(channel, lStart, lBounds[c + 1],
+							new LineParser(templatePlan, first.plan, strFileSymbol, new LinkedHashMap<String, Series>(), first.dict)));
+			}
+			ForkJoinTask.invokeAll(chunks);
+
+			for (int i = 0; i < chunks.size(); i++)
+			{
+				if (chunks.get(i).error != null)
+					throw chunks.get(i).error;
+				for (Map.Entry<String, Series> entry : chunks.get(i).lp.series.entrySet())
+				{
+					Series s = series.get(entry.getKey());
+					if (s == null)
+						series.put(entry.getKey(), entry.getValue());
+					else
+						s.addAll(entry.getValue());
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	// Offsets of the chunks of a file, from 0 to the length. Each chunk but the last ends after a newline.
+	private static long [] getChunkBounds(FileChannel channel, long lLen) throws IOException {
+
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		long lPos = CHUNK_BYTES;
+		while (lPos < lLen)
+		{
+			// The line that the chunk would end in is left in the chunk.
+			long lEnd = -1;
+			for (long lRead = lPos - 1; lEnd < 0 && lRead < lLen; lRead += buf.limit())
+			{
+				buf.clear();
+				if (channel.read(buf, lRead) <= 0)
+					break;
+				buf.flip();
+				for (int i = 0; i < buf.limit() && lEnd < 0; i++)
+					if (buf.get(i) == '\n')
+						lEnd = lRead + i + 1;
+			}
+			if (lEnd < 0 || lEnd >= lLen)
+				break;
+			bounds.add(lEnd);
+			lPos = lEnd + CHUNK_BYTES;
+		}
+		bounds.add(lLen);
+
+		long [] lBounds = new long[bounds.size()];
+		for (int i = 0; i < lBounds.length; i++)
+			lBounds[i] = bounds.get(i);
+		return lBounds;
+	}
+
+	/* Parse the lines from lStart up to lEnd of a file. The line ends are the same as the LineReader (\n, \r\n or \r).
+	   Returns the offset after the last line parsed, the line the layout is detected from if bUntilPlan is set.
+	 */
+	private static long parseLines(FileChannel channel, long lStart, long lEnd, LineParser lp, boolean bUntilPlan)
+			throws IOException {
+
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, lStart, lEnd - lStart);
+		int n = buf.limit();
+		byte [] bytes = new byte[256];
+		int iPos = 0;
+		while (iPos < n)
+		{
+			int i = iPos;
+			byte b = 0;
+			for (; i < n; i++)
+			{
+				b = buf.get(i);
+				if (b == '\n' || b == '\r')
+					break;
+			}
+
+			int len = i - iPos;
+			if (len > bytes.length)
+				bytes = new byte[Math.max(len, bytes.length * 2)];
+			buf.position(iPos);
+			buf.get(bytes, 0, len);
+
+			iPos = i + 1;
+			if (b == '\r' && iPos < n && buf.get(iPos) == '\n')
+				iPos++;
+			iPos = Math.min(iPos, n);
+
+			lp.parse(bytes, len);
+			if (bUntilPlan && lp.plan != null)
+				break;
+		}
+		return lStart + iPos;
+	}
+
+	// Parse the lines of a chunk of a file.
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final FileChannel channel;
+		final long lStart;
+		final long lEnd;
+		final LineParser lp;
+		IOException error = null;
+
+		ChunkTask(FileChannel channel, long lStart, long lEnd, LineParser lp) {
+			this.channel = channel;
+			this.lStart = lStart;
+			this.lEnd = lEnd;
+			this.lp = lp;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				parseLines(channel, lStart, lEnd, lp, false);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	// Parses lines into series with the layout of the file, detecting it from the first data line if it isn't known.
+	private static class LineParser {
+		final TSCsvParser parser = new TSCsvParser();
+		final TSColumnPlan templatePlan;
+		TSColumnPlan plan;
+		final String strFileSymbol;
+		final Map<String, Series> series;
+		final TSSymbolDictionary dict;
+		private Series s = null;
+
+		LineParser(TSColumnPlan templatePlan, TSColumnPlan plan, String strFileSymbol, Map<String, Series> series,
+				TSSymbolDictionary dict) {
+			this.templatePlan = templatePlan;
+			this.dict = dict;
+			this.plan = plan;
+			this.strFileSymbol = strFileSymbol;
+			this.series = series;
+		}
+
+		void parse(byte [] bytes, int len) {
+			if (TSCsvParser.isHeader(bytes, len))
+				return;
+
+			parser.split(bytes, len);
+			int ret = 1;
+			if (plan == null)
+			{
+				plan = parser.parseDetect(templatePlan);
+				if (plan != null)
+					ret = 0;
+			}
+			else
+				ret = parser.parse(plan);
+
+			if (ret == 0)
+			{
+				String strSymbol = parser.symbol;
+				if (strSymbol.equals(""))
+					strSymbol = strFileSymbol;
+				if (s == null || s.strX.equals(parser.exchange) == false || s.strS.equals(strSymbol) == false)
+				{
+					String strKey = parser.exchange + "\t" + strSymbol;
+					s = series.get(strKey);
+					if (s == null)
+					{
+						s = new Series(dict, parser.exchange, strSymbol);
+						series.put(strKey, s);
+					}
+				}
+				s.add(parser, plan.getFieldMask());
+			}
+			else
+			{
+				Text line = new Text();
+				line.set(bytes, 0, len);
+				System.err.println("Possible bad input line: " + line);
+			}
+		}
+	}
+
+	// Sort the records of a series by the periods of a period type and count the periods.
+	private Periods sort(Series s, int iPeriodType) {
+
+		TSCalendar cal = tsConf.getCalendar();
+		Periods periods = new Periods(s.n);
+		int [] iKeys = periods.iKeys;
+		int [] idx = periods.idx;
+		for (int i = 0; i < s.n; i++)
+		{
+			iKeys[i] = cal.getPeriodKey(iPeriodType, TSCalendar.getEpochDay(s.lDates[i]));
+			idx[i] = i;
+		}
+		sort(idx, new int[s.n], 0, s.n, iKeys, s.lDates);
+
+		for (int i = 0; i < s.n; i++)
+			if (i == 0 || iKeys[idx[i]] != iKeys[idx[i - 1]])
+				periods.iCount++;
+		return periods;
+	}
+
+	// Reduce the periods of a type of a series in the sort order.
+	private void reduce(LocalReducer reducer, Series s, int iPeriodType, Periods periods)
+			throws IOException, InterruptedException {
+
+		int [] iKeys = periods.iKeys;
+		int [] idx = periods.idx;
+		TSCompositeKey key = new TSCompositeKey();
+		key.setDictionary(tsConf.getSymbolDictionary());
+		GroupValues values = new GroupValues();
+		int i = 0;
+		while (i < s.n)
+		{
+			int iKey = iKeys[idx[i]];
+			int j = i + 1;
+			while (j < s.n && iKeys[idx[j]] == iKey)
+				j++;
+
+			key.set(s.strX, s.strS, iPeriodType, iKey, s.lDates[idx[i]], s.iFlds[idx[i]]);
+			values.set(key, s, idx, i, j);
+			reducer.reduceGroup(key, values);
+			i = j;
+		}
+	}
+
+	// Stable merge sort of the records by period and date in the sort order.
+	private void sort(int [] idx, int [] tmp, int iStart, int iEnd, int [] iKeys, long [] lDates) {
+
+		if (iEnd - iStart < 2)
+			return;
+
+		int iMid = (iStart + iEnd) >>> 1;
+		sort(idx, tmp, iStart, iMid, iKeys, lDates);
+		sort(idx, tmp, iMid, iEnd, iKeys, lDates);
+		if (compare(idx[iMid - 1], idx[iMid], iKeys, lDates) <= 0)
+			return;
+
+		System.arraycopy(idx, iStart, tmp, iStart, iEnd - iStart);
+		int i = iStart;
+		int j = iMid;
+		for (int k = iStart; k < iEnd; k++)
+		{
+			if (j >= iEnd || (i < iMid && compare(tmp[i], tmp[j], iKeys, lDates) <= 0))
+				idx[k] = tmp[i++];
+			else
+				idx[k] = tmp[j++];
+		}
+	}
+
+	private int compare(int i1, int i2, int [] iKeys, long [] lDates) {
+		if (iKeys[i1] != iKeys[i2])
+			return srt * (iKeys[i1] < iKeys[i2] ? -1 : 1);
+		if (lDates[i1] != lDates[i2])
+			return srt * (lDates[i1] < lDates[i2] ? -1 : 1);
+		return 0;
+	}
+
+	// Write a csv file of an output name, the same file as CopyOutFiles writes for the output of the job.
+	private void writeFile(FileSystemPath fspDest, Output output, String strFile, DataOutputBuffer header,
+			DataOutputBuffer lines) throws IOException {
+
+		String strOutFile = (tsConf.isBatch() ? "" : output.strName + FileSystemPath.separator) + strFile + ".csv";
+		Path dstPath = fspDest.fs.makeQualified(new Path(fspDest.pathName.getName() + FileSystemPath.separator + strOutFile));
+		FSDataOutputStream out = fspDest.fs.create(dstPath, true);
+		try {
+			if (header != null)
+				out.write(header.getData(), 0, header.getLength());
+			if (lines != null)
+				out.write(lines.getData(), 0, lines.getLength());
+		} finally {
+			out.close();
+		}
+	}
+}
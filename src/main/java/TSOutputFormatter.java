@@ -0,0 +1,294 @@
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+
+/*
+ * Formats the output lines of a timeseries.outcols template the same as YahooData.format without building strings.
+ *
+ * YahooData.format splits the template and switches on the column names for every line, formats each number through
+ * String.format and puts the line together by concatenation. Here the template is compiled once into column codes
+ * and the digits and dates of each line are written straight into a byte buffer that is reused for every line and
+ * set into a reused Text.
+ *
+ * Prices are written with 6 decimal places rounded half up from the exact value of the float. This is the same as
+ * String.format("%.6f"), which rounds the shortest decimal digits of the float widened to a double. Those digits are
+ * within half a double ulp of the float and no rounding point of 6 decimal places is that close to a float that
+ * isn't on it. Values too large for the long arithmetic and NaN or infinite values are left to String.format.
+ *
+ * The Text returned is reused by the next line so it must be written (or copied) before then.
+ *
+ */
+public class TSOutputFormatter {
+
+	// Output only columns on top of the input column codes of TSColumnPlan.
+	private static final int COL_KEY = 13;
+	private static final int COL_HDR = 14;
+
+	private static final long SCALE = 1000000L;
+	private static final int DECIMALS = 6;
+
+	private final int [] cols;
+	private final Text value = new Text();
+	private byte [] buf = new byte[128];
+	private int iLen = 0;
+
+	public TSOutputFormatter(String strTemplate)
+	{
+		// Same columns as YahooData.format, unknown columns are empty.
+		String [] outflds = strTemplate.toLowerCase().split(",");
+		cols = new int[outflds.length];
+		for (int i = 0; i < outflds.length; i++)
+		{
+			String strName = outflds[i].trim();
+			if (strName.equals(YahooData.TIMESERIES_COL_KEY))
+				cols[i] = COL_KEY;
+			else if (strName.equals(YahooData.TIMESERIES_COL_HDR))
+				cols[i] = COL_HDR;
+			else
+				cols[i] = TSColumnPlan.getColCode(strName);
+		}
+	}
+
+	// The template has the period key (k or p) so YahooData.period must be set.
+	public boolean hasPeriod()
+	{
+		for (int i = 0; i < cols.length; i++)
+			if (cols[i] == COL_KEY || cols[i] == TSColumnPlan.COL_PER)
+				return true;
+		return false;
+	}
+
+	// Format a record. The Text is reused for the next record.
+	public Text format(YahooData rec)
+	{
+		iLen = 0;
+		for (int i = 0; i < cols.length; i++)
+		{
+			if (i > 0)
+				appendByte(',');
+			appendCol(rec, cols[i]);
+		}
+
+		value.set(buf, 0, iLen);
+		return value;
+	}
+
+	private void appendCol(YahooData rec, int iCol)
+	{
+	switch (iCol)
+	{
+	case TSColumnPlan.COL_IDN:
+		appendLong(rec.idn);
+	break;
+
+	case TSColumnPlan.COL_ID:
+		appendString(rec.id);
+	break;
+
+	case COL_KEY:
+		if (rec.exchange.equals("") == false)
+		{
+			appendString(rec.exchange);
+			appendByte('-');
+		}
+		if (rec.symbol.equals("") == false)
+		{
+			appendString(rec.symbol);
+			appendByte('-');
+		}
+		appendString(rec.period);
+	break;
+
+	case COL_HDR:
+		appendString(rec.exchange);
+		if (rec.symbol.equals("") == false)
+		{
+			if (rec.exchange.equals("") == false)
+				appendByte('-');
+			appendString(rec.symbol);
+		}
+	break;
+
+	case TSColumnPlan.COL_PER:
+		appendString(rec.period);
+	break;
+
+	case TSColumnPlan.COL_XCHNG:
+		appendString(rec.exchange);
+	break;
+
+	case TSColumnPlan.COL_SYM:
+		appendString(rec.symbol);
+	break;
+
+	case TSColumnPlan.COL_DATE:
+		appendDate(rec.date);
+	break;
+
+	case TSColumnPlan.COL_TS:
+		appendLong(rec.date);
+	break;
+
+	case TSColumnPlan.COL_OPEN:
+		appendPrice(rec.open);
+	break;
+
+	case TSColumnPlan.COL_HIGH:
+		appendPrice(rec.high);
+	break;
+
+	case TSColumnPlan.COL_LOW:
+		appendPrice(rec.low);
+	break;
+
+	case TSColumnPlan.COL_CLOSE:
+		appendPrice(rec.close);
+	break;
+
+	case TSColumnPlan.COL_VOL:
+		appendLong(rec.volume);
+	break;
+
+	case TSColumnPlan.COL_ADJCLOSE:
+		appendPrice(rec.adj_close);
+	break;
+	}
+	}
+
+	private void ensure(int n)
+	{
+		if (iLen + n > buf.length)
+		{
+			byte [] b = new byte[Math.max(buf.length * 2, iLen + n)];
+			System.arraycopy(buf, 0, b, 0, iLen);
+			buf = b;
+		}
+	}
+
+	private void appendByte(char c)
+	{
+		ensure(1);
+		buf[iLen++] = (byte) c;
+	}
+
+	// UTF-8 the same as Text.set. Almost always ascii.
+	private void appendString(String str)
+	{
+		int n = str.length();
+		ensure(n);
+		for (int i = 0; i < n; i++)
+		{
+			char c = str.charAt(i);
+			if (c >= 0x80)
+			{
+				appendBytes(str.substring(i).getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			buf[iLen++] = (byte) c;
+		}
+	}
+
+	private void appendBytes(byte [] b)
+	{
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, iLen, b.length);
+		iLen += b.length;
+	}
+
+	// Digits of a value that isn't negative, right aligned in a width padded with zeros.
+	private void appendDigits(long l, int iWidth)
+	{
+		int n = 1;
+		for (long p = 10; n < 19 && l >= p; p *= 10)
+			n++;
+		if (n < iWidth)
+			n = iWidth;
+
+		ensure(n);
+		for (int i = iLen + n - 1; i >= iLen; i--)
+		{
+			buf[i] = (byte) ('0' + (l % 10));
+			l /= 10;
+		}
+		iLen += n;
+	}
+
+	// Same as String.format("%d").
+	private void appendLong(long l)
+	{
+		if (l == Long.MIN_VALUE)
+		{
+			appendBytes(Long.toString(l).getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		if (l < 0)
+		{
+			appendByte('-');
+			l = -l;
+		}
+		appendDigits(l, 1);
+	}
+
+	// Same as TSCalendar.formatDate (yyyy-MM-dd).
+	private void appendDate(long lDate)
+	{
+		TSCalendar cal = TSCalendar.getDefault();
+		long lDay = TSCalendar.getEpochDay(lDate);
+		long lYear = cal.getYear(lDay);
+
+		if (lYear < 0)
+		{
+			appendByte('-');
+			appendDigits(-lYear, 3);
+		}
+		else
+			appendDigits(lYear, 4);
+		appendByte('-');
+		appendDigits(cal.getMonth(lDay), 2);
+		appendByte('-');
+		appendDigits(cal.getDay(lDay), 2);
+	}
+
+	// Same as String.format("%.6f").
+	private void appendPrice(float f)
+	{
+		int bits = Float.floatToRawIntBits(f);
+		int iExp = (bits >>> 23) & 0xFF;
+		long m = bits & 0x7FFFFF;
+
+		// The value is m * 2^e.
+		if (iExp == 0)
+			iExp = 1;
+		else
+			m |= 0x800000;
+		int e = iExp - 150;
+
+		// NaN, infinite or the scaled value may not fit in a long (m * 2^e * 10^6 < 2^(24 + e + 20)).
+		if (iExp == 0xFF || e > 18)
+		{
+			appendBytes(String.format("%.6f", f).getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		// Scale by 10^6 and round half up on the bits shifted out.
+		long lScaled;
+		if (e >= 0)
+			lScaled = (m << e) * SCALE;
+		else
+		{
+			long l = m * SCALE;
+			int s = -e;
+			if (s > 44)
+				lScaled = 0;
+			else
+				lScaled = (l >>> s) + ((l >>> (s - 1)) & 1);
+		}
+
+		if (bits < 0)
+			appendByte('-');
+		appendDigits(lScaled / SCALE, 1);
+		appendByte('.');
+		appendDigits(lScaled % SCALE, DECIMALS);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Consolidates the records of a period into the open, high, low, close, volume and adjusted close for the period.
+ *
+ * The open is taken from the record with the earliest date and the close and adjusted close from the record with
+ * the latest date. The high is the highest high, the low the lowest low and the volume is summed. If the input has
+ * no open, high, low or close column then the adjusted close is used instead (it may contain tick data).
+ *
+ * All of these are associative so records can be consolidated in any order and in stages. Both raw records from the
+ * mapper and partial aggregates from the combiner can be added. The same instance is reused for each period.
+ *
+ */
+public class TSPeriodAccumulator {
+
+	private boolean bEmpty = true;
+
+	public long lOpenDateTime = 0;
+	public long lCloseDateTime = 0;
+	public float fOpen = 0.0f;
+	public float fHigh = 0.0f;
+	public float fLow = 0.0f;
+	public float fClose = 0.0f;
+	public long lVolume = 0;
+	public float fAdj_Close = 0.0f;
+
+	public void reset()
+	{
+		bEmpty = true;
+		lVolume = 0;
+	}
+
+	public boolean isEmpty()
+	{
+		return bEmpty;
+	}
+
+	// Add a record. The key gives the columns that were in the input for a raw record.
+	public void add(TSData tsdata, TSCompositeKey key)
+	{
+		long lOpenDate;
+		float open, high, low, close;
+
+		if (tsdata.bPartial)
+		{
+			lOpenDate = tsdata.lOpenDateTime;
+			open = tsdata.fOpen;
+			high = tsdata.fHigh;
+			low = tsdata.fLow;
+			close = tsdata.fClose;
+		}
+		else
+		{
+			lOpenDate = tsdata.lDateTime;
+			open = key.hasInField(TSColumnPlan.COL_OPEN) ? tsdata.fOpen : tsdata.fAdj_Close;
+			high = key.hasInField(TSColumnPlan.COL_HIGH) ? tsdata.fHigh : tsdata.fAdj_Close;
+			low = key.hasInField(TSColumnPlan.COL_LOW) ? tsdata.fLow : tsdata.fAdj_Close;
+			close = key.hasInField(TSColumnPlan.COL_CLOSE) ? tsdata.fClose : tsdata.fAdj_Close;
+		}
+
+		if (bEmpty)
+		{
+			bEmpty = false;
+			lOpenDateTime = lOpenDate;
+			fOpen = open;
+			lCloseDateTime = tsdata.lDateTime;
+			fClose = close;
+			fAdj_Close = tsdata.fAdj_Close;
+			fHigh = high;
+			fLow = low;
+			lVolume = tsdata.lVolume;
+			return;
+		}
+
+		// Find earliest open.
+		if (lOpenDate < lOpenDateTime)
+		{
+			lOpenDateTime = lOpenDate;
+			fOpen = open;
+		}
+
+		// Find latest close
+		if (tsdata.lDateTime > lCloseDateTime)
+		{
+			lCloseDateTime = tsdata.lDateTime;
+			fClose = close;
+			fAdj_Close = tsdata.fAdj_Close;
+		}
+
+		// sum the volume for the period
+		lVolume += tsdata.lVolume;
+
+		if (high > fHigh)
+		  fHigh = high;
+
+		if (low < fLow)
+		  fLow = low;
+	}
+
+	// Set a partial aggregate of the records added so far.
+	public void get(TSData tsdata)
+	{
+		tsdata.bPartial = true;
+		tsdata.lOpenDateTime = lOpenDateTime;
+		tsdata.lDateTime = lCloseDateTime;
+		tsdata.fOpen = fOpen;
+		tsdata.fHigh = fHigh;
+		tsdata.fLow = fLow;
+		tsdata.fClose = fClose;
+		tsdata.lVolume = lVolume;
+		tsdata.fAdj_Close = fAdj_Close;
+	}
+
+	// Set the consolidated record for the period. Uses the period ending date for the date.
+	public void get(YahooData ydata)
+	{
+		ydata.date = lCloseDateTime;
+		ydata.open = fOpen;
+		ydata.high = fHigh;
+		ydata.low = fLow;
+		ydata.close = fClose;
+		ydata.volume = lVolume;
+		ydata.adj_close = fAdj_Close;
+	}
+}
@@ -0,0 +1,146 @@
+import java.util.Arrays;
+
+/*
+ * Open addressing hash map from a primitive long group id to the partial aggregate of the group.
+ *
+ * Used by the TSDataMapper to consolidate the records of each period in the mapper rather than sending every
+ * record through the shuffle (timeseries.mapagg). The group id is made up by the mapper from the exchange/symbol
+ * and the packed period key, the map also holds a copy of the composite key of the group for output.
+ *
+ * The map grows as needed up to the maximum number of groups. The accumulators and keys are kept when the map is
+ * cleared and reused for new groups.
+ *
+ */
+public class TSPeriodAggMap {
+
+	// Group ids are never negative.
+	private static final long EMPTY = -1L;
+
+	private final int iMaxGroups;
+
+	private long [] ids;
+	private TSPeriodAccumulator [] accs;
+	private TSCompositeKey [] keys;
+	private int iMask;
+	private int iSize = 0;
+
+	public TSPeriodAggMap(int iMaxGroups)
+	{
+		this.iMaxGroups = Math.max(iMaxGroups, 1);
+		allocate(64);
+	}
+
+	private void allocate(int iCapacity)
+	{
+		ids = new long[iCapacity];
+		Arrays.fill(ids, EMPTY);
+		accs = new TSPeriodAccumulator[iCapacity];
+		keys = new TSCompositeKey[iCapacity];
+		iMask = iCapacity - 1;
+	}
+
+	private static int hash(long id)
+	{
+		id ^= id >>> 33;
+		id *= 0xff51afd7ed558ccdL;
+		id ^= id >>> 33;
+		return (int) id;
+	}
+
+	private int find(long id)
+	{
+		int i = hash(id) & iMask;
+		while (ids[i] != EMPTY && ids[i] != id)
+			i = (i + 1) & iMask;
+		return i;
+	}
+
+	// Keep the load at or below a half.
+	private void grow()
+	{
+		long [] oldIds = ids;
+		TSPeriodAccumulator [] oldAccs = accs;
+		TSCompositeKey [] oldKeys = keys;
+
+		allocate(ids.length * 2);
+		for (int j = 0; j < oldIds.length; j++)
+		{
+			if (oldIds[j] != EMPTY)
+			{
+				int i = find(oldIds[j]);
+				ids[i] = oldIds[j];
+				accs[i] = oldAccs[j];
+				keys[i] = oldKeys[j];
+			}
+		}
+	}
+
+	/* Add a record to its group. Returns true if the group already existed.
+	 * The map must be flushed (see isFull) before adding a new group to a full map.
+	 */
+	public boolean add(long id, TSCompositeKey key, TSData tsdata)
+	{
+		int i = find(id);
+		if (ids[i] == id)
+		{
+			accs[i].add(tsdata, key);
+			return true;
+		}
+
+		if ((iSize + 1) * 2 > ids.length)
+		{
+			grow();
+			i = find(id);
+		}
+
+		ids[i] = id;
+		if (accs[i] == null)
+		{
+			accs[i] = new TSPeriodAccumulator();
+			keys[i] = new TSCompositeKey();
+		}
+		accs[i].reset();
+		accs[i].add(tsdata, key);
+		keys[i].set(key);
+		iSize++;
+
+		return false;
+	}
+
+	public boolean isFull()
+	{
+		return iSize >= iMaxGroups;
+	}
+
+	public int size()
+	{
+		return iSize;
+	}
+
+	// Slots for iterating over the groups.
+	public int capacity()
+	{
+		return ids.length;
+	}
+
+	public boolean isUsed(int i)
+	{
+		return ids[i] != EMPTY;
+	}
+
+	public TSCompositeKey getKey(int i)
+	{
+		return keys[i];
+	}
+
+	public TSPeriodAccumulator getAccumulator(int i)
+	{
+		return accs[i];
+	}
+
+	public void clear()
+	{
+		Arrays.fill(ids, EMPTY);
+		iSize = 0;
+	}
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+
+import org.apache.hadoop.mapreduce.Reducer;
+
+/*
+ * Map side combiner for the TSPeriodReducer.
+ *
+ * The period consolidation (first open, highest high, lowest low, summed volume and last close and adjusted
+ * close) is associative so the records of each group key can be collapsed before they are sent through the
+ * shuffle. Each group is output as a single partial aggregate record (see TSData.bPartial) that keeps the
+ * open and close dates so the reducer (or a later combine) can merge it with other records of the period.
+ *
+ * The job must group the combiner input by the group key (setCombinerKeyGroupingComparatorClass) otherwise
+ * the combiner only sees the records with the same date.
+ *
+ * The key output is the key of the first record of the group with its value set to the period ending date.
+ *
+ */
+public class TSPeriodCombiner
+  extends Reducer<TSCompositeKey, TSData, TSCompositeKey, TSData> {
+
+	private final TSPeriodAccumulator acc = new TSPeriodAccumulator();
+	private final TSCompositeKey outkey = new TSCompositeKey();
+	private final TSData outdata = new TSData();
+
+  @Override
+  public void setup(Context context) throws IOException, InterruptedException {
+	  // The records are written in the form of the job.
+	  outdata.setEncoding(new TSConfProperties(context.getConfiguration()).getEncoding());
+  }
+
+  @Override
+  public void reduce(TSCompositeKey key, Iterable<TSData> values,
+      Context context)
+      throws IOException, InterruptedException {
+
+	  acc.reset();
+	  for (TSData tsdata : values) {
+		  if (acc.isEmpty())
+			  outkey.set(key);
+		  // The key is updated with each value.
+		  acc.add(tsdata, key);
+	  }
+
+	  if (acc.isEmpty())
+		  return;
+
+	  acc.get(outdata);
+	  outkey.setValue(outdata.lDateTime);
+	  context.write(outkey, outdata);
+  }
+}
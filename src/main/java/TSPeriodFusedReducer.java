@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+/*
+ *  Does the work of both the TSPeriodReducer and the TSPeriodRecReducer in one job.
+ *
+ *  Both reductions use the same mapper, keys and comparators over the same input and only differ in the reducer.
+ *  This reducer applies the record filters of the TSPeriodRecReducer and at the same time consolidates the
+ *  values of the group into the period record (TSPeriodAccumulator) in the same pass over the values.
+ *
+ *  The output of the job is organised in the same way as the two separate jobs. The period records are output to
+ *  <period>/<name>-<period> and the filtered records to rec/<period>/<name>-<period>-<filter> under the output
+ *  directory so the job must be run with the periods listed in timeseries.periods.
+ *  In batch mode (timeseries.batch) the same layout is used under a directory for each symbol.
+ *
+ *  No combiner can be used as the period consolidation and the record filters need different map side records.
+ *
+ */
+public class TSPeriodFusedReducer extends TSPeriodRecReducer {
+
+	long lcnt = 0;
+
+	private final TSPeriodAccumulator acc = new TSPeriodAccumulator();
+	private final TSCompositeKey datakey = new TSCompositeKey();
+	private final TSData tsdata = new TSData();
+
+@Override
+protected void configure(Configuration config) throws IOException {
+	lcnt = 0;
+
+	super.configure(config);
+  }
+
+// The period records have headers as well as the filtered records.
+@Override
+protected void writeHeaders(String strName)
+{
+	super.writeHeaders(strName);
+
+	if (tsConf.strOutHdr.equals(TSConfProperties.TIMESERIES_HDRS) && tsConf.isSeqOut() == false)
+	{
+	Text value = new Text();
+	value.set(YahooData.format_hdr(tsConf.strOutCols));
+
+	try {
+		int [] iPeriodTypes = tsConf.getPeriodTypes();
+		for (int p = 0; p < iPeriodTypes.length; p++)
+			write(value, tsConf.getOutputFileName(strName, "", iPeriodTypes[p], ""));
+
+	} catch (Exception e) {
+		e.printStackTrace();
+	}
+
+	}
+}
+
+// The filtered records go in the rec directory.
+@Override
+protected String getOutputFileName(String strName, int iPeriodType, String strFileId)
+{
+	return tsConf.getOutputFileName(strName, TSYahooFinanceDriver.TIMESERIES_REC_NAME, iPeriodType, strFileId);
+}
+
+  @Override
+  protected void reduceGroup(final TSCompositeKey key, final Iterable<TSData> values)
+      throws IOException, InterruptedException {
+
+	  // Consolidate each value for the period as the record filters go through them.
+	  acc.reset();
+	  Iterable<TSData> accValues = new Iterable<TSData>() {
+		  public Iterator<TSData> iterator() {
+			  final Iterator<TSData> it = values.iterator();
+			  return new Iterator<TSData>() {
+				  public boolean hasNext() {
+					  return it.hasNext();
+				  }
+
+				  public TSData next() {
+					  TSData tsdata = it.next();
+					  acc.add(tsdata, key);
+					  return tsdata;
+				  }
+
+				  public void remove() {
+					  throw new UnsupportedOperationException();
+				  }
+			  };
+		  }
+	  };
+
+	  super.reduceGroup(key, accValues);
+
+	  // combine into one data point. Use the period ending date for the date.
+	  if (acc.isEmpty() == false && tsConf.isSeqOut())
+	  {
+		  acc.get(tsdata);
+		  datakey.set(key);
+		  datakey.setValue(tsdata.lDateTime);
+		  datakey.setNamesInline();
+		  writeData(datakey, tsdata, tsConf.getOutputFileName(tsConf.getOutputName(key), "", key.getPeriodType(), ""));
+	  }
+	  else if (acc.isEmpty() == false)
+	  {
+		  acc.get(ydata);
+		  ydata.id = "period"; // data that is input to process.
+		  ydata.idn = lcnt++;
+		  ydata.exchange = key.getXKey();
+		  ydata.symbol = key.getSKey();
+		  ydata.period = bPeriod ? key.getPeriodKey() : "";
+
+		  write(fmt.format(ydata), tsConf.getOutputFileName(tsConf.getOutputName(key), "", key.getPeriodType(), ""));
+	  }
+  }
+}
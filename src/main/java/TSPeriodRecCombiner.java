@@ -0,0 +1,75 @@
+import java.io.IOException;
+
+import org.apache.hadoop.mapreduce.Reducer;
+
+/*
+ * Map side combiner for the TSPeriodRecReducer.
+ *
+ * Each of the record filters (o, ho, lo, h, lh, l, hl, c, hc, lc, hv, lv, a, ha, la) selects the first, last, highest
+ * or lowest record of a period so it can be decided from the records selected from each part of the data. The
+ * combiner applies the same filters (TSFilteredRecs) to the records of each group key and only outputs the selected
+ * records. A record selected by more than one filter is only output once.
+ *
+ * Ties are kept as the first record in sort order in the same way as the reducer so the results do not change.
+ *
+ * The records are output in the sort order (timeseries.sort) of the dates as the combiner output must stay sorted.
+ * The job must group the combiner input by the group key (setCombinerKeyGroupingComparatorClass).
+ *
+ */
+public class TSPeriodRecCombiner
+  extends Reducer<TSCompositeKey, TSData, TSCompositeKey, TSData> {
+
+	TSConfProperties tsConf = new TSConfProperties();
+	TSFilteredRecs tsRecs = null;
+
+	private final TSCompositeKey outkey = new TSCompositeKey();
+	private int iEncoding = TSData.ENCODING_DEFAULT;
+
+@Override
+public void setup(Context context) throws IllegalArgumentException, IOException {
+
+	tsConf.setConf(context.getConfiguration());
+
+	tsRecs = new TSFilteredRecs();
+	tsRecs.Setup(tsConf.strFilter, tsConf.strSort);
+	iEncoding = tsConf.getEncoding();
+  }
+
+  @Override
+  public void reduce(TSCompositeKey key, Iterable<TSData> values,
+      Context context)
+      throws IOException, InterruptedException {
+
+	  boolean bfirst = true;
+
+	  tsRecs.reset();
+	  for (TSData tsdata : values) {
+		  if (bfirst)
+		  {
+			  bfirst = false;
+			  outkey.set(key);
+			  tsRecs.first(tsdata);
+		  }
+		  else
+			  tsRecs.filter(tsdata);
+	  }
+
+	  if (bfirst)
+		  return;
+
+	  // sort by date and output each selected record once.
+	  tsRecs.sort();
+	  tsRecs.markDupeRecs();
+
+	  for (int i = 0; i < tsRecs.recs.length; i++)
+	  {
+		  TSRecData ts = tsRecs.recs[i];
+		  if (ts.bUniqueDate)
+		  {
+			  outkey.setValue(ts.tsdata.lDateTime);
+			  ts.tsdata.setEncoding(iEncoding);
+			  context.write(outkey, ts.tsdata);
+		  }
+	  }
+  }
+}
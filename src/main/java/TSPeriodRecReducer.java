@@ -1,11 +1,14 @@
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -49,194 +52,53 @@ import org.apache.commons.logging.LogFactory;
  *   
  */
 
-    //class TSRecData implements java.lang.Comparable<TSRecData>, java.util.Comparator<TSRecData> {
-	class TSRecData implements java.lang.Comparable<TSRecData> {
-		
-	public static int srt = 1;
-	public String strFilterName = "";
-	public int iFilterId = 0;
-	public TSData tsdata = new TSData();
-	public boolean bUniqueDate = true;
-	public boolean bUniqueData = true;
-	
-	public void copy(TSRecData tsrec)
-	{
-		strFilterName = tsrec.strFilterName;
-	    iFilterId = tsrec.iFilterId;
-	    bUniqueDate = tsrec.bUniqueDate;
-	    bUniqueData = tsrec.bUniqueData;
-	    tsdata = new TSData();
-	    tsdata.copy(tsrec.tsdata);
-	}
-	
-	@Override
-	public int compareTo(TSRecData ts) {
-		
-		return srt * tsdata.compareTo(ts.tsdata);
-	}
-}
-
-	class TSFilteredRecs {
-		
-		public TSRecData [] recs = new TSRecData[0];  
-		
-		public static TSFilteredRecs Copy(TSFilteredRecs tsRecs)
-		{
-			TSFilteredRecs tsr = new TSFilteredRecs();	
-            tsr.recs = new TSRecData[tsRecs.recs.length];
-			
-			for (int i = 0; i < tsr.recs.length; i++ )
-			{
-				TSRecData ts = new TSRecData();
-				ts.copy(tsRecs.recs[i]);
-			    tsr.recs[i] = ts;
-			}
-			
-			return tsr;
-		}
-		
-		void reset()
-		{
-		  for (int i = 0; i < recs.length; i++ )
-		  {
-			recs[i].bUniqueData = true;
-			recs[i].bUniqueDate = true;
-		  }
-		}
-		
-		public void Setup(String strFilterList, String strSort)
-		{
-			if (strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC))
-				  TSRecData.srt = 1;
-			else
-				  TSRecData.srt = -1;
-			
-			String [] strFilters = strFilterList.split(",");
-			
-			recs = new TSRecData[strFilters.length];
-			
-			for (int i = 0; i < recs.length; i++ )
-			{
-				TSRecData ts = new TSRecData();
-				recs[i] = ts;
-			    ts.strFilterName = strFilters[i];
-			    ts.iFilterId = i;
-			}
-		}
-		
-		
-		public void sort()
-		{
-		Arrays.sort(recs);
-		}
-		
-		public void markDupeDate()
-		{
-		
-		// mark duplicate dates.
-		
-		for(int i = 0; i < recs.length; i++)
-		  {
-		  TSRecData ts1 = recs[i];
-		  if (ts1.bUniqueDate)
-		    {
-		    for (int j = i+1; j < recs.length; j++)
-		      {
-			  TSRecData ts2 = recs[j];
-			  if (ts2.bUniqueDate)
-			    {
-			    if (ts2.tsdata.lDateTime == ts1.tsdata.lDateTime)
-			       ts2.bUniqueDate = false;
-			    }
-		      }
-		    }
-		  }
-		}
-		
-		public void regressData()
-		{
-			for(int i = 0; i < recs.length; i++)
-			  {
-			  TSRecData ts = recs[i];
-			  switch (ts.strFilterName)
-				{
-				case TSConfProperties.TIMESERIES_REC_HOPEN:
-				case TSConfProperties.TIMESERIES_REC_LOPEN:
-				case TSConfProperties.TIMESERIES_REC_OPEN:
-					ts.tsdata.fAdj_Close = ts.tsdata.fOpen;
-					break;			
-					
-				case TSConfProperties.TIMESERIES_REC_HIGH:
-				case TSConfProperties.TIMESERIES_REC_LHIGH:
-					ts.tsdata.fAdj_Close = ts.tsdata.fHigh;
-					break;
-				
-				case TSConfProperties.TIMESERIES_REC_LOW:
-				case TSConfProperties.TIMESERIES_REC_HLOW:
-					ts.tsdata.fAdj_Close = ts.tsdata.fLow;
-					break;
-					
-				case TSConfProperties.TIMESERIES_REC_HCLOSE:
-				case TSConfProperties.TIMESERIES_REC_LCLOSE:
-				case TSConfProperties.TIMESERIES_REC_CLOSE:
-					ts.tsdata.fAdj_Close = ts.tsdata.fClose;
-					break;
-					
-				case TSConfProperties.TIMESERIES_REC_HVOL:
-				case TSConfProperties.TIMESERIES_REC_LVOL:
-					// do nothing.
-					break;
-				
-				case TSConfProperties.TIMESERIES_REC_HADJCLOSE:
-				case TSConfProperties.TIMESERIES_REC_LADJCLOSE:
-				case TSConfProperties.TIMESERIES_REC_ADJCLOSE:
-					// Do nothing
-					break;
-					
-				default:
-				break;
-				}
-			  }
-		}
-		
-		public void markDupeData()
-		{
-		
-		// mark duplicate dates,adjusted close pairs.
-		
-		for(int i = 0; i < recs.length; i++)
-		  {
-		  TSRecData ts1 = recs[i];
-		  if (ts1.bUniqueData)
-		    {
-		    for (int j = i+1; j < recs.length; j++)
-		      {
-			  TSRecData ts2 = recs[j];
-			  if (ts2.bUniqueData)
-			    {
-			    if ((ts2.tsdata.lDateTime == ts1.tsdata.lDateTime) &&
-			    	(ts2.tsdata.fAdj_Close == ts1.tsdata.fAdj_Close))
-			       ts2.bUniqueData = false;
-			    }
-		      }
-		    }
-		  }
-		}
-		
-		
-	}
-
-
 public class TSPeriodRecReducer
   extends Reducer<TSCompositeKey, TSData, NullWritable, Text> {
 	
 	static enum Reduce_Counters { MAP_DATA };
 	public static boolean CHK_ALL_RECS = false;
-	static int icnt = 0;
+	int icnt = 0;
 	TSConfProperties tsConf = new TSConfProperties();
 	TSFilteredRecs tsRecs = null; 
+	// Filtered records for each period (timeseries.periods). Kept separately so the order the records of one
+	// period are output in does not depend upon the other periods.
+	TSFilteredRecs [] tsPeriodRecs = new TSFilteredRecs[TSCalendar.PERIOD_DAY + 1];
+	
+	// Name of the records being reduced and the names that the headers have been written for (batch mode).
+	private String strRecsName = null;
+	private final Set<String> hdrNames = new HashSet<String>();
+	
+	// Files written for the split mode (timeseries.split). Records unique by date, all of the records and the
+	// regressed records. Set in configure.
+	private boolean bOutCombine = false;
+	private boolean bOnlyUnique = false;
+	private boolean bOutSplit = false;
+	private boolean bOutRegress = false;
+	
+	// Output lines of timeseries.outcols, compiled in configure and reused for each line.
+	protected TSOutputFormatter fmt = null;
+	protected boolean bPeriod = false;
+	protected final YahooData ydata = new YahooData();
+	
+	// Output files of the name being reduced by period type, put together once for the name rather than for each
+	// record. The combined, split, regressed and all records files and then the file of each filter.
+	private static final int FILE_COMBINE = 0;
+	private static final int FILE_SPLIT = 1;
+	private static final int FILE_REGRESS = 2;
+	private static final int FILE_ALL = 3;
+	private static final int FILE_FILTER = 4;
+	private String strFilesName = null;
+	private final String [][] fileNames = new String[TSCalendar.PERIOD_DAY + 1][];
+	private String [] groupFiles = null;
 	
-	private MultipleOutputs<NullWritable, Text> out = null;
+	protected MultipleOutputs<NullWritable, Text> out = null;
+   
+	// Form and fields of the binary records written (timeseries.compact).
+	private int iEncoding = TSData.ENCODING_DEFAULT;
+	
+	// The output lines are written from a background thread in a reduce task (timeseries.asyncout).
+	private TaskAttemptContext taskContext = null;
+	private TSAsyncOutput async = null;
    
 	private static final Log logger = LogFactory.getLog(TSPeriodRecReducer.class);
     
@@ -246,20 +108,62 @@ public void setup(Context context) throws IllegalArgumentException, IOException
 	icnt = 0;
 	 
 	out = new MultipleOutputs<NullWritable, Text>(context);
+	taskContext = context;
+	
+	configure(context.getConfiguration());
+  }
+
+// Setup the filters and headers from the configuration. Separate from the setup so the reduction of the groups can
+// also be done outside of a reduce task (see TSStreamMapper).
+protected void configure(Configuration config) throws IOException {
 	
 	// Setup reducer configuration
-	tsConf.setConf(context.getConfiguration());
+	tsConf.setConf(config);
 	
 		logger.debug("setup has been called " + 
             String.format("HDR= %s, CsvCols=%s, ColsOut=%s, Filter=%s",  
             		      tsConf.strOutHdr, tsConf.strCsvCols, tsConf.strOutCols, tsConf.strFilter));
 	
 	
-	tsRecs = new TSFilteredRecs();
-	tsRecs.Setup(tsConf.strFilter, tsConf.strSort);
+	String strSplit = tsConf.strSplit;
+	bOnlyUnique = strSplit.equals(TSConfProperties.TIMESERIES_COMBINE);
+	bOutCombine = bOnlyUnique || strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS);
+	bOutSplit = strSplit.equals(TSConfProperties.TIMESERIES_SPLIT) || strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS);
+	bOutRegress = strSplit.equals(TSConfProperties.TIMESERIES_REGRESS) || strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS);
+	
+	fmt = new TSOutputFormatter(tsConf.strOutCols);
+	bPeriod = fmt.hasPeriod();
+	iEncoding = tsConf.getEncoding();
 	
+	if (taskContext != null && tsConf.isAsyncOut() && async == null)
+		async = new TSAsyncOutput(taskContext);
 	
+	setupRecs();
 	
+	// In batch mode the names are not known until the data for them is reduced. With several reducers the first
+	// one has the start of every file (see TSRangePartitioner).
+	strRecsName = null;
+	hdrNames.clear();
+	if (tsConf.isBatch() == false && (taskContext == null || taskContext.getTaskAttemptID().getTaskID().getId() == 0))
+	  writeHeaders(tsConf.strOutName);
+}
+
+// New record filters for each period.
+private void setupRecs()
+{
+	for (int p = 0; p < tsPeriodRecs.length; p++)
+	{
+		tsPeriodRecs[p] = new TSFilteredRecs();
+		tsPeriodRecs[p].Setup(tsConf.strFilter, tsConf.strSort);
+		// Each reducer of a range partitioned job starts at a different group (timeseries.reducers).
+		tsPeriodRecs[p].bFilterOrder = tsConf.isRangePartitioned();
+	}
+	tsRecs = tsPeriodRecs[0];
+}
+	
+// Write the headers to the output files of a name.
+protected void writeHeaders(String strName)
+{
 	if (tsConf.strOutHdr.equals(TSConfProperties.TIMESERIES_HDRS))
 	{
 	// add headers
@@ -268,27 +172,29 @@ public void setup(Context context) throws IllegalArgumentException, IOException
 	  
 	try {
 		//instead of context.write(NullWritable.get(), value), write to specified file. 
+		// A set of files for each period.
+		int [] iPeriodTypes = tsConf.getPeriodTypes();
+		for (int p = 0; p < iPeriodTypes.length; p++)
+		{
+			if (bOutCombine)
+				  write(value, getOutputFileName(strName, iPeriodTypes[p], TSConfProperties.TIMESERIES_COMBINE_FNAME));
 		
-		if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_COMBINE) ||
-				tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS))
-			  out.write(NullWritable.get(), value, tsConf.getOutputFileName(TSConfProperties.TIMESERIES_COMBINE_FNAME));
+			// If duplicates are allowed mark file name as containing duplicate records.
+			if (bOutSplit)
+			  write(value, getOutputFileName(strName, iPeriodTypes[p], TSConfProperties.TIMESERIES_SPLIT_FNAME));
 
-		// If duplicates are allowed mark file name as containing duplicate records.
-		if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_SPLIT) ||
-			tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS))
-		  out.write(NullWritable.get(), value, tsConf.getOutputFileName(TSConfProperties.TIMESERIES_SPLIT_FNAME));
+			if (bOutRegress)
+				 write(value, getOutputFileName(strName, iPeriodTypes[p], TSConfProperties.TIMESERIES_REGRESS_FNAME));
 		
-		if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_REGRESS) ||
-		    tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS))
-			 out.write(NullWritable.get(), value, tsConf.getOutputFileName(TSConfProperties.TIMESERIES_REGRESS_FNAME));
-		  
-		if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_SPLIT))
-		{
-		// write each outcol to their own separate file.
-			for (int i = 0; i < tsRecs.recs.length; i++)
+			if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_SPLIT))
 			{
-				out.write(NullWritable.get(), value, tsConf.getOutputFileName(tsRecs.recs[i].strFilterName));
+			// write each outcol to their own separate file.
+				for (int i = 0; i < tsRecs.recs.length; i++)
+				{
+					write(value, getOutputFileName(strName, iPeriodTypes[p], tsRecs.recs[i].strFilterName));
+				}
 			}
+		  
 		}
 		
 	} catch (Exception e) {
@@ -296,14 +202,59 @@ public void setup(Context context) throws IllegalArgumentException, IOException
 	}
 	
 	}
+}
 	  
-    
-  }
+// Output file for the records of a name and period.
+protected String getOutputFileName(String strName, int iPeriodType, String strFileId)
+{
+	return tsConf.getOutputFileName(strName, "", iPeriodType, strFileId);
+}
+
+// Output file of the group being reduced (see setGroupFiles).
+private String getGroupFile(String strName, int iPeriodType, int iFile, String strFileId)
+{
+	if (groupFiles[iFile] == null)
+		groupFiles[iFile] = getOutputFileName(strName, iPeriodType, strFileId);
+	return groupFiles[iFile];
+}
+
+private void setGroupFiles(String strName, int iPeriodType)
+{
+	if (strName.equals(strFilesName) == false)
+	{
+		strFilesName = strName;
+		for (int p = 0; p < fileNames.length; p++)
+			fileNames[p] = null;
+	}
+
+	int p = (iPeriodType >= 0 && iPeriodType < fileNames.length) ? iPeriodType : 0;
+	if (fileNames[p] == null)
+		fileNames[p] = new String[FILE_FILTER + tsRecs.recs.length];
+	groupFiles = fileNames[p];
+}
+
+// Write a line of output to a file.
+protected void write(Text value, String strFile) throws IOException, InterruptedException
+{
+	if (async != null)
+		async.write(value, strFile);
+	else
+		out.write(NullWritable.get(), value, strFile);
+}
+
+// Write a binary record to a file (timeseries.outfmt).
+protected void writeData(TSCompositeKey key, TSData tsdata, String strFile) throws IOException, InterruptedException
+{
+	tsdata.setEncoding(iEncoding);
+	out.write(TSYahooFinanceDriver.TIMESERIES_DATA_NAME, key, tsdata, strFile);
+}
 
 @Override
 public void cleanup(Context context) throws IOException {
     
 	try {
+		if (async != null)
+		  async.close();
 		if (out != null)
 		  out.close();
 	} catch (InterruptedException e) {
@@ -316,22 +267,51 @@ public void cleanup(Context context) throws IOException {
   @Override
   public void reduce(TSCompositeKey key, Iterable<TSData> values,
       Context context)
+      throws IOException, InterruptedException {
+     
+	  // The placeholder for the headers of a name (see TSConfProperties.isHeaderKeys).
+	  if (key.isHeader())
+	  {
+		  String strName = tsConf.getOutputName(key);
+		  if (hdrNames.add(strName))
+			  writeHeaders(strName);
+		  return;
+	  }
+	  
+      context.getCounter(Reduce_Counters.MAP_DATA).increment(1);
+	  
+	  if (logger.isDebugEnabled())
+	    logger.debug("TSPeriodRecReducer called" + context.getJobName() + " - " + key.getGroupKey());
+	  
+	  reduceGroup(key, values);
+  }
+  
+  // Filter the records of a group. The values are in the sort order of the dates.
+  protected void reduceGroup(TSCompositeKey key, Iterable<TSData> values)
       throws IOException, InterruptedException {
     
 	  int i = 0;
 	  TSRecData ts = null;
 	  TSData tsd = null;
-	  Text value = new Text();
+	  Text value = null;
 	  boolean bfirst = true;
-	  YahooData ydata = new YahooData();
+	  
+	  // In batch mode start each name with new filters and headers the same as a job for the name alone.
+	  String strName = tsConf.getOutputName(key);
+	  if (tsConf.isBatch() && strName.equals(strRecsName) == false)
+	  {
+		  strRecsName = strName;
+		  setupRecs();
+		  if (tsConf.isHeaderKeys() == false && hdrNames.add(strName))
+			  writeHeaders(strName);
+	  }
+	  
 	  // Reset the record filters for a new set.
+	  int iPeriodType = key.getPeriodType();
+	  tsRecs = tsPeriodRecs[(iPeriodType >= 0 && iPeriodType < tsPeriodRecs.length) ? iPeriodType : 0];
 	  tsRecs.reset();
+	  setGroupFiles(strName, iPeriodType);
 	  icnt++;
-     
-      context.getCounter(Reduce_Counters.MAP_DATA).increment(1);
-	  
-	  if (logger.isDebugEnabled())
-	    logger.debug("TSPeriodRecReducer called" + context.getJobName() + " - " + key.getGroupKey());
 	  
 	  for (TSData tsdata : values) {
 
@@ -349,7 +329,7 @@ public void cleanup(Context context) throws IOException {
 		  {	
 		  ydata.exchange = key.getXKey();
 		  ydata.symbol = key.getSKey();
-		  ydata.period = key.getPeriodKey();
+		  ydata.period = bPeriod ? key.getPeriodKey() : "";
 		  ydata.id = "all";
 		  ydata.idn = icnt;
 		  ydata.date = tsdata.lDateTime;
@@ -360,119 +340,20 @@ public void cleanup(Context context) throws IOException {
 		  ydata.volume = tsdata.lVolume;
 		  ydata.adj_close = tsdata.fAdj_Close;
 	  
-          value.set(YahooData.format(ydata, tsConf.strOutCols));
-	      out.write(NullWritable.get(), value, tsConf.getOutputFileName(TSConfProperties.TIMESERIES_ALL_FNAME));
+          value = fmt.format(ydata);
+	      write(value, getGroupFile(strName, iPeriodType, FILE_ALL, TSConfProperties.TIMESERIES_ALL_FNAME));
 		  }
 		  
 		  if (bfirst)
 		  {
 			  // first time set each filter item to first data record.
 			  bfirst = false;
-			  for (i = 0; i < tsRecs.recs.length; i++)
-			  {
-				tsd = tsRecs.recs[i].tsdata; 
-				tsd.copy(tsdata);
-			  }
-			 
+			  tsRecs.first(tsdata);
 		  }
 		  else 
 		  {
 		  // Now filter data by criteria.
-		  for (i = 0; i < tsRecs.recs.length; i++)
-		    {
-			ts =  tsRecs.recs[i];
-			tsd = ts.tsdata;
-			
-			switch (ts.strFilterName)
-			{
-			case TSConfProperties.TIMESERIES_REC_OPEN:
-				 if (tsdata.lDateTime < tsd.lDateTime)
-					 tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_HOPEN:
-				if (tsdata.fOpen > tsd.fOpen)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_LOPEN:
-				if (tsdata.fOpen < tsd.fOpen)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_HIGH:
-				if (tsdata.fHigh > tsd.fHigh)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_LHIGH:
-				if (tsdata.fHigh < tsd.fHigh)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_LOW:
-				if (tsdata.fLow < tsd.fLow)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_HLOW:
-				if (tsdata.fLow > tsd.fLow)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_CLOSE:
-				if (tsdata.lDateTime > tsd.lDateTime)
-					tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_HCLOSE:
-				if (tsdata.fClose > tsd.fClose)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_LCLOSE:
-				if (tsdata.fClose < tsd.fClose)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_HVOL:
-				if (tsdata.lVolume > tsd.lVolume)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_LVOL:
-				// use lowest non zero volume.
-				if (tsd.lVolume == 0)
-				{
-				if (tsdata.lVolume > tsd.lVolume)
-				  tsd.copy(tsdata);	
-				}
-				else {
-					if (tsdata.lVolume != 0 && tsdata.lVolume < tsd.lVolume)
-					      tsd.copy(tsdata);
-				}
-				
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_ADJCLOSE:
-				if (tsdata.lDateTime > tsd.lDateTime)
-					tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_HADJCLOSE:
-				if (tsdata.fAdj_Close > tsd.fAdj_Close)
-				      tsd.copy(tsdata);
-				break;
-				
-			case TSConfProperties.TIMESERIES_REC_LADJCLOSE:
-				if (tsdata.fAdj_Close < tsd.fAdj_Close)
-				      tsd.copy(tsdata);
-				break;
-				
-			default:
-			break;
-			}
-			}  
+		  tsRecs.filter(tsdata);
 		  }
 	  }
 		  
@@ -484,15 +365,14 @@ public void cleanup(Context context) throws IOException {
 		  tsRecs.sort(); 
 			  
 		// mark any possible duplicate dates if the data will be combined at all.
-		  if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_COMBINE)||
-			  tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS))
+		  if (bOutCombine)
 		  {
 		  tsRecs.markDupeDate();
 		  }
 		
 		  ydata.exchange = key.getXKey();
 		  ydata.symbol = key.getSKey();
-		  ydata.period = key.getPeriodKey(); 
+		  ydata.period = bPeriod ? key.getPeriodKey() : "";
 		  
 		  // output the data. One line per record.
 		  
@@ -501,7 +381,7 @@ public void cleanup(Context context) throws IOException {
 			  ts = tsRecs.recs[i];
 			  
 			  // Only unique records required? If so skip record.
-			  if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_COMBINE) && ts.bUniqueDate == false)
+			  if (bOnlyUnique && ts.bUniqueDate == false)
 				  continue;
 			 
 			  ydata.id = ts.strFilterName;
@@ -515,32 +395,27 @@ public void cleanup(Context context) throws IOException {
 			  ydata.volume = tsd.lVolume;
 			  ydata.adj_close = tsd.fAdj_Close;
 		  
-              value.set(YahooData.format(ydata, tsConf.strOutCols));
+              value = fmt.format(ydata);
 		  
 		      //instead of context.write(NullWritable.get(), value), write to specified file. 
               
               // Output unique records (by date) across all the record filters.
-              if (ts.bUniqueDate &&
-            	 (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_COMBINE) ||
-            	  tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS)))
-            	 out.write(NullWritable.get(), value, tsConf.getOutputFileName(TSConfProperties.TIMESERIES_COMBINE_FNAME));
+              if (ts.bUniqueDate && bOutCombine)
+            	 write(value, getGroupFile(strName, iPeriodType, FILE_COMBINE, TSConfProperties.TIMESERIES_COMBINE_FNAME));
              
            // If the records are split by a filter then output all records into another file that
            // can contain duplicate records.
-              if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_SPLIT) ||
-                  tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS))
-                out.write(NullWritable.get(), value, tsConf.getOutputFileName(TSConfProperties.TIMESERIES_SPLIT_FNAME));
+              if (bOutSplit)
+                write(value, getGroupFile(strName, iPeriodType, FILE_SPLIT, TSConfProperties.TIMESERIES_SPLIT_FNAME));
               
 		      // Also write the records out to their own individual files. The file is
               // identified by the Filter Name portion.
-		      if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_SPLIT) ||
-	              tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS))
-		        out.write(NullWritable.get(), value, tsConf.getOutputFileName(ts.strFilterName));	
+		      if (bOutSplit)
+		        write(value, getGroupFile(strName, iPeriodType, FILE_FILTER + ts.iFilterId, ts.strFilterName));	
 		      
 		    }
 			        
-		  if (tsConf.strSplit.equals(TSConfProperties.TIMESERIES_REGRESS) ||
-		          tsConf.strSplit.equals(TSConfProperties.TIMESERIES_ALLRECS))
+		  if (bOutRegress)
 		      {
 		    	  /* Regress times series back to date, value pairs with the data value stored in the adj close field/column.
 		    	     All data except volume ends up in the Adjusted_Close value. Everything is put in one file.
@@ -563,13 +438,13 @@ public void cleanup(Context context) throws IOException {
 					  // Only unique data records required. If a duplicate date, value pair then skip record. 
 					  // Also skip the record if the adj_close is zero. This will be from column where all values are zero.
 					  
+					  tsd =  ts.tsdata;
 					  if (ts.bUniqueData && tsd.fAdj_Close > 0.0)
 					  {	  
 					 
 					 // adj_close contains series but other data will likely be requested.
 					  ydata.id = ts.strFilterName;
 					  ydata.idn = ts.iFilterId;
-					  tsd =  ts.tsdata;
 					  ydata.date = tsd.lDateTime;
 					  ydata.open = tsd.fOpen;	
 					  ydata.high = tsd.fHigh;
@@ -578,8 +453,8 @@ public void cleanup(Context context) throws IOException {
 					  ydata.volume = tsd.lVolume;
 					  ydata.adj_close = tsd.fAdj_Close;
 				  
-		              value.set(YahooData.format(ydata, tsConf.strOutCols));
-		    	      out.write(NullWritable.get(), value, tsConf.getOutputFileName(TSConfProperties.TIMESERIES_REGRESS_FNAME));
+		              value = fmt.format(ydata);
+		    	      write(value, getGroupFile(strName, iPeriodType, FILE_REGRESS, TSConfProperties.TIMESERIES_REGRESS_FNAME));
 					  }
 				  }
 		          
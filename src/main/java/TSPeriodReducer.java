@@ -1,7 +1,8 @@
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -52,11 +53,25 @@ public class TSPeriodReducer
 	// Filter our records that don't span an entire period.
 	static enum Reduce_Counters { MAP_DATA };
 	
-	static long lcnt = 0;
+	long lcnt = 0;
 	TSConfProperties tsConf = new TSConfProperties();
 	
 	private MultipleOutputs<NullWritable, Text> out = null;
    
+	private final TSPeriodAccumulator acc = new TSPeriodAccumulator();
+   
+	// Names that the headers have been written for.
+	private final Set<String> hdrNames = new HashSet<String>();
+	
+	// Binary bars of the periods that coarser periods are rolled up from (timeseries.cascade).
+	private final TSCompositeKey barkey = new TSCompositeKey();
+	private final TSData bardata = new TSData();
+   
+	// Output lines of timeseries.outcols, compiled in setup and reused for each line.
+	private TSOutputFormatter fmt = null;
+	private boolean bPeriod = false;
+	private final YahooData ydata = new YahooData();
+   
     private static final Log logger = LogFactory.getLog(TSPeriodReducer.class);
     
   
@@ -78,144 +93,107 @@ public void setup(Context context) throws IllegalArgumentException, IOException
 	
 	
 	out = new MultipleOutputs<NullWritable, Text>(context);
+	bardata.setEncoding(tsConf.getEncoding());
+	fmt = new TSOutputFormatter(tsConf.strOutCols);
+	bPeriod = fmt.hasPeriod();
 	
-	if (tsConf.strOutHdr.equals(TSConfProperties.TIMESERIES_HDRS))
+	// In batch mode the names are not known until the data for them is reduced. With several reducers the first
+	// one has the start of every file (see TSRangePartitioner).
+	hdrNames.clear();
+	if (tsConf.isBatch() == false && context.getTaskAttemptID().getTaskID().getId() == 0)
+	  writeHeaders(tsConf.strOutName);
+	  
+    
+  }
+	
+
+  // Write the header to the output files of a name. Binary output has no header.
+  private void writeHeaders(String strName)
+  {
+	if (tsConf.strOutHdr.equals(TSConfProperties.TIMESERIES_HDRS) && tsConf.isSeqOut() == false)
 	{
 	Text value = new Text();
 	value.set(YahooData.format_hdr(tsConf.strOutCols));
 	  
 	try {
-		//context.write(outkey, value); Instead write to specific file.
-		out.write(NullWritable.get(), value, tsConf.getOutputFileName(""));
+		//context.write(outkey, value); Instead write to specific file. One for each period.
+		int [] iPeriodTypes = tsConf.getPeriodTypes();
+		for (int p = 0; p < iPeriodTypes.length; p++)
+			out.write(NullWritable.get(), value, tsConf.getOutputFileName(strName, "", iPeriodTypes[p], ""));
 		
 	} catch (Exception e) {
 		e.printStackTrace();
 	}
 	
 	}
-	  
-    
   }
-	
 
   @Override
   public void reduce(TSCompositeKey key, Iterable<TSData> values,
       Context context)
       throws IOException, InterruptedException {
-    
-	  Text value = new Text();
 
-      YahooData ydata = null;
-            
-      TSData tsopen = new TSData(); 
-      TSData tsclose = new TSData();
-      
+	  // The placeholder for the headers of a name (see TSConfProperties.isHeaderKeys).
+	  if (key.isHeader())
+	  {
+		  String strName = tsConf.getOutputName(key);
+		  if (hdrNames.add(strName))
+			  writeHeaders(strName);
+		  return;
+	  }
+	  
       context.getCounter(Reduce_Counters.MAP_DATA).increment(1);
 	  
 	  if (logger.isDebugEnabled())
 	    logger.debug("TSPeriodReducer called" + context.getJobName() + " - " + key.getGroupKey());
 	  
-	  for (TSData tsdata : values) {
-
-	  	/* Reduce the list of Data points to one containing the High, Low, Open, Close and Adjusted Close for the entire
+	  /* Reduce the list of Data points to one containing the High, Low, Open, Close and Adjusted Close for the entire
 	  	 Period covered by the GroupKey. Each call to the reducer contains all of the data for the period.
 		 
 		 The output should contain the first open (lowest date/timestamp), Highest High, Lowest Low, total volume and
-		 last close and adjusted close (last date/timestamp) for the period. 
-		 */
-		  
-		  if (ydata == null)
-		  {
-			ydata = new YahooData();
-			ydata.date = tsdata.lDateTime;
-			ydata.open = tsdata.fOpen;	
-			if (StringUtils.contains(key.getInFields(), YahooData.TIMESERIES_COL_HIGH))
-			    ydata.high = tsdata.fHigh;
-			else 
-				ydata.high = tsdata.fAdj_Close;
-			
-			if (StringUtils.contains(key.getInFields(), YahooData.TIMESERIES_COL_LOW))
-				ydata.low = tsdata.fLow;
-			else 
-			    ydata.low = tsdata.fAdj_Close;
-			
-			if (StringUtils.contains(key.getInFields(), YahooData.TIMESERIES_COL_CLOSE))
-				ydata.close = tsdata.fClose;
-			else 
-			    ydata.close = tsdata.fAdj_Close;
-	
-			ydata.volume = tsdata.lVolume;
-			ydata.adj_close = tsdata.fAdj_Close;
-			tsopen.copy(tsdata);
-			tsclose.copy(tsdata);
-		  }
-		  else {
-			  // Find earliest open.
-		    if (tsdata.compareTo(tsopen) < 0)
-		      tsopen.copy(tsdata);
-		    
-		    //Find latest close
-		    if (tsdata.compareTo(tsclose) > 0)
-		       tsclose.copy(tsdata);
-		    
-		    // sum the volume for the period
-		    ydata.volume += tsdata.lVolume;
-		    
-		    // Find highest high for the period.
-		    // If there is no high value input then use the adjusted close value
-		    if (StringUtils.contains(key.getInFields(), YahooData.TIMESERIES_COL_HIGH))
-		    {
-		    if (tsdata.fHigh > ydata.high)
-		      ydata.high = tsdata.fHigh;
-		    }
-		    else {
-		    	// no csv input high. Adjusted close may contain tick data.
-		    	if (tsdata.fAdj_Close > ydata.high)
-				      ydata.high = tsdata.fAdj_Close;
-			}
-		    
-		   
-		    // Find lowest low for the period.
-		    if (StringUtils.contains(key.getInFields(), YahooData.TIMESERIES_COL_LOW))
-		    {
-		    	if (tsdata.fLow < ydata.low)
-				      ydata.low = tsdata.fLow;
-		    }
-		    else {
-		    	// no csv input low. Adjusted close may contain tick data.
-		    	if (tsdata.fAdj_Close < ydata.low)
-				      ydata.low = tsdata.fAdj_Close;
-			}
-		    
-		    }
-		  }
+		 last close and adjusted close (last date/timestamp) for the period. The values may be the input records or
+		 partial aggregates of them from the TSPeriodCombiner.
+	   */
+	  acc.reset();
+	  for (TSData tsdata : values)
+		  acc.add(tsdata, key);
 	    
 	  // combine into one data point. Use the period ending date for the date.
-	  if (ydata !=  null)
+	  if (acc.isEmpty() == false)
 	  {
+		  String strName = tsConf.getOutputName(key);
+		  if (tsConf.isBatch() && tsConf.isHeaderKeys() == false && hdrNames.add(strName))
+			  writeHeaders(strName);
+		  
+		  String strFile = tsConf.getOutputFileName(strName, "", key.getPeriodType(), "");
+		  
+		  // Binary output is the period key and the consolidated record so it can be reduced again (timeseries.outfmt).
+		  acc.get(bardata);
+		  barkey.set(key);
+		  barkey.setValue(bardata.lDateTime);
+		  
+		  if (tsConf.isSeqOut())
+		  {
+			  barkey.setNamesInline();
+			  out.write(TSYahooFinanceDriver.TIMESERIES_DATA_NAME, barkey, bardata, strFile);
+		  }
+		  else
+		  {
+		  acc.get(ydata);
 		  ydata.id = "period"; // data that is input to process.
 		  ydata.idn = lcnt++;
 		  ydata.exchange = key.getXKey();
 		  ydata.symbol = key.getSKey();
-		  ydata.period = key.getPeriodKey();
-		  // if there is no open value then use Adj Close (with earliest date).
-		  if (StringUtils.contains(key.getInFields(), YahooData.TIMESERIES_COL_OPEN))
-		    ydata.open = tsopen.fOpen;
-		  else 
-			 ydata.open = tsopen.fAdj_Close;
-		  // if there is no close value then use Adj Close (with last date).
-		  if (StringUtils.contains(key.getInFields(), YahooData.TIMESERIES_COL_CLOSE))
-			ydata.close = tsclose.fClose;
-		  else
-		    ydata.close = tsclose.fAdj_Close;
-		  ydata.adj_close = tsclose.fAdj_Close;
-		  ydata.date = tsclose.lDateTime;
-		  
-		  // Create output line of data
-		  value.set(YahooData.format(ydata, tsConf.strOutCols));  
+		  ydata.period = bPeriod ? key.getPeriodKey() : "";
 		  
 		  //context.write(outkey, value); Instead of the standard form write to specific file.
-		  out.write(NullWritable.get(), value, tsConf.getOutputFileName(""));
+		  out.write(NullWritable.get(), fmt.format(ydata), strFile);
+		  }
+		 
+		  // The bar is kept as a partial record so it can be consolidated again into the coarser period.
+		  if (tsConf.isCascade() && TSCalendar.isRollupSource(key.getPeriodType()))
+			  out.write(TSYahooFinanceDriver.TIMESERIES_BARS_NAME, barkey, bardata, 
+					  TSYahooFinanceDriver.TIMESERIES_BARS_NAME + FileSystemPath.separator + strFile);
 		 
 	  }
   }
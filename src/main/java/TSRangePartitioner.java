@@ -0,0 +1,91 @@
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/*
+ * Partitions the keys into ranges of the group key (exchange, symbol, period type and period) in the sort order of the
+ * job (timeseries.reducers). The same idea as the TotalOrderPartitioner, but the split points are group keys so all
+ * of the records of a period go to the same reducer.
+ *
+ * The split points are sampled from the input by the driver (see TSKeySampler) and passed in the job configuration.
+ * Reducer i gets the keys from split point i - 1 up to but not including split point i, so each reducer has a range
+ * of the sorted keys and the part files of an output file (-r-00000, -r-00001, ...) put together in order are the same
+ * as the one file of a single reducer. A header key sorts first for its exchange and symbol and so goes to the reducer
+ * of their first records or one before it.
+ *
+ * The GroupPartitioner hashes the group key, which scatters the periods of a file over the reducers.
+ *
+ */
+public class TSRangePartitioner extends Partitioner<TSCompositeKey, TSData> implements Configurable {
+
+	// Split points as exchange:symbol:period type:period key separated by commas. Set by the driver for each job.
+	public static final String TIMESERIES_PARTITION_SPLITS = "timeseries.partition.splits";
+
+	private Configuration config = null;
+	private TSCompositeKey [] splits = new TSCompositeKey[0];
+	private int srt = -1;
+
+	// Split points in the format of TIMESERIES_PARTITION_SPLITS.
+	public static String formatSplits(TSCompositeKey [] keys)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (i > 0)
+				sb.append(',');
+			sb.append(keys[i].getXKey()).append(':').append(keys[i].getSKey()).append(':');
+			sb.append(keys[i].getPeriodType()).append(':').append(keys[i].getPeriodNum());
+		}
+		return sb.toString();
+	}
+
+	public static TSCompositeKey [] parseSplits(String strSplits, TSSymbolDictionary dict)
+	{
+		if (strSplits == null || strSplits.equals(""))
+			return new TSCompositeKey[0];
+
+		String [] strKeys = strSplits.split(",");
+		TSCompositeKey [] keys = new TSCompositeKey[strKeys.length];
+		for (int i = 0; i < strKeys.length; i++)
+		{
+			String [] parts = strKeys[i].split(":", -1);
+			keys[i] = new TSCompositeKey();
+			keys[i].setDictionary(dict);
+			keys[i].set(parts[0], parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), 0, 0);
+		}
+		return keys;
+	}
+
+	@Override
+	public int getPartition(TSCompositeKey key, TSData value, int numPartitions) {
+
+		// The first split point that the key comes before.
+		int lo = 0;
+		int hi = splits.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (srt * key.compareGroupKeyTo(splits[mid]) < 0)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+
+		return Math.min(lo, numPartitions - 1);
+	}
+
+	public void setConf(Configuration conf)
+	{
+		config = conf;
+
+		// The names of the split points are looked up in the symbol dictionary of the configuration.
+		TSConfProperties tsConf = new TSConfProperties(conf);
+		srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+		splits = parseSplits(conf.get(TIMESERIES_PARTITION_SPLITS), tsConf.getSymbolDictionary());
+	}
+
+	public Configuration getConf()
+	{
+		return config;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * A record of a period that matched one of the filters of the TSPeriodRecReducer (see TSFilteredRecs).
+ */
+class TSRecData implements java.lang.Comparable<TSRecData> {
+		
+	public int srt = 1;
+	public String strFilterName = "";
+	public int iFilterId = 0;
+	public TSData tsdata = new TSData();
+	public boolean bUniqueDate = true;
+	public boolean bUniqueData = true;
+	
+	public void copy(TSRecData tsrec)
+	{
+		srt = tsrec.srt;
+		strFilterName = tsrec.strFilterName;
+	    iFilterId = tsrec.iFilterId;
+	    bUniqueDate = tsrec.bUniqueDate;
+	    bUniqueData = tsrec.bUniqueData;
+	    tsdata = new TSData();
+	    tsdata.copy(tsrec.tsdata);
+	}
+	
+	@Override
+	public int compareTo(TSRecData ts) {
+		
+		return srt * tsdata.compareTo(ts.tsdata);
+	}
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.util.LineReader;
+
+/*
+ * Map only version of the fused period reduction and record filtering (timeseries.stream).
+ *
+ * Yahoo csv files are one symbol per file and sorted by date so the records of each period follow each other. The
+ * mapper keeps the records of the current period for each period type and when the period changes it reduces them
+ * in the same way as the TSPeriodFusedReducer, without the sort and shuffle. The periods must come in the order of
+ * timeseries.sort, a period that is out of order fails the task. The driver checks the order of the first dates of
+ * each file (isInSortOrder) and runs the job with the shuffle instead for files in the other order.
+ *
+ * A split may start or end part way through a period. The first period of a split that doesn't start the file and the
+ * last period of a split that doesn't end the file are edges. Their records are written to the edges directory and the
+ * TSStreamStitcher reduces them once all of the splits are done (at most two periods for each period type of a split).
+ *
+ * The output lines of each split go to their own files tagged with the offset of the split (and the headers to their
+ * own files) so the stitcher can put the lines of the splits and the edges together in order.
+ *
+ */
+public class TSStreamMapper extends TSDataMapper {
+
+	static enum Stream_Counters { STREAM_GROUPS, STREAM_EDGE_GROUPS, STREAM_EDGE_RECS };
+
+	// Named outputs for the output lines and the records of the edge periods.
+	public static final String TIMESERIES_LINES_NAME = "lines";
+	public static final String TIMESERIES_EDGES_NAME = "edges";
+
+	// Tags added to the output file names. The split is followed by its offset in the file.
+	public static final String TIMESERIES_SPLIT_TAG = "-split";
+	public static final String TIMESERIES_HDR_TAG = "-hdr";
+
+	// Edge slots. The first period of a split goes before the lines of the split and the last one after them.
+	public static final int EDGE_FIRST = 0;
+	public static final int EDGE_LINES = 1;
+	public static final int EDGE_LAST = 2;
+
+	// Name of the output file of the lines of a split or the records of an edge.
+	public static String getSplitTag(long lOffset) {
+		return TIMESERIES_SPLIT_TAG + String.format("%016d", lOffset);
+	}
+
+	public static String getEdgeFileName(long lOffset, int iSlot) {
+		return TIMESERIES_EDGES_NAME + FileSystemPath.separator + "e" + String.format("%016d", lOffset) + "_" + iSlot;
+	}
+
+	// Lines read from the start of a file for two records of different days.
+	private static final int ORDER_CHECK_LINES = 1000;
+
+	/* Whether the first two records of a csv file with different days come in the order of timeseries.sort. The lines
+	   are parsed the same as the mapper and the day keys compared the same as output. A file without two such
+	   records at its start is taken to be in order.
+	 */
+	public static boolean isInSortOrder(TSConfProperties tsConf, FileSystem fs, Path path) throws IOException {
+
+		int srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+		TSColumnPlan templatePlan = TSColumnPlan.compile(tsConf.strCsvCols);
+		TSColumnPlan plan = null;
+		String strFileSymbol = tsConf.isBatch() ? tsConf.getFileName(path.getName()) : "";
+		TSCsvParser parser = new TSCsvParser();
+		TSCalendar cal = tsConf.getCalendar();
+		TSCompositeKey first = null;
+
+		CompressionCodec codec = new CompressionCodecFactory(tsConf.conf).getCodec(path);
+		InputStream in = fs.open(path);
+		if (codec != null)
+			in = codec.createInputStream(in);
+		try {
+			LineReader reader = new LineReader(in, tsConf.conf);
+			Text line = new Text();
+			for (int i = 0; i < ORDER_CHECK_LINES && reader.readLine(line) > 0; i++)
+			{
+				byte [] bytes = line.getBytes();
+				int len = line.getLength();
+				if (TSCsvParser.isHeader(bytes, len))
+					continue;
+
+				parser.split(bytes, len);
+				if (plan == null)
+				{
+					plan = parser.parseDetect(templatePlan);
+					if (plan == null)
+						continue;
+				}
+				else if (parser.parse(plan) != 0)
+					continue;
+
+				String strSymbol = parser.symbol;
+				if (strSymbol.equals(""))
+					strSymbol = strFileSymbol;
+				TSCompositeKey key = new TSCompositeKey();
+				key.setDictionary(tsConf.getSymbolDictionary());
+				key.set(parser.exchange, strSymbol, TSCalendar.PERIOD_DAY,
+						cal.getPeriodKey(TSCalendar.PERIOD_DAY, TSCalendar.getEpochDay(parser.date)), 0, 0);
+
+				if (first == null)
+					first = key;
+				else if (key.compareGroupKeyTo(first) != 0)
+					return srt * key.compareGroupKeyTo(first) > 0;
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	// The records of the current period of a period type.
+	private static class GroupState {
+		final TSCompositeKey key = new TSCompositeKey();
+		final List<TSData> recs = new ArrayList<TSData>();
+		int iCount = 0;
+		boolean bFirst = true;
+	}
+
+	/*
+	 * The fused reducer with the output going to the files of the split.
+	 */
+	private class SplitReducer extends TSPeriodFusedReducer {
+		private boolean bHeader = false;
+
+		@Override
+		protected void writeHeaders(String strName)
+		{
+			bHeader = true;
+			super.writeHeaders(strName);
+			bHeader = false;
+		}
+
+		@Override
+		protected void write(Text value, String strFile) throws IOException, InterruptedException
+		{
+			mos.write(TIMESERIES_LINES_NAME, NullWritable.get(), value, strFile + (bHeader ? TIMESERIES_HDR_TAG : strSplitTag));
+		}
+	}
+
+	private MultipleOutputs<TSCompositeKey, TSData> mos = null;
+	private SplitReducer groupReducer = null;
+	private final GroupState [] states = new GroupState[TSCalendar.PERIOD_DAY + 1];
+	private final TSCompositeKey edgekey = new TSCompositeKey();
+
+	private long lSplitStart = 0;
+	private boolean bSplitAtEnd = true;
+	private String strSplitTag = "";
+	private int srt = -1;
+	private int iEncoding = TSData.ENCODING_DEFAULT;
+
+	private Comparator<TSData> dateOrder = null;
+
+	@Override
+	public void setup(Context context) throws IllegalArgumentException, IOException {
+		super.setup(context);
+
+		if ((context.getInputSplit() instanceof FileSplit) == false)
+			throw new IOException("timeseries.stream needs file splits of the input files");
+
+		Configuration config = context.getConfiguration();
+		FileSplit split = (FileSplit) context.getInputSplit();
+		Path path = split.getPath();
+		long lFileLen = path.getFileSystem(config).getFileStatus(path).getLen();
+		lSplitStart = split.getStart();
+		bSplitAtEnd = split.getStart() + split.getLength() >= lFileLen;
+		strSplitTag = getSplitTag(lSplitStart);
+
+		srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+		iEncoding = tsConf.getEncoding();
+		dateOrder = new Comparator<TSData>() {
+			public int compare(TSData d1, TSData d2) {
+				if (d1.lDateTime == d2.lDateTime)
+					return 0;
+				return srt * (d1.lDateTime < d2.lDateTime ? -1 : 1);
+			}
+		};
+
+		for (int i = 0; i < states.length; i++)
+			states[i] = new GroupState();
+
+		mos = new MultipleOutputs<TSCompositeKey, TSData>(context);
+		groupReducer = new SplitReducer();
+		groupReducer.configure(config);
+	}
+
+	@Override
+	protected void output(int iPeriodType, int iKey, TSCompositeKey key, TSData tsdata, Context cntxt)
+			throws IOException, InterruptedException {
+
+		GroupState st = states[iPeriodType];
+		if (st.iCount > 0)
+		{
+			int res = key.compareGroupKeyTo(st.key);
+			if (res != 0)
+			{
+				if (srt * res < 0)
+					throw new IOException("timeseries.stream needs the periods of the input in the timeseries.sort order. " +
+							key.getGroupKey() + " follows " + st.key.getGroupKey());
+				finish(st, false, cntxt);
+			}
+		}
+
+		if (st.iCount == 0)
+			st.key.set(key);
+
+		if (st.iCount == st.recs.size())
+		{
+			st.recs.add(new TSData());
+			st.recs.get(st.iCount).setEncoding(iEncoding);
+		}
+		st.recs.get(st.iCount++).copy(tsdata);
+	}
+
+	// Reduce the records of the period or keep them for the stitcher if the period may carry on in another split.
+	private void finish(GroupState st, boolean bLast, Context cntxt) throws IOException, InterruptedException {
+
+		boolean bEdge = (st.bFirst && lSplitStart > 0) || (bLast && bSplitAtEnd == false);
+		List<TSData> recs = st.recs.subList(0, st.iCount);
+
+		if (bEdge)
+		{
+			String strEdgeFile = getEdgeFileName(lSplitStart, st.bFirst ? EDGE_FIRST : EDGE_LAST);
+			edgekey.set(st.key);
+			for (int i = 0; i < recs.size(); i++)
+			{
+				edgekey.setValue(recs.get(i).lDateTime);
+				mos.write(TIMESERIES_EDGES_NAME, edgekey, recs.get(i), strEdgeFile);
+			}
+			cntxt.getCounter(Stream_Counters.STREAM_EDGE_GROUPS).increment(1);
+			cntxt.getCounter(Stream_Counters.STREAM_EDGE_RECS).increment(recs.size());
+		}
+		else
+		{
+			// The reducer gets the records in the sort order of the dates.
+			Collections.sort(recs, dateOrder);
+			groupReducer.reduceGroup(st.key, recs);
+			cntxt.getCounter(Stream_Counters.STREAM_GROUPS).increment(1);
+		}
+
+		st.iCount = 0;
+		st.bFirst = false;
+	}
+
+	@Override
+	public void cleanup(Context cntxt) throws IOException, InterruptedException {
+
+		for (int i = 0; i < states.length; i++)
+			if (states[i] != null && states[i].iCount > 0)
+				finish(states[i], true, cntxt);
+
+		if (mos != null)
+			mos.close();
+	}
+}
@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/*
+ * Follow up step of the map only stream job (see TSStreamMapper).
+ *
+ * Reduces the periods at the edges of the splits from the records the mappers kept for them. The records of a period
+ * from both sides of a split boundary are put together and reduced by the TSPeriodFusedReducer in the same way as
+ * the job with a shuffle would.
+ *
+ * Then the output of the splits is put together into the files of the job in the order of the splits. Each file
+ * is the header, then for each split, the lines of the edge periods that come before the split, the lines of the
+ * split and the lines of the edge periods after it. The files are named as reducer output files (-r-00000) so they
+ * are copied out the same way.
+ *
+ * Runs in the driver as there are at most two edge periods for each period type of a split.
+ *
+ */
+public class TSStreamStitcher {
+
+	private static final Pattern EDGE_FILE = Pattern.compile("e(\\d+)_(\\d)-m-\\d+");
+	private static final Pattern SPLIT_FILE = Pattern.compile("(.*)" + TSStreamMapper.TIMESERIES_SPLIT_TAG + "(\\d{16})-m-\\d+");
+	private static final Pattern HDR_FILE = Pattern.compile("(.*)" + TSStreamMapper.TIMESERIES_HDR_TAG + "-m-\\d+");
+
+	private static final String OUTPUT_SUFFIX = "-r-00000";
+
+	// A piece of an output file. Either the lines of a split (in a file) or the lines of the edge periods.
+	private static class Piece {
+		final long lOffset;
+		final int iSlot;
+		final Path path;
+		final List<String> lines = new ArrayList<String>();
+
+		Piece(long lOffset, int iSlot, Path path) {
+			this.lOffset = lOffset;
+			this.iSlot = iSlot;
+			this.path = path;
+		}
+	}
+
+	private static final Comparator<Piece> PIECE_ORDER = new Comparator<Piece>() {
+		public int compare(Piece p1, Piece p2) {
+			if (p1.lOffset != p2.lOffset)
+				return p1.lOffset < p2.lOffset ? -1 : 1;
+			return p1.iSlot - p2.iSlot;
+		}
+	};
+
+	// A record of an edge period and where it came from.
+	private static class EdgeRec {
+		final TSCompositeKey key = new TSCompositeKey();
+		final TSData tsdata = new TSData();
+		long lOffset;
+		int iSlot;
+	}
+
+	/*
+	 * The fused reducer with the output going to the pieces of the edge periods.
+	 */
+	private class EdgeReducer extends TSPeriodFusedReducer {
+		private boolean bHeader = false;
+		private long lOffset = 0;
+		private int iSlot = 0;
+
+		@Override
+		protected void writeHeaders(String strName)
+		{
+			bHeader = true;
+			super.writeHeaders(strName);
+			bHeader = false;
+		}
+
+		@Override
+		protected void write(Text value, String strFile)
+		{
+			if (bHeader)
+			{
+				if (headers.containsKey(strFile) == false)
+					headers.put(strFile, value.toString());
+				return;
+			}
+
+			getPiece(strFile, lOffset, iSlot, null).lines.add(value.toString());
+		}
+	}
+
+	private final Configuration conf;
+	private final Path outPath;
+	private final FileSystem fs;
+
+	// Pieces of each output file by its name relative to the output path, and the header lines.
+	private final Map<String, List<Piece>> pieces = new TreeMap<String, List<Piece>>();
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private final Map<String, Path> hdrFiles = new HashMap<String, Path>();
+
+	public TSStreamStitcher(Configuration conf, String strOutDir) throws IOException {
+		this.conf = conf;
+		this.outPath = new Path(strOutDir);
+		this.fs = outPath.getFileSystem(conf);
+	}
+
+	private Piece getPiece(String strFile, long lOffset, int iSlot, Path path) {
+		List<Piece> lst = pieces.get(strFile);
+		if (lst == null)
+		{
+			lst = new ArrayList<Piece>();
+			pieces.put(strFile, lst);
+		}
+
+		for (int i = 0; i < lst.size() && path == null; i++)
+			if (lst.get(i).path == null && lst.get(i).lOffset == lOffset && lst.get(i).iSlot == iSlot)
+				return lst.get(i);
+
+		Piece piece = new Piece(lOffset, iSlot, path);
+		lst.add(piece);
+		return piece;
+	}
+
+	// Files under a directory with the names relative to the output path.
+	private Map<String, Path> listFiles(Path dir) throws IOException {
+		Map<String, Path> files = new TreeMap<String, Path>();
+		if (fs.exists(dir) == false)
+			return files;
+
+		String strRoot = fs.makeQualified(outPath).toUri().getPath();
+		RemoteIterator<LocatedFileStatus> it = fs.listFiles(dir, true);
+		while (it.hasNext())
+		{
+			Path path = it.next().getPath();
+			String strName = path.getName();
+			if (strName.startsWith(".") || strName.startsWith("_"))
+				continue;
+			files.put(path.toUri().getPath().substring(strRoot.length() + 1), path);
+		}
+		return files;
+	}
+
+	// Reduce the edge periods and put together the output files. Returns true if it worked.
+	public boolean stitch() throws IOException, InterruptedException {
+
+		TSConfProperties tsConf = new TSConfProperties(conf);
+		final int srt = tsConf.strSort.equals(TSConfProperties.TIMESERIES_SORT_ASC) ? 1 : -1;
+		TSSymbolDictionary dict = tsConf.getSymbolDictionary();
+
+		// Read the records of the edge periods.
+		Path edgesPath = new Path(outPath, TSStreamMapper.TIMESERIES_EDGES_NAME);
+		List<EdgeRec> recs = new ArrayList<EdgeRec>();
+		for (Path path : listFiles(edgesPath).values())
+		{
+			Matcher m = EDGE_FILE.matcher(path.getName());
+			if (m.matches() == false)
+				continue;
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+			try {
+				EdgeRec rec = new EdgeRec();
+				rec.key.setDictionary(dict);
+				while (reader.next(rec.key, rec.tsdata))
+				{
+					rec.lOffset = Long.parseLong(m.group(1));
+					rec.iSlot = Integer.parseInt(m.group(2));
+					recs.add(rec);
+					rec = new EdgeRec();
+					rec.key.setDictionary(dict);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		// In the same order as the shuffle, records of the same date in the order of the splits.
+		Collections.sort(recs, new Comparator<EdgeRec>() {
+			public int compare(EdgeRec r1, EdgeRec r2) {
+				int res = srt * r1.key.compareTo(r2.key);
+				if (res != 0)
+					return res;
+				if (r1.lOffset != r2.lOffset)
+					return r1.lOffset < r2.lOffset ? -1 : 1;
+				return r1.iSlot - r2.iSlot;
+			}
+		});
+
+		EdgeReducer reducer = new EdgeReducer();
+		reducer.configure(conf);
+
+		// Reduce each period. Its lines go in the first place any of its records came from.
+		int iStart = 0;
+		while (iStart < recs.size())
+		{
+			int iEnd = iStart + 1;
+			long lOffset = recs.get(iStart).lOffset;
+			int iSlot = recs.get(iStart).iSlot;
+			while (iEnd < recs.size() && recs.get(iEnd).key.compareGroupKeyTo(recs.get(iStart).key) == 0)
+			{
+				EdgeRec rec = recs.get(iEnd);
+				if (rec.lOffset < lOffset || (rec.lOffset == lOffset && rec.iSlot < iSlot))
+				{
+					lOffset = rec.lOffset;
+					iSlot = rec.iSlot;
+				}
+				iEnd++;
+			}
+
+			List<TSData> values = new ArrayList<TSData>();
+			for (int i = iStart; i < iEnd; i++)
+				values.add(recs.get(i).tsdata);
+
+			reducer.lOffset = lOffset;
+			reducer.iSlot = iSlot;
+			reducer.reduceGroup(recs.get(iStart).key, values);
+			iStart = iEnd;
+		}
+
+		// The lines and headers of the splits.
+		Map<String, Path> files = listFiles(outPath);
+		for (Map.Entry<String, Path> entry : files.entrySet())
+		{
+			Matcher m = SPLIT_FILE.matcher(entry.getKey());
+			if (m.matches())
+			{
+				getPiece(m.group(1), Long.parseLong(m.group(2)), TSStreamMapper.EDGE_LINES, entry.getValue());
+				continue;
+			}
+
+			m = HDR_FILE.matcher(entry.getKey());
+			if (m.matches())
+			{
+				// The headers of a file are the same in each split.
+				if (hdrFiles.containsKey(m.group(1)))
+					fs.delete(entry.getValue(), false);
+				else
+					hdrFiles.put(m.group(1), entry.getValue());
+			}
+		}
+
+		for (String strFile : hdrFiles.keySet())
+			if (pieces.containsKey(strFile) == false)
+				pieces.put(strFile, new ArrayList<Piece>());
+		for (String strFile : headers.keySet())
+			if (pieces.containsKey(strFile) == false)
+				pieces.put(strFile, new ArrayList<Piece>());
+
+		for (Map.Entry<String, List<Piece>> entry : pieces.entrySet())
+			writeFile(entry.getKey(), entry.getValue());
+
+		fs.delete(edgesPath, true);
+		return true;
+	}
+
+	// Write an output file from its header and pieces and remove the pieces.
+	private void writeFile(String strFile, List<Piece> lst) throws IOException {
+
+		Collections.sort(lst, PIECE_ORDER);
+
+		FSDataOutputStream out = fs.create(new Path(outPath, strFile + OUTPUT_SUFFIX), true);
+		try {
+			Path hdrFile = hdrFiles.get(strFile);
+			if (hdrFile != null)
+				copy(hdrFile, out);
+			else if (headers.containsKey(strFile))
+				writeLine(headers.get(strFile), out);
+
+			for (int i = 0; i < lst.size(); i++)
+			{
+				Piece piece = lst.get(i);
+				if (piece.path != null)
+					copy(piece.path, out);
+				for (int j = 0; j < piece.lines.size(); j++)
+					writeLine(piece.lines.get(j), out);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (hdrFiles.containsKey(strFile))
+			fs.delete(hdrFiles.get(strFile), false);
+		for (int i = 0; i < lst.size(); i++)
+			if (lst.get(i).path != null)
+				fs.delete(lst.get(i).path, false);
+	}
+
+	private void copy(Path path, FSDataOutputStream out) throws IOException {
+		InputStream in = fs.open(path);
+		try {
+			IOUtils.copyBytes(in, out, conf, false);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeLine(String strLine, FSDataOutputStream out) throws IOException {
+		out.write(strLine.getBytes("UTF-8"));
+		out.write('\n');
+	}
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Dictionary of exchange and symbol names used by the composite key.
+ *
+ * Rather than writing the exchange and symbol names as strings in every map output key, the key writes a
+ * fixed width id. The names come from the timeseries.symbols property (a comma separated list) which is
+ * the same for every task of the job, so every task assigns the same ids. The names are sorted so that
+ * comparing two ids gives the same order as comparing the names.
+ *
+ * Each key has the dictionary of its job (see TSCompositeKey.setConf) rather than one for the whole process, as the
+ * jobs run in the same process can have different lists.
+ *
+ * Id 0 is always the empty name (no exchange or symbol in the data). A name that is not in the dictionary
+ * gets the id INLINE and is written after the fixed part of the key. Inline names sort after all of the
+ * dictionary names.
+ *
+ */
+public class TSSymbolDictionary {
+
+	public static final int EMPTY = 0;
+	public static final int INLINE = Integer.MAX_VALUE;
+
+	// Dictionaries of the lists of symbols, shared by the keys of the jobs in a process with the same list.
+	private static final Map<String, TSSymbolDictionary> dicts = new HashMap<String, TSSymbolDictionary>();
+
+	// The dictionary without any names. Keys that haven't been given the dictionary of their job write the names.
+	public static final TSSymbolDictionary NONE = getInstance("");
+
+	private final String strSymbols;
+	private final String [] names;
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	public TSSymbolDictionary(String strSymbols)
+	{
+		this.strSymbols = strSymbols;
+
+		String [] syms = strSymbols.split(",");
+		for (int i = 0; i < syms.length; i++)
+			syms[i] = syms[i].trim();
+		Arrays.sort(syms);
+
+		// Id 0 is reserved for the empty name.
+		String [] nms = new String[syms.length + 1];
+		int n = 0;
+		nms[n++] = "";
+		for (int i = 0; i < syms.length; i++)
+		{
+			if (syms[i].equals("") == false && syms[i].equals(nms[n - 1]) == false)
+				nms[n++] = syms[i];
+		}
+
+		names = Arrays.copyOf(nms, n);
+		for (int i = 0; i < names.length; i++)
+			ids.put(names[i], i);
+	}
+
+	// The dictionary of a list of symbols (timeseries.symbols).
+	public static synchronized TSSymbolDictionary getInstance(String strSymbols)
+	{
+		TSSymbolDictionary dict = dicts.get(strSymbols);
+		if (dict == null)
+		{
+			dict = new TSSymbolDictionary(strSymbols);
+			dicts.put(strSymbols, dict);
+		}
+		return dict;
+	}
+
+	public int getId(String strName)
+	{
+		Integer id = ids.get(strName);
+		if (id == null)
+			return INLINE;
+
+		return id;
+	}
+
+	// Name for an id. Inline names are not held in the dictionary.
+	public String getName(int id)
+	{
+		if (id >= 0 && id < names.length)
+			return names[id];
+
+		return "";
+	}
+
+	public int size()
+	{
+		return names.length;
+	}
+}
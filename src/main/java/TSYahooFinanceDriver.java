@@ -1,19 +1,29 @@
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.fs.FileUtil;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 /*
@@ -73,12 +83,18 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 	// private static final Log logger = LogFactory.getLog(TSYahooFinanceDriver.class);
 	private static boolean CONTINUE_ON_FAILURE = true; // One may or may not want to keep going on a failure of a map reduce and check the logs later.
 	public static final String TIMESERIES_REC_NAME  = "rec";
+	// Named output and directory of the binary bars of a period (timeseries.cascade).
+	public static final String TIMESERIES_BARS_NAME  = "bars";
+	// Named output of the binary period records (timeseries.outfmt).
+	public static final String TIMESERIES_DATA_NAME  = "data";
 	public static final String TIMESERIES_PERIOD_NAME  = "period";
 	
 	
 	// Job configuration object.
 	static Configuration conf = new Configuration();
 	static TSConfProperties tsConf = new TSConfProperties(conf);
+	// Sample of the input of the jobs being added for their split points (timeseries.reducers).
+	TSKeySampler sampler = null;
 	
 	public void ConfLocal()
 	{
@@ -109,7 +125,8 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 	
 	
 	// Copy the output files from hadoop stored in srcDir to dstDir. Relative paths and the directory structure of srcDir is maintained.
-	// A .csv extension is added to the output.
+	// A .csv extension is added to the output. The part files of the reducers of a file (timeseries.reducers) are put
+	// together in the order of the reducers.
 	public boolean CopyOutFiles(String srcDir, String dstDir)  throws FileNotFoundException, IOException {
 		
 		  boolean bFileCopied = true;
@@ -119,15 +136,38 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 		  FileSystemPath fsp2 = new FileSystemPath(dstDir,tsConf.conf);
 		  List<String> lstFilePath = fsp.getAllRelativeFilePath();
 	
-		  for (int i = 0; i < lstFilePath.size() && bFileCopied; i++)
+		  Map<String, List<String>> parts = new LinkedHashMap<String, List<String>>();
+		  for (int i = 0; i < lstFilePath.size(); i++)
 		  {
 			String inFile = lstFilePath.get(i);
 			if (inFile.contains("-r-00") == false)
 			  continue;
+			// The binary bars are only used by the cascade.
+			if ((FileSystemPath.separator + inFile).contains(FileSystemPath.separator + TIMESERIES_BARS_NAME + FileSystemPath.separator))
+			  continue;
 			String outFile = inFile.substring(0, inFile.lastIndexOf("-r-00")) + ".csv";
-			Path dstPath = fsp2.fs.makeQualified(new Path(fsp2.pathName.getName() + FileSystemPath.separator + outFile));
-			Path srcPath = fsp.fs.makeQualified(new Path(fsp.pathName.getName() + FileSystemPath.separator + inFile));
-		    bFileCopied = FileUtil.copy(fsp.fs, srcPath, fsp2.fs, dstPath, false, true, tsConf.conf);
+			if (parts.containsKey(outFile) == false)
+			  parts.put(outFile, new ArrayList<String>());
+			parts.get(outFile).add(inFile);
+		  }
+	
+		  for (Iterator<Map.Entry<String, List<String>>> it = parts.entrySet().iterator(); it.hasNext() && bFileCopied; )
+		  {
+			Map.Entry<String, List<String>> entry = it.next();
+			Path dstPath = fsp2.fs.makeQualified(new Path(fsp2.pathName.getName() + FileSystemPath.separator + entry.getKey()));
+			// The part number is the same width in all of the names.
+			List<String> lstParts = entry.getValue();
+			Collections.sort(lstParts);
+			Path [] srcPaths = new Path[lstParts.size()];
+			for (int i = 0; i < srcPaths.length; i++)
+			  srcPaths[i] = fsp.fs.makeQualified(new Path(fsp.pathName.getName() + FileSystemPath.separator + lstParts.get(i)));
+			// Binary period records are only turned into csv here.
+			if (isSeqFile(fsp.fs, srcPaths[0]))
+			  bFileCopied = CopyOutSeqFile(fsp.fs, srcPaths, fsp2.fs, dstPath);
+			else if (srcPaths.length == 1)
+		      bFileCopied = FileUtil.copy(fsp.fs, srcPaths[0], fsp2.fs, dstPath, false, true, tsConf.conf);
+			else
+			  bFileCopied = CopyOutParts(fsp.fs, srcPaths, fsp2.fs, dstPath);
 		  }
 		  
           }
@@ -141,6 +181,128 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 	}
 	
 	
+	// SequenceFiles start with SEQ and the version.
+	private static boolean isSeqFile(FileSystem fs, Path path) throws IOException {
+		byte [] magic = new byte[4];
+		InputStream in = fs.open(path);
+		try {
+			return in.read(magic) == magic.length && magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q' && magic[3] < ' ';
+		} finally {
+			in.close();
+		}
+	}
+	
+	// Put the part files of the reducers of a file one after the other.
+	public boolean CopyOutParts(FileSystem srcFs, Path [] srcPaths, FileSystem dstFs, Path dstPath) throws IOException {
+		
+		FSDataOutputStream out = dstFs.create(dstPath, true);
+		try {
+			for (int i = 0; i < srcPaths.length; i++)
+			{
+				InputStream in = srcFs.open(srcPaths[i]);
+				try {
+					IOUtils.copyBytes(in, out, tsConf.conf, false);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		
+		return true;
+	}
+	
+	// Write the binary period records of the part files of a file as csv with the header and the columns of timeseries.outcols.
+	public boolean CopyOutSeqFile(FileSystem srcFs, Path [] srcPaths, FileSystem dstFs, Path dstPath) throws IOException {
+		
+		FSDataOutputStream out = dstFs.create(dstPath, true);
+		try {
+			if (tsConf.strOutHdr.equals(TSConfProperties.TIMESERIES_HDRS))
+			  out.write((YahooData.format_hdr(tsConf.strOutCols) + "\n").getBytes("UTF-8"));
+			
+			TSCompositeKey key = new TSCompositeKey();
+			key.setDictionary(tsConf.getSymbolDictionary());
+			TSData tsdata = new TSData();
+			YahooData ydata = new YahooData();
+			TSOutputFormatter fmt = new TSOutputFormatter(tsConf.strOutCols);
+			boolean bPeriod = fmt.hasPeriod();
+			long lcnt = 0;
+			for (int i = 0; i < srcPaths.length; i++)
+			{
+			SequenceFile.Reader reader = new SequenceFile.Reader(tsConf.conf, SequenceFile.Reader.file(srcPaths[i]));
+			try {
+			while (reader.next(key, tsdata))
+			{
+				ydata.date = tsdata.lDateTime;
+				ydata.open = tsdata.fOpen;
+				ydata.high = tsdata.fHigh;
+				ydata.low = tsdata.fLow;
+				ydata.close = tsdata.fClose;
+				ydata.volume = tsdata.lVolume;
+				ydata.adj_close = tsdata.fAdj_Close;
+				ydata.id = "period";
+				ydata.idn = lcnt++;
+				ydata.exchange = key.getXKey();
+				ydata.symbol = key.getSKey();
+				ydata.period = bPeriod ? key.getPeriodKey() : "";
+				Text value = fmt.format(ydata);
+				out.write(value.getBytes(), 0, value.getLength());
+				out.write('\n');
+			}
+			} finally {
+				IOUtils.closeStream(reader);
+			}
+			}
+		} finally {
+			out.close();
+		}
+		
+		return true;
+	}
+	
+	// The mapper and input format of the input files. Binary input is the period records of another reduction.
+	private void setInput(Job job) throws IOException {
+		if (tsConf.isSeqIn())
+		{
+		job.setMapperClass(TSBarMapper.class);
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		}
+		else
+		{
+		job.setMapperClass(TSDataMapper.class);
+		TSCombineFileInputFormat.setInputFormatClass(job, tsConf);
+		}
+	}
+	
+	/* Split the keys of the job over timeseries.reducers reducers by range (TSRangePartitioner) with the split points
+	   from the sample of the input. The periods of the job are the ones set when it is created.
+	 */
+	private void setPartitioner(Job job) {
+		if (tsConf.isRangePartitioned() == false)
+		  return;
+		
+		job.setNumReduceTasks(tsConf.iReducers);
+		job.setPartitionerClass(TSRangePartitioner.class);
+		job.getConfiguration().set(TSRangePartitioner.TIMESERIES_PARTITION_SPLITS, sampler.getSplits(tsConf.getPeriodTypes(), tsConf.iReducers));
+	}
+	
+	// Sample the input files of the jobs to be added (timeseries.reducers).
+	private void sampleInput(FileSystem fsInput, List<String> lstInFiles) throws IOException {
+		if (tsConf.isRangePartitioned() == false)
+		  return;
+		
+		sampler = new TSKeySampler(tsConf);
+		sampler.sample(fsInput, lstInFiles);
+		System.out.println("Sampled " + sampler.getSampleCount() + " records from " + lstInFiles.size() + " files for " + tsConf.iReducers + " reducers");
+	}
+	
+	// The period records are output in binary instead of as csv (timeseries.outfmt).
+	private void setDataOutput(Job job) {
+		if (tsConf.isSeqOut())
+		  MultipleOutputs.addNamedOutput(job, TIMESERIES_DATA_NAME, SequenceFileOutputFormat.class, TSCompositeKey.class, TSData.class);
+	}
+	
 	public void AddClassConf()  throws IOException {
 		// configuration can be set in resource file.
 		tsConf.AddResourceConf("resources" + FileSystemPath.separator + "tsconfig.xml");
@@ -152,6 +314,9 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 	static int printUsage() {
 		System.out.println("TSAllDriver [optional hadoop arguments] [-yahooxml <xml download file>] [-d t|f] [-csvcols d,o,h,l,c,v,a ] [-period y|q|m|w|d ] [-outcols d,o,h,l,c,v,a ]" + 
 	                       " [-outhdr t|f] [-sort asc|desc ] [-filter o,ho,lo,h,lh,l,hl,c,hv,lv,a,ha,la ] [-lclsrc <local source directory>] [-lcldest <local csv directory> ]" +
+	                       " [-week us|iso ] [-symbols <exchanges and symbols> ] [-mapagg t|f ] [-periods y,q,m,w,d ] [-fused t|f ] [-batch t|f ] [-combinein t|f ] [-cascade t|f ] [-jobs <max jobs at once> ] [-stream t|f ]" +
+				           " [-infmt csv|seq ] [-outfmt csv|seq ] [-compact t|f ] [-project t|f ] [-asyncout t|f ] [-reducers <n> ] [-reducerstats <symbol rows file> ]" +
+				           " [-engine hadoop|local ] [-threads <local engine threads> ]" +
 				           " <hadoop input path> <hadoop output path>");
 		ToolRunner.printGenericCommandUsage(System.out);
 		return -1;
@@ -159,7 +324,7 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 	
 	
 	
-	public int runPeriodRecReducer(FileSystem fsInput, String strInFile, FileSystemPath fspOutput)  throws Exception 
+	public Job createPeriodRecJob(FileSystem fsInput, String strInFile, FileSystemPath fspOutput)  throws Exception 
 	{
 		
         Job job = Job.getInstance(tsConf.conf, "Yahoo Timeseries m/r Period Record Reduction on file - " + tsConf.strOutName);
@@ -168,15 +333,23 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 
 	    job.setOutputValueClass(TSData.class);
 
-	    job.setMapperClass(TSDataMapper.class);
 	    
 	    job.setReducerClass(TSPeriodRecReducer.class);
+	    
+	    // The record reduction needs every record from the mapper. Only the records selected by the filters
+	    // are sent through the shuffle.
+	    job.getConfiguration().set(TSConfProperties.TIMESERIES_MAPAGG, "f");
+	    if (TSPeriodRecReducer.CHK_ALL_RECS == false)
+	    {
+	      job.setCombinerClass(TSPeriodRecCombiner.class);
+	      job.setCombinerKeyGroupingComparatorClass(GroupingKeyComparator.class);
+	    }
 
-	    job.setInputFormatClass(TextInputFormat.class);
+	    setInput(job);
 	    
 	    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
 	    
-	    //job.setPartitionerClass(GroupPartitioner.class);
+	    setPartitioner(job);
 	
 		job.setGroupingComparatorClass(GroupingKeyComparator.class);
 		
@@ -187,18 +360,20 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 	    Path p1 = fsInput.makeQualified(new Path(strInFile));
 		FileInputFormat.setInputPaths(job, p1);
 		
-		String strOutDir = fspOutput.getName() + FileSystemPath.separator + tsConf.strOutName + FileSystemPath.separator + TIMESERIES_REC_NAME + FileSystemPath.separator + tsConf.strPeriod;
+		String strOutDir = fspOutput.getName() + FileSystemPath.separator + tsConf.strOutName + FileSystemPath.separator + TIMESERIES_REC_NAME;
+		// With several periods in the one job the reducer puts each period in its own directory.
+		if (tsConf.strPeriods.equals(""))
+		  strOutDir += FileSystemPath.separator + tsConf.strPeriod;
 		Path p2 = fspOutput.fs.makeQualified(new Path(strOutDir));
 	    FileOutputFormat.setOutputPath(job, p2);
         
-	    System.out.println("Executing Job " + job.getJobName() + " Input= " + strInFile + " Output =" + strOutDir);
+	    System.out.println("Adding Job " + job.getJobName() + " Input= " + strInFile + " Output =" + strOutDir);
 		
-	    boolean success = job.waitForCompletion(true);
-	    return(success ? 0 : 1);	
+	    return job;
 		
 	}
 	
-	public int runPeriodReducer(FileSystem fsInput, String strInFile, FileSystemPath fspOutput)  throws Exception 
+	public Job createPeriodJob(FileSystem fsInput, String strInFile, FileSystemPath fspOutput)  throws Exception 
 	{
 		
         Job job = Job.getInstance(tsConf.conf, "Yahoo Timeseries m/r Period Reduction on file - " + tsConf.strOutName);
@@ -208,15 +383,27 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 
 	    job.setOutputValueClass(TSData.class);
 
-	    job.setMapperClass(TSDataMapper.class);
 	    
 	    job.setReducerClass(TSPeriodReducer.class);
 
-	    job.setInputFormatClass(TextInputFormat.class);
+	    // Collapse the records of each period on the map side. Either in the mapper or with a combiner.
+	    if (tsConf.strMapAgg.equals("t") == false)
+	    {
+	      job.setCombinerClass(TSPeriodCombiner.class);
+	      job.setCombinerKeyGroupingComparatorClass(GroupingKeyComparator.class);
+	    }
+
+	    setInput(job);
 	    
 	    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
 	    
-	    //job.setPartitionerClass(GroupPartitioner.class);
+	    setDataOutput(job);
+	    
+	    // The bars of the finer periods are kept for the coarser ones.
+	    if (tsConf.isCascade())
+	      MultipleOutputs.addNamedOutput(job, TIMESERIES_BARS_NAME, SequenceFileOutputFormat.class, TSCompositeKey.class, TSData.class);
+	    
+	    setPartitioner(job);
 	
 		job.setGroupingComparatorClass(GroupingKeyComparator.class);
 		
@@ -227,14 +414,242 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 		Path p1 = fsInput.makeQualified(new Path(strInFile));
 		FileInputFormat.setInputPaths(job, p1);
 		
+		String strOutDir = fspOutput.getName() + FileSystemPath.separator + tsConf.strOutName;
+		// With several periods in the one job the reducer puts each period in its own directory.
+		if (tsConf.strPeriods.equals(""))
+		  strOutDir += FileSystemPath.separator + tsConf.strPeriod;
+		Path p2 = fspOutput.fs.makeQualified(new Path(strOutDir));
+		FileOutputFormat.setOutputPath(job, p2);
+		
+		System.out.println("Adding Job " + job.getJobName() + " Input= " + strInFile + " Output =" + strOutDir);
+		
+	    return job;
+		
+	}
+	
+	/* Roll the period up from the binary bars of a finer period (timeseries.cascade) instead of the raw data. The bars
+	   were output by the reduction of the finer period for the file. The output is the same as runPeriodReducer.
+	 */
+	public Job createRollupJob(int iSrcPeriodType, FileSystemPath fspOutput)  throws Exception 
+	{
+		
+        Job job = Job.getInstance(tsConf.conf, "Yahoo Timeseries m/r Period Rollup on file - " + tsConf.strOutName);
+        
+		
+	    job.setOutputKeyClass(TSCompositeKey.class);
+
+	    job.setOutputValueClass(TSData.class);
+
+	    job.setMapperClass(TSBarMapper.class);
+	    
+	    job.setReducerClass(TSPeriodReducer.class);
+	    
+	    job.setCombinerClass(TSPeriodCombiner.class);
+	    job.setCombinerKeyGroupingComparatorClass(GroupingKeyComparator.class);
+
+	    job.setInputFormatClass(SequenceFileInputFormat.class);
+	    
+	    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+	    
+	    setDataOutput(job);
+	    
+	    MultipleOutputs.addNamedOutput(job, TIMESERIES_BARS_NAME, SequenceFileOutputFormat.class, TSCompositeKey.class, TSData.class);
+	
+	    setPartitioner(job);
+	
+		job.setGroupingComparatorClass(GroupingKeyComparator.class);
+		
+		job.setSortComparatorClass(OutputKeyComparator.class);
+
+	    job.setJarByClass(TSYahooFinanceDriver.class);
+	
+	    String strInDir = fspOutput.getName() + FileSystemPath.separator + tsConf.strOutName + FileSystemPath.separator + 
+	    		TSCalendar.getPeriodName(iSrcPeriodType) + FileSystemPath.separator + TIMESERIES_BARS_NAME;
+		Path p1 = fspOutput.fs.makeQualified(new Path(strInDir));
+		FileInputFormat.setInputPaths(job, p1);
+		
 		String strOutDir = fspOutput.getName() + FileSystemPath.separator + tsConf.strOutName + FileSystemPath.separator + tsConf.strPeriod;
 		Path p2 = fspOutput.fs.makeQualified(new Path(strOutDir));
 		FileOutputFormat.setOutputPath(job, p2);
 		
-		System.out.println("Executing Job " + job.getJobName() + " Input= " + strInFile + " Output =" + strOutDir);
+		System.out.println("Adding Job " + job.getJobName() + " Input= " + strInDir + " Output =" + strOutDir);
 		
-	    boolean success = job.waitForCompletion(true);
-	    return(success ? 0 : 1);	
+	    return job;
+		
+	}
+	
+	/* Period reduction and record filtering in one job (TSPeriodFusedReducer). All of the periods in timeseries.periods
+	   are reduced and the output directories are the same as for the separate jobs.
+	*/
+	public Job createFusedJob(FileSystem fsInput, String strInFile, FileSystemPath fspOutput)  throws Exception 
+	{
+		
+        Job job = Job.getInstance(tsConf.conf, "Yahoo Timeseries m/r Period and Record Reduction on file - " + tsConf.strOutName);
+        
+		
+	    job.setOutputKeyClass(TSCompositeKey.class);
+
+	    job.setOutputValueClass(TSData.class);
+
+	    
+	    job.setReducerClass(TSPeriodFusedReducer.class);
+	    
+	    // Both reductions need every record from the mapper.
+	    job.getConfiguration().set(TSConfProperties.TIMESERIES_MAPAGG, "f");
+
+	    setInput(job);
+	    
+	    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+	
+	    setDataOutput(job);
+	
+	    setPartitioner(job);
+	
+		job.setGroupingComparatorClass(GroupingKeyComparator.class);
+		
+		job.setSortComparatorClass(OutputKeyComparator.class);
+
+	    job.setJarByClass(TSYahooFinanceDriver.class);
+	
+		Path p1 = fsInput.makeQualified(new Path(strInFile));
+		FileInputFormat.setInputPaths(job, p1);
+		
+		String strOutDir = fspOutput.getName() + FileSystemPath.separator + tsConf.strOutName;
+		Path p2 = fspOutput.fs.makeQualified(new Path(strOutDir));
+		FileOutputFormat.setOutputPath(job, p2);
+		
+		System.out.println("Adding Job " + job.getJobName() + " Input= " + strInFile + " Output =" + strOutDir);
+		
+	    return job;
+		
+	}
+	
+	/* Map only version of the fused job for input with the records of each period together (timeseries.stream).
+	   The output of the splits is put together by the TSStreamStitcher once the job is done (see addStreamJob).
+	 */
+	public Job createStreamJob(FileSystem fsInput, List<String> lstInFiles, String strOutDir)  throws Exception 
+	{
+		
+        Job job = Job.getInstance(tsConf.conf, "Yahoo Timeseries m/r Stream Period and Record Reduction on " + 
+        		(tsConf.isBatch() ? lstInFiles.size() + " files" : "file - " + tsConf.strOutName));
+        
+	    job.setOutputKeyClass(NullWritable.class);
+
+	    job.setOutputValueClass(Text.class);
+
+	    job.setMapperClass(TSStreamMapper.class);
+	    
+	    job.setNumReduceTasks(0);
+	    
+	    job.getConfiguration().set(TSConfProperties.TIMESERIES_MAPAGG, "f");
+	    // The mappers write the headers of each name as the one reducer would.
+	    job.getConfiguration().set(TSConfProperties.TIMESERIES_REDUCERS, "1");
+
+	    // The mapper needs to know where its split is in the file.
+	    job.setInputFormatClass(TextInputFormat.class);
+	    
+	    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+	    
+	    MultipleOutputs.addNamedOutput(job, TSStreamMapper.TIMESERIES_LINES_NAME, TextOutputFormat.class, NullWritable.class, Text.class);
+	    MultipleOutputs.addNamedOutput(job, TSStreamMapper.TIMESERIES_EDGES_NAME, SequenceFileOutputFormat.class, TSCompositeKey.class, TSData.class);
+
+	    job.setJarByClass(TSYahooFinanceDriver.class);
+	
+	    for (int i = 0; i < lstInFiles.size(); i++)
+	    	FileInputFormat.addInputPath(job, fsInput.makeQualified(new Path(lstInFiles.get(i))));
+		
+		Path p2 = fsInput.makeQualified(new Path(strOutDir));
+		FileOutputFormat.setOutputPath(job, p2);
+		
+		System.out.println("Adding Job " + job.getJobName() + " Output =" + strOutDir);
+		
+	    return job;
+		
+	}
+	
+	// Whether the stream job can take the files, the dates of each in the timeseries.sort order (see TSStreamMapper).
+	private boolean isStreamOrdered(FileSystem fsInput, List<String> lstInFiles) throws IOException 
+	{
+		for (int i = 0; i < lstInFiles.size(); i++)
+			if (TSStreamMapper.isInSortOrder(tsConf, fsInput, fsInput.makeQualified(new Path(lstInFiles.get(i)))) == false)
+			{
+				System.out.println("The dates of " + lstInFiles.get(i) + " are not in the timeseries.sort order (" + tsConf.strSort + 
+						"). Running the " + (tsConf.isBatch() ? "batch" : "fused") + " job instead of the stream job.");
+				return false;
+			}
+		return true;
+	}
+	
+	// Add the stream job and the stitching of its output once it is done.
+	public TSJobScheduler.Node addStreamJob(TSJobScheduler scheduler, FileSystem fsInput, List<String> lstInFiles, String strOutDir)  throws Exception 
+	{
+		final Job job = createStreamJob(fsInput, lstInFiles, strOutDir);
+		TSJobScheduler.Node jobNode = scheduler.addJob(job).setContinueOnFailure(CONTINUE_ON_FAILURE);
+		
+		final Configuration jobConf = new Configuration(job.getConfiguration());
+		final String strStitchDir = FileOutputFormat.getOutputPath(job).toString();
+		return scheduler.addTask("Stitch " + strStitchDir, new Callable<Boolean>() {
+	    	public Boolean call() throws Exception {
+	    		// A stitch that doesn't finish leaves no files to be copied out.
+	    		boolean bStitched = false;
+	    		try {
+	    			bStitched = new TSStreamStitcher(jobConf, strStitchDir).stitch();
+	    		} finally {
+	    			if (bStitched == false)
+	    			{
+	    				Path stitchPath = new Path(strStitchDir);
+	    				stitchPath.getFileSystem(jobConf).delete(stitchPath, true);
+	    			}
+	    		}
+	    		return bStitched;
+	    	}
+	    }).requires(jobNode).setContinueOnFailure(CONTINUE_ON_FAILURE);
+	}
+	
+	/* Reduce all of the input files in one job (timeseries.batch). The mapper takes the symbol from the file name
+	   when the data has none and the reducer writes the output of each symbol to its own directory under the output
+	   path in the same way as a fused job for the file.
+	 */
+	public Job createBatchJob(FileSystem fsInput, List<String> lstInFiles, FileSystemPath fspOutput)  throws Exception 
+	{
+		
+        Job job = Job.getInstance(tsConf.conf, "Yahoo Timeseries m/r Batch Period and Record Reduction on " + lstInFiles.size() + " files");
+        
+		
+	    job.setOutputKeyClass(TSCompositeKey.class);
+
+	    job.setOutputValueClass(TSData.class);
+
+	    
+	    job.setReducerClass(TSPeriodFusedReducer.class);
+	    
+	    // Both reductions need every record from the mapper.
+	    job.getConfiguration().set(TSConfProperties.TIMESERIES_MAPAGG, "f");
+
+	    setInput(job);
+	    
+	    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+	
+	    setDataOutput(job);
+	    
+	    setPartitioner(job);
+	
+		job.setGroupingComparatorClass(GroupingKeyComparator.class);
+		
+		job.setSortComparatorClass(OutputKeyComparator.class);
+
+	    job.setJarByClass(TSYahooFinanceDriver.class);
+	
+	    for (int i = 0; i < lstInFiles.size(); i++)
+	    	FileInputFormat.addInputPath(job, fsInput.makeQualified(new Path(lstInFiles.get(i))));
+		
+		String strOutDir = fspOutput.getName();
+		Path p2 = fspOutput.fs.makeQualified(new Path(strOutDir));
+		FileOutputFormat.setOutputPath(job, p2);
+		
+		System.out.println("Adding Job " + job.getJobName() + " Output =" + strOutDir);
+		
+	    return job;
 		
 	}
 	
@@ -265,6 +680,26 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 		
 		int ret = 0;
 		
+		// Binary input is read by the TSBarMapper which doesn't consolidate in the mapper and the stream job is csv only.
+		if (tsConf.isSeqIn() || tsConf.isSeqOut())
+		  tsConf.setProperty(TSConfProperties.TIMESERIES_STREAM, "f");
+		if (tsConf.isSeqIn())
+		  tsConf.setProperty(TSConfProperties.TIMESERIES_MAPAGG, "f");
+		
+		// The local engine reads and writes csv only.
+		if (tsConf.isLocalEngine() && (tsConf.isSeqIn() || tsConf.isSeqOut()))
+		{
+		  System.out.println("The local engine reads and writes csv only. Running the map reduce jobs.");
+		  tsConf.setProperty(TSConfProperties.TIMESERIES_ENGINE, TSConfProperties.TIMESERIES_ENGINE_HADOOP);
+		}
+		
+		// Without timeseries.periods each period type of a file is reduced by a job of its own.
+		boolean bJobPerPeriod = tsConf.strPeriods.equals("") && tsConf.strFused.equals("t") == false &&
+				tsConf.isBatch() == false && tsConf.isStream() == false;
+		
+		// The fused, stream and batch jobs and the local engine reduce all of the periods at once.
+		if ((tsConf.strFused.equals("t") || tsConf.isBatch() || tsConf.isStream() || tsConf.isLocalEngine()) && tsConf.strPeriods.equals(""))
+		  tsConf.setProperty(TSConfProperties.TIMESERIES_PERIODS, StringUtils.join(strPeriods, ","));
 		
 		String strInput = io_args.get(0);
 		String strOutput = io_args.get(1);
@@ -338,39 +773,122 @@ public class TSYahooFinanceDriver extends Configured implements Tool {
 	    
 	    // Delete any old data
 	    FileSystemPath fspOutput = new FileSystemPath(strOutput, tsConf.conf);
-	    fspOutput.emptyPath();
 	    
-	    for (int i = 0; i < lstFilePath.size()  && ret == 0; i++)
+	    // Reduce the files in this process and write the csv files straight to the local destination, or to the output
+	    // path if there is none.
+	    if (tsConf.isLocalEngine())
+	    {
+	    String strDest = tsConf.getProp(TSConfProperties.TIMESERIES_LCLDEST);
+	    if (strDest.equals(""))
+	      {
+	      fspOutput.emptyPath();
+	      strDest = strOutput;
+	      }
+	    
+	    return new TSLocalEngine(tsConf, bJobPerPeriod).run(fspInput.fs, lstFilePath, new FileSystemPath(strDest, tsConf.conf)) ? 0 : 1;
+	    }
+	    
+	    // The jobs are run as a graph so the jobs that don't depend on each other can run at the same time.
+	    TSJobScheduler scheduler = new TSJobScheduler(tsConf.iJobsMax, tsConf.iJobsRetries);
+	    
+	    if (tsConf.isBatch())
+	    {
+	    // The output path is the output of the job so it must not exist.
+	    fspOutput.deletePath();
+	    
+	    // Use the file names as the symbol dictionary unless one is given.
+	    if (tsConf.strSymbols.equals(""))
+	      {
+	    	List<String> lstSymbols = new ArrayList<String>();
+	    	for (int i = 0; i < lstFilePath.size(); i++)
+	    		lstSymbols.add(tsConf.getFileName(lstFilePath.get(i)));
+	    	tsConf.setProperty(TSConfProperties.TIMESERIES_SYMBOLS, StringUtils.join(lstSymbols, ","));
+	      }
+	    
+	    if (lstFilePath.size() > 0 && tsConf.isStream() && isStreamOrdered(fspInput.fs, lstFilePath))
+	      addStreamJob(scheduler, fspInput.fs, lstFilePath, fspOutput.getName());
+	    else if (lstFilePath.size() > 0)
+	      {
+	      sampleInput(fspInput.fs, lstFilePath);
+	      scheduler.addJob(createBatchJob(fspInput.fs, lstFilePath, fspOutput)).setContinueOnFailure(CONTINUE_ON_FAILURE);
+	      }
+	    }
+	    else
+	      fspOutput.emptyPath();
+	    
+	    for (int i = 0; i < lstFilePath.size() && tsConf.isBatch() == false; i++)
 		  {
 			String inFile = lstFilePath.get(i);
 		    tsConf.setProperty(TSConfProperties.TIMESERIES_FNAME, inFile);
-	    	for (int j = 0; j < strPeriods.length && ret == 0; j++)
+		    
+		    if (tsConf.isStream() && isStreamOrdered(fspInput.fs, Arrays.asList(inFile)))
+		    {
+		    addStreamJob(scheduler, fspInput.fs, Arrays.asList(inFile), fspOutput.getName() + FileSystemPath.separator + tsConf.strOutName);
+		    
+		    continue;
+		    }
+		    
+		    sampleInput(fspInput.fs, Arrays.asList(inFile));
+		    
+		    // A file the stream job can't take goes through the fused job.
+		    if (tsConf.strFused.equals("t") || tsConf.isStream())
 		    {
-		    tsConf.setProperty(TSConfProperties.TIMESERIES_PERIOD, strPeriods[j]);
+		    scheduler.addJob(createFusedJob(fspInput.fs, inFile, fspOutput)).setContinueOnFailure(CONTINUE_ON_FAILURE);
+		    
+		    continue;
+		    }
+		    
+		    if (tsConf.strPeriods.equals("") == false)
+		    {
+		    // All of the periods are reduced from a single scan of the file.
+		    scheduler.addJob(createPeriodJob(fspInput.fs, inFile, fspOutput)).setContinueOnFailure(CONTINUE_ON_FAILURE);
+		    
+		    scheduler.addJob(createPeriodRecJob(fspInput.fs, inFile, fspOutput)).setContinueOnFailure(CONTINUE_ON_FAILURE);
+		    
+		    continue;
+		    }
+		    
+		    // Period jobs of the file by period type. The cascade rolls up from the bars of the jobs of the finer periods,
+		    // so a rollup only runs if the job of its bars succeeds.
+		    TSJobScheduler.Node [] periodNodes = new TSJobScheduler.Node[TSCalendar.PERIOD_DAY + 1];
+		    
+	    	for (int j = 0; j < strPeriods.length; j++)
+		    {
+	    	// The cascade goes from the finest period so the bars of each period are there for the coarser ones.
+	    	String strPeriod = tsConf.isCascade() ? strPeriods[strPeriods.length - 1 - j] : strPeriods[j];
+		    tsConf.setProperty(TSConfProperties.TIMESERIES_PERIOD, strPeriod);
+		    int iPeriodType = TSCalendar.getPeriodType(strPeriod);
 		
 		    // Run map/reducer on files from input file system and sends results to output file system 
-            ret = runPeriodReducer(fspInput.fs, inFile, fspOutput);
-            
-            if (CONTINUE_ON_FAILURE)
-              ret = 0;
-        		
-            if (ret == 0)
-        	  ret = runPeriodRecReducer(fspInput.fs, inFile, fspOutput);
+		    int iSrcPeriodType = TSCalendar.getRollupSource(iPeriodType);
+		    if (tsConf.isCascade() && iSrcPeriodType != TSCalendar.PERIOD_UNKNOWN)
+		      periodNodes[iPeriodType] = scheduler.addJob(createRollupJob(iSrcPeriodType, fspOutput)).requires(periodNodes[iSrcPeriodType]);
+		    else
+		      periodNodes[iPeriodType] = scheduler.addJob(createPeriodJob(fspInput.fs, inFile, fspOutput));
+		    periodNodes[iPeriodType].setContinueOnFailure(CONTINUE_ON_FAILURE);
             
-            if (CONTINUE_ON_FAILURE)
-                ret = 0;
+		    scheduler.addJob(createPeriodRecJob(fspInput.fs, inFile, fspOutput)).setContinueOnFailure(CONTINUE_ON_FAILURE);
 		    }
 		
 	    }
 	    
-	    // sending results from map/reduce output to a different (local?) file system
+	    // sending results from map/reduce output to a different (local?) file system once all of the jobs are done.
 	    
-	    String strLCLDest = tsConf.getProp(TSConfProperties.TIMESERIES_LCLDEST);
+	    final String strLCLDest = tsConf.getProp(TSConfProperties.TIMESERIES_LCLDEST);
 	    if (strLCLDest.equals("") == false)
 		{
-	    CopyOutFiles(strOutput, strLCLDest);
+	    final String strOutDir = strOutput;
+	    TSJobScheduler.Node copyNode = scheduler.addTask("Copy output files to " + strLCLDest, new Callable<Boolean>() {
+	    	public Boolean call() throws Exception {
+	    		return CopyOutFiles(strOutDir, strLCLDest);
+	    	}
+	    });
+	    for (int i = 0; i < scheduler.getNodes().size() - 1; i++)
+	    	copyNode.dependsOn(scheduler.getNodes().get(i));
 	    }	    
 	    
+	    ret = scheduler.run();
+	    
 	    return ret;
 	}
 
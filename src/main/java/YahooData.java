@@ -1,5 +1,4 @@
 
-import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
@@ -85,122 +84,101 @@ public class YahooData {
 
 	public static SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
 
-	private static final String DATE_FORMAT_YYMM = "yyyy-MM";
-	private static final String DATE_FORMAT_YY = "yyyy";
-	private static final String DATE_FORMAT_MM = "MM";
-	private static final String DATE_FORMAT_DD = "dd";
-	private static final String WEEK_OF_YEAR = "ww";
-	private static final String DATE_FORMAT_DOY = "DDD";
-	
-	private static SimpleDateFormat sdf_ym = new SimpleDateFormat(DATE_FORMAT_YYMM);
-	private static SimpleDateFormat sdf_y = new SimpleDateFormat(DATE_FORMAT_YY);
-	private static SimpleDateFormat sdf_m = new SimpleDateFormat(DATE_FORMAT_MM);
-	private static SimpleDateFormat sdf_d = new SimpleDateFormat(DATE_FORMAT_DD);
-	private static SimpleDateFormat sdf_w = new SimpleDateFormat(WEEK_OF_YEAR);
-	private static SimpleDateFormat sdf_dy = new SimpleDateFormat(DATE_FORMAT_DOY);
-	
-	private static DateFormat df = DateFormat.getDateInstance(DateFormat.SHORT);
-	
+	/* The period keys and dates are calculated from the epoch day by TSCalendar rather than by
+	   formatting the date through SimpleDateFormat and parsing the result back. Dates are UTC.
+	   The weeks here are the US ones (TSCalendar.getDefault); the jobs use the calendar of their
+	   configuration (TSConfProperties.getCalendar).
+	 */
+	private static long getEpochDay(long lDate)
+	{
+		return TSCalendar.getEpochDay(lDate);
+	}
 
 	public static Integer getYearNum(long lDate)
 	{
-		return Integer.parseInt(getYear(lDate));
+		return TSCalendar.getDefault().getYear(getEpochDay(lDate));
 	}
 	
 	public static Integer getQtrNum(long lDate)
 	{
-		Integer mi = getMonthNum(lDate);
-		Integer qi = 1;
-		if (mi > 3 && mi <= 6)
-			qi = 2;
-		else
-		  if (mi > 6 && mi <= 9)
-			qi = 3;
-		  else 
-			if (mi > 9 && mi <= 12)
-				qi = 4;
-		
-	  return qi;
+		return TSCalendar.getDefault().getQuarter(getEpochDay(lDate));
 	}
 	
 	public static Integer getMonthNum(long lDate)
 	{
-		return Integer.parseInt(sdf_m.format(lDate));	
+		return TSCalendar.getDefault().getMonth(getEpochDay(lDate));
 	}
 	
 	public static Integer getWeekNum(long lDate)
 	{
-		return  Integer.parseInt(sdf_w.format(lDate));
+		return TSCalendar.getDefault().getWeek(getEpochDay(lDate));
 	}
 	
 	public static Integer getDayNum(long lDate)
 	{
-		return  Integer.parseInt(sdf_dy.format(lDate));
+		return TSCalendar.getDefault().getDayOfYear(getEpochDay(lDate));
+	}
+	
+	private static String pad(long l, int iWidth)
+	{
+		StringBuilder sb = new StringBuilder(iWidth);
+		TSCalendar.appendPadded(sb, l, iWidth);
+		return sb.toString();
 	}
 	
 	public static String getYear(long lDate) {
-		return sdf_y.format(lDate);	
+		return pad(getYearNum(lDate), 4);	
 	}
 	
 	public static String getQtr(long lDate) {
-		Integer qi = getQtrNum(lDate);
-		return String.format("%02d", qi);
+		return pad(getQtrNum(lDate), 2);
 	}
 	
 	public static String getMonth(long lDate) {
-		return sdf_m.format(lDate);
+		return pad(getMonthNum(lDate), 2);
 	}
 	
 	public static String getWeek(long lDate) {
-		return sdf_w.format(lDate);
+		return pad(getWeekNum(lDate), 2);
 	}
 	
 	public static String getDay(long lDate) {
-		return sdf_d.format(lDate);
+		return pad(TSCalendar.getDefault().getDay(getEpochDay(lDate)), 2);
 	}
 	
 	
 	public static String getYearMonth(long lDate) {
 
-		return sdf_ym.format(lDate);
+		return generatePeriodKey(TIMESERIES_PERIOD_MONTH, lDate);
 
 	}
 	
 	public static String getYearDay(long lDate) {
 
-		return getYear(lDate) + "-" + sdf_dy.format(lDate);
+		return generatePeriodKey(TIMESERIES_PERIOD_DAY, lDate);
 
 	}
 	
+	// Days at the end of December can be in week 1 of the next year. The week year is used.
 	public static String getYearWeek(long lDate) {
-		String sy = getYear(lDate);	
-		String sw = getWeek(lDate);
-		String sm = getMonth(lDate);
-		if (sm.equals("12") && sw.equals("01"))
-		{
-		// increment the year
-		Integer yi = Integer.parseInt(sy);
-		yi++;
-		sy = String.format("%04d", yi);
-		}
 		
-		return String.format("%s-%s",  sy, sw);
+		return generatePeriodKey(TIMESERIES_PERIOD_WEEK, lDate);
 	}
 	
 	
 	public static String getYearQtr(long lDate) {
-		return String.format("%s-%s", getYear(lDate), getQtr(lDate));
+		return generatePeriodKey(TIMESERIES_PERIOD_QUARTER, lDate);
 	}
 
 	public static String getDate(long lDate) {
 
-		return sdf.format(lDate);
+		return TSCalendar.getDefault().formatDate(lDate);
 		
 	}
 	
 	public static long getLongDate(String strDate) throws ParseException
 	{
-		return sdf.parse(strDate).getTime();
+		return TSCalendar.parseDate(strDate);
 	}
 	
 	
@@ -241,39 +219,14 @@ public class YahooData {
 	
 	public String generatePeriodKey(String strPeriod)
 	{
-		String strPeriodKey = "";
-		
-		switch (strPeriod)
-		{
-		case TIMESERIES_PERIOD_YEAR:
-			strPeriodKey = getYear(date);
-		break;
-		
-		case TIMESERIES_PERIOD_QUARTER:
-			strPeriodKey = getYearQtr(date);
-		break;
-		
-		case TIMESERIES_PERIOD_MONTH:
-			strPeriodKey = getYearMonth(date);
-		break;
-		
-		case TIMESERIES_PERIOD_WEEK:
-			strPeriodKey = getYearWeek(date);
-		break;
-		
-		case TIMESERIES_PERIOD_DAY:
-			strPeriodKey = getYearDay(date);
-		break;
-		
-		case "":
-			strPeriodKey = getYearMonth(date);
-		break;
-		
-		default:
-			strPeriodKey = "Unknown Period";
-		}
+		return generatePeriodKey(strPeriod, date);
+	}
+	
+	public static String generatePeriodKey(String strPeriod, long date)
+	{
+		int iType = TSCalendar.getPeriodType(strPeriod);
 		
-		return strPeriodKey;
+		return TSCalendar.formatPeriodKey(iType, TSCalendar.getDefault().getPeriodKey(iType, getEpochDay(date)));
 	}
 	
 	public int setCol(String strName, String strValue)